@@ -0,0 +1,91 @@
+package com.javaclaw.bus;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MessageBus 队列实现对比：linked 为 LinkedBusQueue（LinkedBlockingQueue），ring 为 RingBusQueue。
+ * handoff 为单线程成批 offer 再成批 poll；spsc 为一个生产者与一个消费者并发收发（offer / 限时 poll 均不阻塞，
+ * 队列满或空时该次调用记为空转）。加 -prof gc 可对比每条消息的分配量。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BusQueueBenchmark {
+
+    private static final int CAPACITY = 1024;
+    private static final int BATCH = 256;
+
+    @State(Scope.Thread)
+    public static class Single {
+        @Param({"linked", "ring"})
+        public String impl;
+
+        BusQueue<Integer> queue;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            queue = newQueue(impl);
+        }
+    }
+
+    @State(Scope.Group)
+    public static class Shared {
+        @Param({"linked", "ring"})
+        public String impl;
+
+        BusQueue<Integer> queue;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            queue = newQueue(impl);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void handoff(Single s, Blackhole bh) throws InterruptedException {
+        for (int i = 0; i < BATCH; i++) {
+            s.queue.offer(i);
+        }
+        for (int i = 0; i < BATCH; i++) {
+            bh.consume(s.queue.poll(0, TimeUnit.NANOSECONDS));
+        }
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public boolean produce(Shared s) {
+        return s.queue.offer(1);
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public Integer consume(Shared s) throws InterruptedException {
+        return s.queue.poll(0, TimeUnit.NANOSECONDS);
+    }
+
+    private static BusQueue<Integer> newQueue(String impl) {
+        return "ring".equals(impl) ? new RingBusQueue<>(CAPACITY) : BusQueue.linked(CAPACITY);
+    }
+}
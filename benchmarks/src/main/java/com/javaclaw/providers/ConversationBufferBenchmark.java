@@ -0,0 +1,109 @@
+package com.javaclaw.providers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一轮 tool 循环的请求体序列化：从 history 条历史开始，每次迭代追加一条 assistant（带 tool_calls）与一条 tool 结果再序列化整个请求，
+ * 共 iterations 次。plainList 每次全量编码，conversationBuffer 只编码新追加的消息。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversationBufferBenchmark {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Param({"20", "100"})
+    public int history;
+
+    @Param({"8"})
+    public int iterations;
+
+    private List<Map<String, Object>> initial;
+    private List<Map<String, Object>> appended;
+
+    @Setup
+    public void setup() {
+        initial = new ArrayList<>(history);
+        initial.add(message("system", repeat("You are a helpful assistant. ", 80)));
+        for (int i = 1; i < history; i++) {
+            initial.add(message(i % 2 == 1 ? "user" : "assistant", repeat("message " + i + " lorem ipsum dolor sit amet ", 12)));
+        }
+        appended = new ArrayList<>(iterations * 2);
+        for (int i = 0; i < iterations; i++) {
+            Map<String, Object> call = message("assistant", "");
+            Map<String, Object> fn = new LinkedHashMap<>();
+            fn.put("name", "read_file");
+            fn.put("arguments", "{\"path\":\"src/File" + i + ".java\"}");
+            Map<String, Object> tc = new LinkedHashMap<>();
+            tc.put("id", "call_" + i);
+            tc.put("type", "function");
+            tc.put("function", fn);
+            List<Object> calls = new ArrayList<>();
+            calls.add(tc);
+            call.put("tool_calls", calls);
+            appended.add(call);
+            Map<String, Object> result = message("tool", repeat("line " + i + " of the file content\n", 60));
+            result.put("tool_call_id", "call_" + i);
+            appended.add(result);
+        }
+    }
+
+    @Benchmark
+    public void plainList(Blackhole bh) throws Exception {
+        run(new ArrayList<>(initial), bh);
+    }
+
+    @Benchmark
+    public void conversationBuffer(Blackhole bh) throws Exception {
+        run(new ConversationBuffer(initial), bh);
+    }
+
+    private void run(List<Map<String, Object>> messages, Blackhole bh) throws Exception {
+        Map<String, Object> body = new HashMap<>();
+        body.put("model", "gpt-4o");
+        body.put("messages", messages);
+        for (int i = 0; i < iterations; i++) {
+            messages.add(appended.get(2 * i));
+            messages.add(appended.get(2 * i + 1));
+            bh.consume(MAPPER.writeValueAsBytes(body));
+        }
+    }
+
+    private static Map<String, Object> message(String role, String content) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("role", role);
+        m.put("content", content);
+        return m;
+    }
+
+    private static String repeat(String s, int n) {
+        StringBuilder sb = new StringBuilder(s.length() * n);
+        for (int i = 0; i < n; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,92 @@
+package com.javaclaw.providers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 解码一条 chunks 个 content delta 的 SSE 流（末尾带 finish_reason 与 usage）。
+ * readTree 为原实现：BufferedReader 逐行读成 String，再 ObjectMapper.readTree 取 delta.content；
+ * sseStreamDecoder 为 okio 行缓冲 + 流式 JsonParser。加 -prof gc 可对比每次解码的分配量。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SseStreamDecoderBenchmark {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Param({"2000"})
+    public int chunks;
+
+    private byte[] stream;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder(chunks * 200);
+        for (int i = 0; i < chunks; i++) {
+            sb.append("data: {\"id\":\"chatcmpl-1\",\"object\":\"chat.completion.chunk\",\"created\":1700000000,")
+                    .append("\"model\":\"gpt-4o\",\"choices\":[{\"index\":0,\"delta\":{\"content\":\"token")
+                    .append(i).append(" \"},\"finish_reason\":null}]}\n\n");
+        }
+        sb.append("data: {\"choices\":[{\"index\":0,\"delta\":{},\"finish_reason\":\"stop\"}],")
+                .append("\"usage\":{\"prompt_tokens\":1200,\"completion_tokens\":").append(chunks)
+                .append(",\"total_tokens\":").append(1200 + chunks).append("}}\n\n");
+        sb.append("data: [DONE]\n\n");
+        stream = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public LLMResponse sseStreamDecoder() throws IOException {
+        Buffer source = new Buffer().write(stream);
+        return new SseStreamDecoder(null, null).decode(source);
+    }
+
+    @Benchmark
+    public String readTree() throws IOException {
+        StringBuilder content = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(stream), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("data: ")) {
+                    continue;
+                }
+                String data = line.substring(6).trim();
+                if ("[DONE]".equals(data)) {
+                    break;
+                }
+                JsonNode choices = MAPPER.readTree(data).get("choices");
+                if (choices == null || !choices.isArray() || choices.size() == 0) {
+                    continue;
+                }
+                JsonNode delta = choices.get(0).get("delta");
+                if (delta != null && delta.has("content") && !delta.get("content").isNull()) {
+                    content.append(delta.get("content").asText());
+                }
+            }
+        }
+        return content.toString();
+    }
+}
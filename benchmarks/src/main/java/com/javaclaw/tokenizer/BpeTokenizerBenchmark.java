@@ -0,0 +1,153 @@
+package com.javaclaw.tokenizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对一段 history 条消息的对话（英文、中文、代码、JSON 工具输出混合）计数 token。
+ * countCold 每次用新建的 BpeTokenizer（片段缓存为空），countWarm 复用同一个（片段缓存已满）；
+ * countMessages 每次新建 TokenCounter（无记忆，片段缓存已热），countMessagesMemo 复用同一个 TokenCounter。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BpeTokenizerBenchmark {
+
+    @Param({"cl100k_base", "o200k_base"})
+    public String encoding;
+
+    @Param({"40"})
+    public int history;
+
+    private Map<String, Integer> ranks;
+    private String pattern;
+    private BpeTokenizer warm;
+    private BpeTokenizer cold;
+    private TokenCounter memo;
+    private List<Map<String, Object>> messages;
+    private String text;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        pattern = Tokenizers.O200K_BASE.equals(encoding) ? BpeTokenizer.O200K_PATTERN : BpeTokenizer.CL100K_PATTERN;
+        ranks = loadRanks(encoding);
+        messages = new ArrayList<>(history);
+        messages.add(message("system", repeat("You are javaClaw, a helpful assistant running on the user's machine. "
+                + "Use the tools when needed and answer concisely.\n", 30)));
+        StringBuilder all = new StringBuilder();
+        for (int i = 1; i < history; i++) {
+            String content;
+            switch (i % 4) {
+                case 1:
+                    content = "Can you check why the build fails on module " + i + "? It worked yesterday, "
+                            + "but after pulling the latest changes `mvn test` reports 3 failures.";
+                    break;
+                case 2:
+                    content = repeat("    public int count(String text) {\n        return text == null ? 0 : text.length() + "
+                            + i + ";\n    }\n", 8);
+                    break;
+                case 3:
+                    content = repeat("{\"path\":\"src/main/java/File" + i + ".java\",\"size\":" + (1024 * i)
+                            + ",\"modified\":\"2024-05-0" + (i % 9 + 1) + "T10:15:30Z\"}\n", 10);
+                    break;
+                default:
+                    content = repeat("请帮我总结一下第 " + i + " 次会议的要点，并列出下一步的行动项和负责人。", 4);
+                    break;
+            }
+            messages.add(message(i % 2 == 1 ? "user" : "assistant", content));
+            all.append(content).append('\n');
+        }
+        text = all.toString();
+        warm = new BpeTokenizer(encoding, ranks, pattern);
+        warm.count(text);
+        memo = new TokenCounter(warm);
+    }
+
+    @Setup(Level.Invocation)
+    public void newCold() {
+        cold = new BpeTokenizer(encoding, ranks, pattern);
+    }
+
+    @Benchmark
+    public int countCold() {
+        return cold.count(text);
+    }
+
+    @Benchmark
+    public int countWarm() {
+        return warm.count(text);
+    }
+
+    @Benchmark
+    public int countMessages() {
+        return new TokenCounter(warm).countMessages(messages);
+    }
+
+    @Benchmark
+    public int countMessagesMemo() {
+        return memo.countMessages(messages);
+    }
+
+    /** 与 BpeTokenizer.load 相同的解析，只读一次，供每次新建冷的 BpeTokenizer */
+    private static Map<String, Integer> loadRanks(String encoding) throws IOException {
+        Map<String, Integer> ranks = new HashMap<>(1 << 18);
+        Base64.Decoder decoder = Base64.getDecoder();
+        InputStream in = BpeTokenizerBenchmark.class.getClassLoader()
+                .getResourceAsStream("tokenizer/" + encoding + ".tiktoken");
+        if (in == null) {
+            throw new IOException("tokenizer/" + encoding + ".tiktoken not on the classpath");
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int sp = line.indexOf(' ');
+                if (sp > 0) {
+                    byte[] token = decoder.decode(line.substring(0, sp));
+                    ranks.put(new String(token, StandardCharsets.ISO_8859_1), Integer.parseInt(line.substring(sp + 1).trim()));
+                }
+            }
+        }
+        return ranks;
+    }
+
+    private static Map<String, Object> message(String role, String content) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("role", role);
+        m.put("content", content);
+        return m;
+    }
+
+    private static String repeat(String s, int n) {
+        StringBuilder sb = new StringBuilder(s.length() * n);
+        for (int i = 0; i < n; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
@@ -4,18 +4,32 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.javaclaw.bus.InboundMessage;
 import com.javaclaw.bus.MessageBus;
 import com.javaclaw.bus.OutboundMessage;
+import com.javaclaw.bus.OverflowPolicy;
 import com.javaclaw.config.ExecToolConfig;
 import com.javaclaw.config.MCPServerConfig;
 import com.javaclaw.cron.CronService;
+import com.javaclaw.metrics.MetricsWriter;
+import com.javaclaw.metrics.TokenUsageTracker;
+import com.javaclaw.providers.ConversationBuffer;
 import com.javaclaw.providers.LLMProvider;
+import com.javaclaw.providers.LLMRequestScope;
 import com.javaclaw.providers.ToolCallRequest;
 import com.javaclaw.session.Session;
 import com.javaclaw.session.SessionManager;
+import com.javaclaw.tokenizer.TokenCounter;
 import com.javaclaw.agent.tools.*;
 
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 /**
@@ -25,6 +39,12 @@ public class AgentLoop {
 
     private static final ObjectMapper MAPPER = new ObjectMapper();
     private static final String REFLECT_USER_MSG = "Reflect on the results and decide next steps.";
+    /** 主循环一次从总线批量取出的入站消息上限 */
+    private static final int INBOUND_BATCH = 64;
+    /** 记忆合并时要求 LLM 将长期记忆控制在的字符数 */
+    private static final int MEMORY_MAX_CHARS = 4000;
+    /** 分片暂存过多时派发循环的等待间隔（毫秒） */
+    private static final long PARKED_BACKOFF_MS = 20;
 
     private final MessageBus bus;
     private final LLMProvider provider;
@@ -41,10 +61,35 @@ public class AgentLoop {
     private final ContextBuilder contextBuilder;
     private final MemoryStore memoryStore;
     private final SkillsLoader skillsLoader;
+    private volatile ConsolidationScheduler consolidationScheduler = new ConsolidationScheduler(1);
 
     private final AtomicBoolean running = new AtomicBoolean(true);
     private CronService cronService;
     private Map<String, MCPServerConfig> mcpServers;
+    /** 工作线程（分片）数，&lt;= 0 表示取 CPU 核数 */
+    private int workerThreads;
+    /** 每个分片的队列容量 */
+    private int workerQueueCapacity;
+    private boolean fairScheduling;
+    private volatile AgentWorkerPool workerPool;
+    /** Agent 引擎：threaded（按会话分片的工作线程）或 event（事件驱动状态机） */
+    private String engine = "threaded";
+    /** event 引擎的事件线程数 */
+    private int eventThreads;
+    private volatile EventDrivenAgentEngine eventEngine;
+    private long debounceMs;
+    private volatile InboundDebouncer debouncer;
+    /** 同一轮内可并发工具调用的执行器；null 表示全部串行 */
+    private ExecutorService toolExecutor;
+    /** 流式接收时提前派发参数已完整的工具调用（需同时开启并发工具调用） */
+    private boolean earlyToolDispatch;
+    /** runAgentLoopAsync 中执行一轮工具调用的线程池（轮内的并发批次仍交给 toolExecutor） */
+    private final ExecutorService asyncToolRunner = java.util.concurrent.Executors.newCachedThreadPool(daemonThreads("agent-async-tool-"));
+    /** provider 返回的 token 用量，按会话、渠道、模型累计 */
+    private final TokenUsageTracker tokenUsage = new TokenUsageTracker();
+    /** 上下文 token 预算（模型上下文窗口），&lt;= 0 表示按 memoryWindow 条数截取历史 */
+    private int contextWindowTokens;
+    private TokenCounter tokenCounter;
 
     public AgentLoop(MessageBus bus,
                     LLMProvider provider,
@@ -80,6 +125,15 @@ public class AgentLoop {
         registerDefaultTools();
     }
 
+    private static java.util.concurrent.ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger seq = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
     /** 注册默认工具：read_file、write_file、list_dir、exec、message */
     private void registerDefaultTools() {
         toolRegistry.register(new ReadFileTool(workspace, restrictToWorkspace));
@@ -89,22 +143,222 @@ public class AgentLoop {
         toolRegistry.register(new MessageTool(bus));
     }
 
-    /** 主循环：不断 consumeInbound，processMessage，publishOutbound */
+    /** 设置工作线程池：threads 为分片数（&lt;= 0 取 CPU 核数），queueCapacity 为每个分片的队列容量。需在 run() 之前调用。 */
+    public void setWorkers(int threads, int queueCapacity) {
+        this.workerThreads = threads;
+        this.workerQueueCapacity = queueCapacity;
+    }
+
+    /**
+     * 按会话防抖：同一会话连续的消息在 ms 毫秒内（或上一轮仍在排队/处理时）合并为一轮，0 表示关闭。
+     * "/" 命令不合并。需在 run() 之前调用。
+     */
+    public void setDebounce(long ms) {
+        this.debounceMs = ms;
+    }
+
+    /** 工作分片队列改为公平调度：用户消息优先于后台消息，分片内各会话轮流处理。需在 run() 之前调用。 */
+    public void setFairScheduling(boolean fair) {
+        this.fairScheduling = fair;
+    }
+
+    /**
+     * 开启/关闭同一轮 LLM 响应内工具调用的并发执行。maxConcurrency 为并发上限（&lt;= 0 取 4）。
+     * 只有声明 isConcurrencySafe 的工具会并发，其余仍按原顺序串行；结果始终按调用顺序写回消息列表。
+     */
+    public void setParallelToolCalls(boolean enabled, int maxConcurrency) {
+        ExecutorService old = toolExecutor;
+        if (enabled) {
+            int n = maxConcurrency > 0 ? maxConcurrency : 4;
+            AtomicInteger seq = new AtomicInteger();
+            ThreadPoolExecutor exec = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), r -> {
+                        Thread t = new Thread(r, "agent-tool-" + seq.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+            exec.allowCoreThreadTimeOut(true);
+            toolExecutor = exec;
+        } else {
+            toolExecutor = null;
+        }
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * 开启后以流式方式请求 LLM，某个工具调用的参数一旦成为完整 JSON 即提前执行（仅开头连续的可并发调用），
+     * 与模型继续生成后续内容的时间重叠。需配合 setParallelToolCalls(true, ...) 使用。
+     */
+    public void setEarlyToolDispatch(boolean enabled) {
+        this.earlyToolDispatch = enabled;
+    }
+
+    /** 设置记忆合并的并发上限（全局共享调度器，同一会话的重复请求会合并） */
+    public void setConsolidationConcurrency(int maxConcurrent) {
+        ConsolidationScheduler old = consolidationScheduler;
+        consolidationScheduler = new ConsolidationScheduler(maxConcurrent);
+        old.shutdown();
+    }
+
+    public ConsolidationScheduler getConsolidationScheduler() {
+        return consolidationScheduler;
+    }
+
+    /**
+     * 按 token 预算截取历史：contextWindowTokens 为模型上下文窗口，扣除 maxTokens 回复预留与工具定义后用于 system + 历史 + 当前消息。
+     * contextWindowTokens &lt;= 0 或 counter 为 null 时恢复按 memoryWindow 条数截取。
+     */
+    public void setContextTokenBudget(int contextWindowTokens, TokenCounter counter) {
+        this.contextWindowTokens = contextWindowTokens;
+        this.tokenCounter = counter;
+    }
+
+    /** 设置 system prompt 布局（classic / stableFirst） */
+    public void setPromptLayout(String layout) {
+        contextBuilder.setLayout(ContextBuilder.PromptLayout.parse(layout));
+    }
+
+    /**
+     * 选择 run() 使用的引擎：threaded（默认，每个分片线程同步处理消息）或 event（事件驱动状态机，
+     * 等待 LLM 时不占线程，eventThreads 个事件线程即可推进大量会话）。需在 run() 之前调用。
+     */
+    public void setEngine(String engine, int eventThreads) {
+        this.engine = engine != null && !engine.isEmpty() ? engine : "threaded";
+        this.eventThreads = eventThreads;
+    }
+
+    /** 主循环：不断批量 drainInbound，按 sessionKey 分派到工作线程池；各分片线程 processMessage 后 publishOutbound */
     public void run() {
-        while (running.get()) {
-            try {
-                InboundMessage msg = bus.consumeInbound();
-                OutboundMessage response = processMessage(msg);
-                if (response != null) {
-                    bus.publishOutbound(response);
+        if ("event".equalsIgnoreCase(engine)) {
+            runEventDriven();
+            return;
+        }
+        AgentWorkerPool pool = new AgentWorkerPool(workerThreads, workerQueueCapacity, fairScheduling, this::handleInbound);
+        workerPool = pool;
+        pool.start();
+        InboundDebouncer deb = newDebouncer(msg -> dispatch(pool, msg));
+        List<InboundMessage> batch = new ArrayList<>(INBOUND_BATCH);
+        try {
+            while (running.get()) {
+                try {
+                    if (pool.getParked() >= pool.getQueueCapacity()) {
+                        // 分片暂存已满一个分片的量：暂停取消息，背压留在总线（BLOCK 时渠道入队阻塞）
+                        Thread.sleep(PARKED_BACKOFF_MS);
+                        continue;
+                    }
+                    bus.drainInbound(batch, INBOUND_BATCH, 1, TimeUnit.SECONDS);
+                    for (InboundMessage msg : batch) {
+                        if (deb != null) {
+                            deb.submit(msg);
+                        } else {
+                            dispatch(pool, msg);
+                        }
+                    }
+                    batch.clear();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
             }
+        } finally {
+            if (deb != null) {
+                deb.stop();
+            }
+            pool.stop();
         }
     }
 
+    /**
+     * 非阻塞投递到工作分片；分片满时按总线的入站溢出策略处理：DROP_OLDEST 挤掉该分片最早的一条，
+     * REJECT 拒绝并回复繁忙提示，BLOCK 暂存到该分片，不阻塞派发线程、不挡住其他分片。
+     */
+    private void dispatch(AgentWorkerPool pool, InboundMessage msg) {
+        while (!pool.offer(msg)) {
+            OverflowPolicy policy = bus.getInboundPolicy();
+            if (policy == OverflowPolicy.REJECT) {
+                bus.rejectInbound(msg);
+                turnFinished(msg);
+                return;
+            }
+            InboundMessage victim = policy == OverflowPolicy.DROP_OLDEST ? pool.dropOldest(msg) : null;
+            if (victim == null) {
+                pool.park(msg);
+                return;
+            }
+            bus.dropInbound(victim);
+            turnFinished(victim);
+        }
+    }
+
+    private InboundDebouncer newDebouncer(Consumer<InboundMessage> sink) {
+        InboundDebouncer deb = debounceMs > 0 ? new InboundDebouncer(debounceMs, sink) : null;
+        debouncer = deb;
+        return deb;
+    }
+
+    /** event 引擎主循环：入站消息交给事件驱动引擎，同一会话内按序处理 */
+    private void runEventDriven() {
+        EventDrivenAgentEngine eng = new EventDrivenAgentEngine(this, maxIterations, eventThreads, bus);
+        eventEngine = eng;
+        InboundDebouncer deb = newDebouncer(eng::submit);
+        List<InboundMessage> batch = new ArrayList<>(INBOUND_BATCH);
+        try {
+            while (running.get()) {
+                try {
+                    bus.drainInbound(batch, INBOUND_BATCH, 1, TimeUnit.SECONDS);
+                    for (InboundMessage msg : batch) {
+                        if (deb != null) {
+                            deb.submit(msg);
+                        } else {
+                            eng.submit(msg);
+                        }
+                    }
+                    batch.clear();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            if (deb != null) {
+                deb.stop();
+            }
+            eng.stop();
+        }
+    }
+
+    private void handleInbound(InboundMessage msg) {
+        bus.recordInboundStart(msg);
+        try {
+            OutboundMessage response = processMessage(msg);
+            if (response != null) {
+                bus.publishOutbound(response);
+            }
+        } finally {
+            turnFinished(msg);
+        }
+    }
+
+    /**
+     * 一条入站消息处理结束（成功或失败）：回复已入队（并写入 WAL）后再确认，处理失败也确认，避免重启后反复重放同一条；
+     * 再通知防抖器该会话空出，攒着的消息可以发出。
+     */
+    void turnFinished(InboundMessage msg) {
+        bus.ackInbound(msg);
+        InboundDebouncer deb = debouncer;
+        if (deb != null) {
+            deb.done(msg);
+        }
+    }
+
+    /** 工作线程池各分片统计；run() 未启动时返回空列表 */
+    public List<AgentWorkerPool.ShardStats> getWorkerStats() {
+        AgentWorkerPool pool = workerPool;
+        return pool != null ? pool.getStats() : Collections.<AgentWorkerPool.ShardStats>emptyList();
+    }
+
     /** 处理单条入站消息：session、命令、buildMessages、runAgentLoop、写 session、返回 OutboundMessage */
     public OutboundMessage processMessage(InboundMessage msg) {
         return processMessage(msg, null, null);
@@ -118,15 +372,51 @@ public class AgentLoop {
      * 同上；streamConsumer 非 null 时，将 LLM 的 content 增量回调（流式输出）。仅最后一轮纯文本回复会流式。
      */
     public OutboundMessage processMessage(InboundMessage msg, String sessionKeyOverride, Consumer<String> streamConsumer) {
+        if ("system".equals(msg.getChannel())) {
+            return processSystemMessage(msg);
+        }
+        Turn turn = prepareTurn(msg, sessionKeyOverride);
+        if (turn.immediateReply != null) {
+            return turn.immediateReply;
+        }
+        // 会话 key 随线程带给 provider 装饰器（准入控制按会话公平排队）
+        RunResult result = LLMRequestScope.call(turn.sessionKey,
+                () -> runAgentLoop(turn.initialMessages, streamConsumer, turn.requestContext));
+        return completeTurn(turn, result);
+    }
+
+    /**
+     * 一条入站消息的处理上下文：prepareTurn 产出，runAgentLoop（或事件驱动引擎）执行后交给 completeTurn 落盘。
+     * immediateReply 非 null 表示命令类消息（/new、/help）已直接处理，无需调用 LLM。
+     */
+    static final class Turn {
+        final InboundMessage msg;
+        final String sessionKey;
+        final Session session;
+        final String content;
+        final Map<String, Object> requestContext;
+        final List<Map<String, Object>> initialMessages;
+        final OutboundMessage immediateReply;
+
+        Turn(InboundMessage msg, String sessionKey, Session session, String content, Map<String, Object> requestContext,
+             List<Map<String, Object>> initialMessages, OutboundMessage immediateReply) {
+            this.msg = msg;
+            this.sessionKey = sessionKey;
+            this.session = session;
+            this.content = content;
+            this.requestContext = requestContext;
+            this.initialMessages = initialMessages;
+            this.immediateReply = immediateReply;
+        }
+    }
+
+    /** 加载会话、处理命令、按需调度记忆合并并构建本轮初始消息（非 system 渠道） */
+    Turn prepareTurn(InboundMessage msg, String sessionKeyOverride) {
         String sessionKey = sessionKeyOverride != null ? sessionKeyOverride : msg.getSessionKey();
         String channel = msg.getChannel();
         String chatId = msg.getChatId();
         String content = msg.getContent() != null ? msg.getContent() : "";
 
-        if ("system".equals(channel)) {
-            return processSystemMessage(msg);
-        }
-
         Session session = sessionManager.getOrCreate(sessionKey);
 
         if (content.trim().equals("/new")) {
@@ -134,35 +424,47 @@ public class AgentLoop {
             sessionManager.save(session);
             OutboundMessage out = new OutboundMessage(channel, chatId, "New session started.");
             out.setMetadata(msg.getMetadata() != null ? msg.getMetadata() : java.util.Collections.emptyMap());
-            return out;
+            return new Turn(msg, sessionKey, session, content, null, null, out);
         }
         if (content.trim().equals("/help")) {
             OutboundMessage out = new OutboundMessage(channel, chatId,
                     "Commands: /new (clear session), /help (this message).");
             out.setMetadata(msg.getMetadata() != null ? msg.getMetadata() : java.util.Collections.emptyMap());
-            return out;
+            return new Turn(msg, sessionKey, session, content, null, null, out);
         }
 
-        if (session.getMessages().size() > memoryWindow) {
+        if (session.getMessageCount() - session.getConsolidatedIndex() > memoryWindow) {
             Session s = session;
-            java.util.concurrent.ExecutorService exec = java.util.concurrent.Executors.newSingleThreadExecutor();
-            exec.submit(() -> consolidateMemory(s, false));
-            exec.shutdown();
+            consolidationScheduler.schedule(sessionKey, () -> consolidateMemory(s, false));
         }
 
         Map<String, Object> requestContext = new HashMap<>();
         requestContext.put("channel", channel);
         requestContext.put("chatId", chatId);
         requestContext.put("metadata", msg.getMetadata() != null ? msg.getMetadata() : Collections.emptyMap());
-        List<Map<String, Object>> history = session.getHistory(memoryWindow);
         List<String> skillNames = skillsLoader.getAlwaysSkills();
-        List<Map<String, Object>> initialMessages = contextBuilder.buildMessages(
-                history, content, skillNames, msg.getMedia(), channel, chatId);
-        RunResult result = runAgentLoop(initialMessages, streamConsumer, requestContext);
-        session.addMessage("user", content, null);
-        session.addMessage("assistant", result.getContent(), null);
-        sessionManager.save(session);
-        OutboundMessage out = new OutboundMessage(channel, chatId, result.getContent());
+        List<Map<String, Object>> initialMessages;
+        TokenCounter counter = tokenCounter;
+        if (contextWindowTokens > 0 && counter != null) {
+            int budget = contextWindowTokens - maxTokens - counter.countText(toolRegistry.getDefinitions().getJson());
+            initialMessages = contextBuilder.buildMessages(session.getHistory(Integer.MAX_VALUE), content, skillNames,
+                    msg.getMedia(), channel, chatId, counter, budget);
+        } else {
+            initialMessages = contextBuilder.buildMessages(session.getHistory(memoryWindow), content, skillNames,
+                    msg.getMedia(), channel, chatId);
+        }
+        return new Turn(msg, sessionKey, session, content, requestContext, initialMessages, null);
+    }
+
+    /** 记录 token 用量、写入会话并返回回复消息 */
+    OutboundMessage completeTurn(Turn turn, RunResult result) {
+        InboundMessage msg = turn.msg;
+        tokenUsage.record(turn.sessionKey, msg.getChannel(), model, result.getLlmCalls(),
+                result.getPromptTokens(), result.getCompletionTokens(), result.getCachedTokens());
+        turn.session.addMessage("user", turn.content, null);
+        turn.session.addMessage("assistant", result.getContent(), null);
+        sessionManager.save(turn.session);
+        OutboundMessage out = new OutboundMessage(msg.getChannel(), msg.getChatId(), result.getContent());
         out.setMetadata(msg.getMetadata() != null ? msg.getMetadata() : java.util.Collections.emptyMap());
         return out;
     }
@@ -181,57 +483,241 @@ public class AgentLoop {
     }
 
     public RunResult runAgentLoop(List<Map<String, Object>> initialMessages, Consumer<String> streamConsumer, Map<String, Object> requestContext) {
-        List<Map<String, Object>> messages = new ArrayList<>(initialMessages);
+        // 仅追加：每轮请求只编码新增的 assistant/tool 消息
+        List<Map<String, Object>> messages = new ConversationBuffer(initialMessages);
         List<String> toolsUsed = new ArrayList<>();
+        RunUsage usage = new RunUsage();
         int iter = 0;
         while (iter < maxIterations) {
             iter++;
-            com.javaclaw.providers.LLMResponse response = provider.chat(
-                    messages,
-                    toolRegistry.getDefinitions(),
-                    model,
-                    maxTokens,
-                    temperature,
-                    streamConsumer);
-            if (response.hasToolCalls()) {
-                List<Map<String, Object>> toolCallsForMessage = new ArrayList<>();
-                for (ToolCallRequest tc : response.getToolCalls()) {
-                    Map<String, Object> fn = new HashMap<>();
-                    fn.put("id", tc.getId());
-                    fn.put("type", "function");
-                    Map<String, Object> f = new HashMap<>();
-                    f.put("name", tc.getName());
-                    try {
-                        f.put("arguments", MAPPER.writeValueAsString(tc.getArguments()));
-                    } catch (Exception e) {
-                        f.put("arguments", "{}");
-                    }
-                    fn.put("function", f);
-                    toolCallsForMessage.add(fn);
-                }
-                contextBuilder.addAssistantMessage(messages,
-                        response.getContent(),
-                        toolCallsForMessage,
-                        response.getReasoningContent());
-                for (ToolCallRequest tc : response.getToolCalls()) {
-                    Map<String, Object> params = new HashMap<>(tc.getArguments() != null ? tc.getArguments() : Collections.<String, Object>emptyMap());
-                    if (requestContext != null) {
-                        params.putAll(requestContext);
-                    }
-                    String result = toolRegistry.execute(tc.getName(), params);
-                    toolsUsed.add(tc.getName());
-                    contextBuilder.addToolResult(messages, tc.getId(), tc.getName(), result);
+            EarlyToolCalls early = newEarlyToolCalls();
+            com.javaclaw.providers.LLMResponse response = null;
+            try {
+                response = provider.chat(
+                        messages,
+                        toolRegistry.getDefinitions(),
+                        model,
+                        maxTokens,
+                        temperature,
+                        streamConsumer,
+                        early != null ? earlyToolDispatcher(early, requestContext) : null);
+            } finally {
+                if (early != null) {
+                    early.release(response);
                 }
-                Map<String, Object> userReflect = new HashMap<>();
-                userReflect.put("role", "user");
-                userReflect.put("content", REFLECT_USER_MSG);
-                messages.add(userReflect);
+            }
+            usage.add(response);
+            if (response.hasToolCalls()) {
+                addAssistantToolCalls(messages, response);
+                List<ToolCallRequest> calls = response.getToolCalls();
+                addToolResults(messages, calls, executeToolCalls(calls, requestContext, early), toolsUsed);
             } else {
-                String finalContent = response.getContent() != null ? response.getContent() : "";
-                return new RunResult(finalContent, toolsUsed);
+                return usage.result(response.getContent() != null ? response.getContent() : "", toolsUsed);
             }
         }
-        return new RunResult("[Max tool iterations reached]", toolsUsed);
+        return usage.result("[Max tool iterations reached]", toolsUsed);
+    }
+
+    /**
+     * runAgentLoop 的异步版本：通过 provider.chatAsync 发起每轮请求，等待 LLM 期间不占用线程；
+     * 工具调用在 asyncToolRunner 上执行，完成后接着发下一轮。语义与同步版本一致（含提前派发、token 用量统计）。
+     */
+    public CompletableFuture<RunResult> runAgentLoopAsync(List<Map<String, Object>> initialMessages,
+                                                          Consumer<String> streamConsumer,
+                                                          Map<String, Object> requestContext) {
+        return asyncIteration(new ConversationBuffer(initialMessages), 0, new RunUsage(), new ArrayList<String>(),
+                streamConsumer, requestContext, LLMRequestScope.sessionKey());
+    }
+
+    private CompletableFuture<RunResult> asyncIteration(List<Map<String, Object>> messages, int iter, RunUsage usage,
+                                                        List<String> toolsUsed, Consumer<String> streamConsumer,
+                                                        Map<String, Object> requestContext, String sessionKey) {
+        if (iter >= maxIterations) {
+            return CompletableFuture.completedFuture(usage.result("[Max tool iterations reached]", toolsUsed));
+        }
+        EarlyToolCalls early = newEarlyToolCalls();
+        return requestLlmAsync(messages, streamConsumer, early, requestContext, sessionKey)
+                .thenCompose(response -> {
+                    usage.add(response);
+                    if (!response.hasToolCalls()) {
+                        return CompletableFuture.completedFuture(
+                                usage.result(response.getContent() != null ? response.getContent() : "", toolsUsed));
+                    }
+                    addAssistantToolCalls(messages, response);
+                    List<ToolCallRequest> calls = response.getToolCalls();
+                    return executeToolCallsAsync(calls, requestContext, early)
+                            .thenCompose(results -> {
+                                addToolResults(messages, calls, results, toolsUsed);
+                                return asyncIteration(messages, iter + 1, usage, toolsUsed, streamConsumer, requestContext,
+                                        sessionKey);
+                            });
+                });
+    }
+
+    /**
+     * 异步发起一轮 LLM 请求（early 非 null 时流式接收并提前派发工具调用，请求结束时 release）；
+     * sessionKey 经 LLMRequestScope 交给 provider
+     */
+    CompletableFuture<com.javaclaw.providers.LLMResponse> requestLlmAsync(List<Map<String, Object>> messages,
+                                                                          Consumer<String> streamConsumer,
+                                                                          EarlyToolCalls early,
+                                                                          Map<String, Object> requestContext,
+                                                                          String sessionKey) {
+        CompletableFuture<com.javaclaw.providers.LLMResponse> f = LLMRequestScope.call(sessionKey, () -> provider.chatAsync(
+                messages,
+                toolRegistry.getDefinitions(),
+                model,
+                maxTokens,
+                temperature,
+                streamConsumer,
+                early != null ? earlyToolDispatcher(early, requestContext) : null));
+        if (early == null) {
+            return f;
+        }
+        return f.whenComplete((response, ex) -> early.release(ex == null ? response : null));
+    }
+
+    /** 在 asyncToolRunner 上执行可能阻塞的任务（会话读写、同步处理等） */
+    <T> CompletableFuture<T> executeBlocking(java.util.function.Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, asyncToolRunner);
+    }
+
+    /** 在 asyncToolRunner 上执行一轮工具调用 */
+    CompletableFuture<List<String>> executeToolCallsAsync(List<ToolCallRequest> calls, Map<String, Object> requestContext,
+                                                          EarlyToolCalls early) {
+        return CompletableFuture.supplyAsync(() -> executeToolCalls(calls, requestContext, early), asyncToolRunner);
+    }
+
+    /** 开启提前派发时为本轮新建 EarlyToolCalls，否则返回 null */
+    EarlyToolCalls newEarlyToolCalls() {
+        return earlyToolDispatch && toolExecutor != null ? new EarlyToolCalls() : null;
+    }
+
+    /** 追加带 tool_calls 的 assistant 消息 */
+    void addAssistantToolCalls(List<Map<String, Object>> messages, com.javaclaw.providers.LLMResponse response) {
+        List<Map<String, Object>> toolCallsForMessage = new ArrayList<>();
+        for (ToolCallRequest tc : response.getToolCalls()) {
+            Map<String, Object> fn = new HashMap<>();
+            fn.put("id", tc.getId());
+            fn.put("type", "function");
+            Map<String, Object> f = new HashMap<>();
+            f.put("name", tc.getName());
+            try {
+                f.put("arguments", MAPPER.writeValueAsString(tc.getArguments()));
+            } catch (Exception e) {
+                f.put("arguments", "{}");
+            }
+            fn.put("function", f);
+            toolCallsForMessage.add(fn);
+        }
+        contextBuilder.addAssistantMessage(messages,
+                response.getContent(),
+                toolCallsForMessage,
+                response.getReasoningContent());
+    }
+
+    /** 按调用顺序追加工具结果，再追加一条反思提示 */
+    void addToolResults(List<Map<String, Object>> messages, List<ToolCallRequest> calls, List<String> results,
+                                List<String> toolsUsed) {
+        for (int i = 0; i < calls.size(); i++) {
+            ToolCallRequest tc = calls.get(i);
+            toolsUsed.add(tc.getName());
+            contextBuilder.addToolResult(messages, tc.getId(), tc.getName(), results.get(i));
+        }
+        Map<String, Object> userReflect = new HashMap<>();
+        userReflect.put("role", "user");
+        userReflect.put("content", REFLECT_USER_MSG);
+        messages.add(userReflect);
+    }
+
+    /** 一次 runAgentLoop 内各轮 LLM 调用的 token 用量合计 */
+    static final class RunUsage {
+        private int calls;
+        private long promptTokens;
+        private long completionTokens;
+        private long cachedTokens;
+
+        void add(com.javaclaw.providers.LLMResponse response) {
+            calls++;
+            promptTokens += response.getPromptTokens();
+            completionTokens += response.getCompletionTokens();
+            cachedTokens += response.getCachedTokens();
+        }
+
+        RunResult result(String content, List<String> toolsUsed) {
+            return new RunResult(content, toolsUsed, calls, promptTokens, completionTokens, cachedTokens);
+        }
+    }
+
+    /**
+     * 执行一轮响应中的全部工具调用，返回与 calls 同序的结果。开启并发时，连续的可并发调用分批提交到 toolExecutor 并等待全部完成；
+     * 不可并发的调用在前后批次之间单独串行执行，保证其相对顺序不变。early 为流式阶段已提前派发的调用（按 id），直接等待其结果。
+     */
+    List<String> executeToolCalls(List<ToolCallRequest> calls, Map<String, Object> requestContext,
+                                          EarlyToolCalls early) {
+        List<String> results = new ArrayList<>(calls.size());
+        ExecutorService exec = toolExecutor;
+        int i = 0;
+        while (i < calls.size()) {
+            int end = i;
+            while (exec != null && end < calls.size() && toolRegistry.isConcurrencySafe(calls.get(end).getName())) {
+                end++;
+            }
+            if (end - i < 2) {
+                Future<String> f = early != null ? early.get(calls.get(i).getId()) : null;
+                results.add(f != null ? awaitToolResult(f) : executeToolCall(calls.get(i), requestContext));
+                i++;
+                continue;
+            }
+            List<Future<String>> futures = new ArrayList<>(end - i);
+            for (int j = i; j < end; j++) {
+                ToolCallRequest tc = calls.get(j);
+                Future<String> f = early != null ? early.get(tc.getId()) : null;
+                futures.add(f != null ? f : exec.submit(() -> executeToolCall(tc, requestContext)));
+            }
+            for (Future<String> f : futures) {
+                results.add(awaitToolResult(f));
+            }
+            i = end;
+        }
+        return results;
+    }
+
+    private static String awaitToolResult(Future<String> f) {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "[Error: interrupted]";
+        } catch (ExecutionException e) {
+            return "[Error: " + e.getCause().getMessage() + "]";
+        }
+    }
+
+    /**
+     * 流式阶段的工具调用回调：provider 每解析出一个参数完整的调用即回调，此处把开头连续的只读调用提前提交到 toolExecutor，
+     * 与模型后续输出重叠执行。一旦出现非只读的调用即停止提前派发，其后的调用留给 executeToolCalls 按序处理。
+     * 只读工具即使最终不在响应的 tool_calls 中、被 release 取消，也不会留下副作用。
+     */
+    private Consumer<ToolCallRequest> earlyToolDispatcher(EarlyToolCalls early, Map<String, Object> requestContext) {
+        ExecutorService exec = toolExecutor;
+        boolean[] stopped = {false};
+        return tc -> {
+            if (stopped[0] || tc.getId() == null || !toolRegistry.isReadOnly(tc.getName())) {
+                stopped[0] = true;
+                return;
+            }
+            early.dispatch(tc.getId(), exec, () -> executeToolCall(tc, requestContext));
+        };
+    }
+
+    /** 合并 LLM 参数与 requestContext 后执行单个工具调用 */
+    private String executeToolCall(ToolCallRequest tc, Map<String, Object> requestContext) {
+        Map<String, Object> params = new HashMap<>(tc.getArguments() != null ? tc.getArguments() : Collections.<String, Object>emptyMap());
+        if (requestContext != null) {
+            params.putAll(requestContext);
+        }
+        return toolRegistry.execute(tc.getName(), params);
     }
 
     /** 直接处理一条用户消息（不经过总线），返回 Agent 回复文本。用于 CLI、Cron、Heartbeat。 */
@@ -270,15 +756,57 @@ public class AgentLoop {
         // no-op for now
     }
 
-    /** 记忆合并：将会话片段压缩进 MEMORY.md / HISTORY.md */
+    /**
+     * 记忆合并：将会话片段压缩进 MEMORY.md / HISTORY.md。
+     * 只发送水位线（Session.consolidatedIndex）之后的消息，每次最多 memoryWindow * 2 条；仅在 LLM 返回可解析结果、
+     * 且期间会话未被 /new 清空时推进水位线。
+     * archiveAll 为 true 时分批合并剩余全部消息后清空会话。
+     */
     public void consolidateMemory(Session session, boolean archiveAll) {
         if (session == null) {
             return;
         }
         MemoryStore mem = new MemoryStore(workspace);
+        int batch = memoryWindow * 2;
+        boolean ok = true;
+        while (ok) {
+            int generation;
+            int index;
+            int from;
+            List<Map<String, Object>> chunk;
+            synchronized (session) {
+                generation = session.getGeneration();
+                index = session.getConsolidatedIndex();
+                from = index;
+                if (from == 0 && session.getLastConsolidated() != null) {
+                    // 旧版会话无水位线：当时已合并过最近 memoryWindow * 2 条
+                    from = Math.max(0, session.getMessageCount() - batch);
+                }
+                chunk = session.getMessagesSince(from, batch);
+            }
+            if (chunk.isEmpty()) {
+                break;
+            }
+            ok = consolidateChunk(mem, chunk, session.getKey())
+                    && session.advanceConsolidatedIndex(generation, index, from + chunk.size());
+            if (!archiveAll) {
+                break;
+            }
+        }
+        if (archiveAll) {
+            session.clear();
+        }
+        sessionManager.save(session);
+    }
+
+    /**
+     * 将一段消息与现有长期记忆交给 LLM 合并；LLM 返回整份新的长期记忆替换 MEMORY.md（要求不超过 MEMORY_MAX_CHARS 字符），
+     * 记忆不会随合并次数无限增长。返回是否得到并写入了可解析的结果。
+     */
+    private boolean consolidateChunk(MemoryStore mem, List<Map<String, Object>> chunk, String sessionKey) {
         String existing = mem.readLongTerm();
         StringBuilder toMerge = new StringBuilder();
-        for (Map<String, Object> m : session.getHistory(memoryWindow * 2)) {
+        for (Map<String, Object> m : chunk) {
             Object role = m.get("role");
             Object content = m.get("content");
             if (role != null && content != null) {
@@ -288,36 +816,112 @@ public class AgentLoop {
         List<Map<String, Object>> messages = new ArrayList<>();
         Map<String, Object> sys = new HashMap<>();
         sys.put("role", "system");
-        sys.put("content", "You are a memory consolidation assistant. Reply with JSON only: {\"historyEntry\": \"...\", \"memoryUpdate\": \"...\"}");
+        sys.put("content", "You are a memory consolidation assistant. Reply with JSON only: {\"historyEntry\": \"...\", \"memoryUpdate\": \"...\"}. "
+                + "historyEntry is a short summary of the conversation for the history log. "
+                + "memoryUpdate is the complete new long-term memory that replaces the current one: merge durable facts from the "
+                + "conversation into it, drop outdated or duplicate entries, and keep it under " + MEMORY_MAX_CHARS + " characters.");
         messages.add(sys);
         Map<String, Object> u = new HashMap<>();
         u.put("role", "user");
-        u.put("content", "Summarize the following conversation into a brief memory update.\n\nCurrent memory:\n" + existing + "\n\nConversation:\n" + toMerge);
+        u.put("content", "Current memory:\n" + existing + "\n\nConversation:\n" + toMerge);
         messages.add(u);
-        com.javaclaw.providers.LLMResponse response = provider.chat(messages, Collections.<Map<String, Object>>emptyList(), model, 1024, 0.3);
+        com.javaclaw.providers.LLMResponse response = LLMRequestScope.call(sessionKey,
+                () -> provider.chat(messages, Collections.<Map<String, Object>>emptyList(), model, 1024, 0.3));
+        tokenUsage.record(sessionKey, "memory", model, 1,
+                response.getPromptTokens(), response.getCompletionTokens(), response.getCachedTokens());
         String text = response.getContent();
-        if (text != null && text.trim().startsWith("{")) {
-            try {
-                @SuppressWarnings("unchecked")
-                Map<String, Object> parsed = MAPPER.readValue(text, Map.class);
-                Object he = parsed.get("historyEntry");
-                Object mu = parsed.get("memoryUpdate");
-                if (he != null) {
-                    mem.appendHistory(he.toString());
-                }
-                if (mu != null) {
-                    mem.writeLongTerm(existing + "\n" + mu.toString());
-                }
-            } catch (Exception e) {
-                mem.appendHistory("consolidate failed: " + text);
+        if (text == null || !text.trim().startsWith("{")) {
+            return false;
+        }
+        try {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> parsed = MAPPER.readValue(text, Map.class);
+            Object he = parsed.get("historyEntry");
+            Object mu = parsed.get("memoryUpdate");
+            if (he != null) {
+                mem.appendHistory(he.toString());
+            }
+            if (mu != null && !mu.toString().trim().isEmpty()) {
+                mem.writeLongTerm(mu.toString().trim() + "\n");
             }
+            return true;
+        } catch (Exception e) {
+            mem.appendHistory("consolidate failed: " + text);
+            return false;
         }
-        if (archiveAll) {
-            session.clear();
-        } else {
-            session.setLastConsolidated(java.time.Instant.now());
+    }
+
+    /** token 用量统计（会话 / 渠道 / 模型） */
+    public TokenUsageTracker getTokenUsage() {
+        return tokenUsage;
+    }
+
+    /** 累计 prompt token 数 */
+    public long getPromptTokens() {
+        return tokenUsage.getTotal().getPromptTokens();
+    }
+
+    /** 累计命中 provider 前缀缓存的 prompt token 数 */
+    public long getCachedPromptTokens() {
+        return tokenUsage.getTotal().getCachedTokens();
+    }
+
+    /** 前缀缓存命中率（cached / prompt），无数据时为 0 */
+    public double getPromptCacheHitRate() {
+        long total = getPromptTokens();
+        return total > 0 ? (double) getCachedPromptTokens() / total : 0;
+    }
+
+    /** 输出 Agent 内部运行指标：工作分片、记忆合并调度、请求体编码复用、前缀缓存命中率 */
+    public void collectMetrics(MetricsWriter w) {
+        w.gauge("javaclaw_agent_shard_queue_depth", "Messages queued per agent worker shard");
+        w.counter("javaclaw_agent_shard_processed_total", "Messages processed per agent worker shard");
+        w.counter("javaclaw_agent_shard_failed_total", "Messages failed per agent worker shard");
+        w.counter("javaclaw_agent_shard_busy_seconds_total", "Time spent processing per agent worker shard");
+        for (AgentWorkerPool.ShardStats st : getWorkerStats()) {
+            String shard = String.valueOf(st.getIndex());
+            w.sample("javaclaw_agent_shard_queue_depth", st.getQueueDepth(), "shard", shard);
+            w.sample("javaclaw_agent_shard_processed_total", st.getProcessed(), "shard", shard);
+            w.sample("javaclaw_agent_shard_failed_total", st.getFailed(), "shard", shard);
+            w.sample("javaclaw_agent_shard_busy_seconds_total", st.getBusyMillis() / 1000.0, "shard", shard);
         }
-        sessionManager.save(session);
+        InboundDebouncer deb = debouncer;
+        if (deb != null) {
+            w.counter("javaclaw_agent_debounce_merged_total", "Inbound messages folded into an earlier message of the same chat")
+                    .sample("javaclaw_agent_debounce_merged_total", deb.getMerged());
+            w.gauge("javaclaw_agent_debounce_held", "Inbound messages held by the debouncer waiting to be merged")
+                    .sample("javaclaw_agent_debounce_held", deb.getHeld());
+        }
+        EventDrivenAgentEngine eng = eventEngine;
+        if (eng != null) {
+            w.gauge("javaclaw_agent_runs", "Event engine runs per state");
+            for (Map.Entry<EventDrivenAgentEngine.State, Integer> e : eng.getStateCounts().entrySet()) {
+                w.sample("javaclaw_agent_runs", e.getValue(), "state", e.getKey().name().toLowerCase(Locale.ROOT));
+            }
+            w.gauge("javaclaw_agent_active_sessions", "Sessions with a run in progress")
+                    .sample("javaclaw_agent_active_sessions", eng.getActiveSessions());
+            w.gauge("javaclaw_agent_queued_messages", "Messages waiting behind a run of the same session")
+                    .sample("javaclaw_agent_queued_messages", eng.getQueuedMessages());
+            w.counter("javaclaw_agent_runs_completed_total", "Event engine runs completed")
+                    .sample("javaclaw_agent_runs_completed_total", eng.getCompleted());
+            w.counter("javaclaw_agent_runs_failed_total", "Event engine runs failed")
+                    .sample("javaclaw_agent_runs_failed_total", eng.getFailed());
+        }
+        ConsolidationScheduler cs = consolidationScheduler;
+        w.gauge("javaclaw_consolidation_pending_sessions", "Sessions with a queued or running consolidation")
+                .sample("javaclaw_consolidation_pending_sessions", cs.getPendingSessions());
+        w.counter("javaclaw_consolidation_runs_total", "Consolidation runs")
+                .sample("javaclaw_consolidation_runs_total", cs.getRuns());
+        w.counter("javaclaw_consolidation_coalesced_total", "Consolidation requests merged into a pending run")
+                .sample("javaclaw_consolidation_coalesced_total", cs.getCoalesced());
+        w.counter("javaclaw_consolidation_failures_total", "Failed consolidation runs")
+                .sample("javaclaw_consolidation_failures_total", cs.getFailures());
+        w.counter("javaclaw_request_encoded_bytes_total", "Request message bytes serialized fresh")
+                .sample("javaclaw_request_encoded_bytes_total", ConversationBuffer.getTotalEncodedBytes());
+        w.counter("javaclaw_request_reused_bytes_total", "Request message bytes reused from the serialization cache")
+                .sample("javaclaw_request_reused_bytes_total", ConversationBuffer.getTotalReusedBytes());
+        w.gauge("javaclaw_prompt_cache_hit_ratio", "Cached prompt tokens / prompt tokens")
+                .sample("javaclaw_prompt_cache_hit_ratio", getPromptCacheHitRate());
     }
 
     public ToolRegistry getToolRegistry() {
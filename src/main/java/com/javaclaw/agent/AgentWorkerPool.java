@@ -0,0 +1,251 @@
+package com.javaclaw.agent;
+
+import com.javaclaw.bus.BusQueue;
+import com.javaclaw.bus.InboundMessage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 按 sessionKey 分片的 Agent 工作线程池：同一会话固定落在同一分片，会话内严格有序；不同会话在多个分片上并行。
+ * 每个分片一个线程 + 一个有界队列；投递不阻塞：分片满时 offer 返回 false，由调用方按总线的入站溢出策略挤掉旧消息、
+ * 拒绝或暂存（park），一个繁忙分片不会挡住派发到其他分片。统计各分片队列深度、处理条数与忙碌耗时。
+ * 分片队列默认先进先出；fair 时改用 FairBusQueue：用户消息优先于后台消息，分片内各会话轮流处理。
+ */
+public class AgentWorkerPool {
+
+    private final Shard[] shards;
+    private final Consumer<InboundMessage> handler;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicInteger parkedTotal = new AtomicInteger();
+    private final int queueCapacity;
+
+    /**
+     * @param workers       分片（线程）数，&lt;= 0 时取 CPU 核数
+     * @param queueCapacity 每个分片的队列容量，&lt;= 0 时取 256
+     * @param handler       处理单条入站消息（在分片线程中调用）
+     */
+    public AgentWorkerPool(int workers, int queueCapacity, Consumer<InboundMessage> handler) {
+        this(workers, queueCapacity, false, handler);
+    }
+
+    /**
+     * @param fair 分片队列按优先级与会话公平调度（见 BusQueue.fairInbound）
+     */
+    public AgentWorkerPool(int workers, int queueCapacity, boolean fair, Consumer<InboundMessage> handler) {
+        int n = workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+        int capacity = queueCapacity > 0 ? queueCapacity : 256;
+        this.handler = handler;
+        this.queueCapacity = capacity;
+        this.shards = new Shard[n];
+        for (int i = 0; i < n; i++) {
+            shards[i] = new Shard(i, fair ? BusQueue.fairInbound(capacity) : BusQueue.<InboundMessage>linked(capacity));
+        }
+    }
+
+    /** 启动所有分片线程 */
+    public void start() {
+        if (running.getAndSet(true)) {
+            return;
+        }
+        for (Shard shard : shards) {
+            Thread t = new Thread(shard, "agent-worker-" + shard.index);
+            t.setDaemon(true);
+            shard.thread = t;
+            t.start();
+        }
+    }
+
+    /**
+     * 按 sessionKey 非阻塞投递到对应分片。
+     *
+     * @return 分片队列已满或该分片有暂存消息（为保持会话内顺序不能插队）时返回 false
+     */
+    public boolean offer(InboundMessage msg) {
+        if (msg == null) {
+            return true;
+        }
+        Shard shard = shards[shardOf(msg.getSessionKey())];
+        synchronized (shard) {
+            return shard.parked.isEmpty() && shard.queue.offer(msg);
+        }
+    }
+
+    /**
+     * 从 msg 所在分片挤掉一条排队消息（同会话最早的一条优先）给 msg 腾位置。
+     *
+     * @return 被挤掉的消息，分片为空时为 null
+     */
+    public InboundMessage dropOldest(InboundMessage msg) {
+        return shards[shardOf(msg.getSessionKey())].queue.dropOldest(msg, InboundMessage::getSessionKey);
+    }
+
+    /** 分片满且入站策略为 BLOCK 时暂存到该分片，分片线程腾出空位后按序移入队列 */
+    public void park(InboundMessage msg) {
+        Shard shard = shards[shardOf(msg.getSessionKey())];
+        synchronized (shard) {
+            if (shard.parked.isEmpty() && shard.queue.offer(msg)) {
+                return;
+            }
+            shard.parked.addLast(msg);
+            parkedTotal.incrementAndGet();
+        }
+    }
+
+    /** 所有分片暂存的消息条数；派发循环据此暂停从总线取消息 */
+    public int getParked() {
+        return parkedTotal.get();
+    }
+
+    /** 每个分片的队列容量 */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /** 停止分片线程；队列中尚未处理的消息被丢弃 */
+    public void stop() {
+        running.set(false);
+        for (Shard shard : shards) {
+            if (shard.thread != null) {
+                shard.thread.interrupt();
+            }
+        }
+    }
+
+    public int getWorkerCount() {
+        return shards.length;
+    }
+
+    /** 各分片当前统计 */
+    public List<ShardStats> getStats() {
+        List<ShardStats> out = new ArrayList<>(shards.length);
+        long now = System.nanoTime();
+        for (Shard shard : shards) {
+            long busy = shard.busyNanos.get();
+            long start = shard.currentStart;
+            if (start != 0) {
+                busy += now - start;
+            }
+            int parked;
+            synchronized (shard) {
+                parked = shard.parked.size();
+            }
+            out.add(new ShardStats(shard.index, shard.queue.size() + parked, shard.processed.get(),
+                    shard.failed.get(), TimeUnit.NANOSECONDS.toMillis(busy)));
+        }
+        return out;
+    }
+
+    private int shardOf(String sessionKey) {
+        int h = sessionKey != null ? sessionKey.hashCode() : 0;
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % shards.length;
+    }
+
+    private final class Shard implements Runnable {
+        private final int index;
+        private final BusQueue<InboundMessage> queue;
+        /** 分片满时暂存的消息，按到达顺序；读写持有本分片的锁 */
+        private final ArrayDeque<InboundMessage> parked = new ArrayDeque<>();
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong busyNanos = new AtomicLong();
+        /** 当前消息开始处理的 nanoTime，空闲时为 0 */
+        private volatile long currentStart;
+        private volatile Thread thread;
+
+        Shard(int index, BusQueue<InboundMessage> queue) {
+            this.index = index;
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            while (running.get()) {
+                InboundMessage msg;
+                try {
+                    msg = queue.poll(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (msg == null) {
+                    continue;
+                }
+                unpark();
+                long start = System.nanoTime();
+                currentStart = start;
+                try {
+                    handler.accept(msg);
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    System.err.println("[Agent] worker " + index + " failed on " + msg.getSessionKey() + ": " + e.getMessage());
+                } finally {
+                    currentStart = 0;
+                    busyNanos.addAndGet(System.nanoTime() - start);
+                    processed.incrementAndGet();
+                }
+            }
+        }
+
+        /** 把暂存的消息按序移入刚腾出空位的队列 */
+        private void unpark() {
+            synchronized (this) {
+                while (!parked.isEmpty() && queue.offer(parked.peekFirst())) {
+                    parked.pollFirst();
+                    parkedTotal.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /** 单个分片的统计快照 */
+    public static final class ShardStats {
+
+        private final int index;
+        private final int queueDepth;
+        private final long processed;
+        private final long failed;
+        private final long busyMillis;
+
+        public ShardStats(int index, int queueDepth, long processed, long failed, long busyMillis) {
+            this.index = index;
+            this.queueDepth = queueDepth;
+            this.processed = processed;
+            this.failed = failed;
+            this.busyMillis = busyMillis;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public long getProcessed() {
+            return processed;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getBusyMillis() {
+            return busyMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "shard " + index + ": queue=" + queueDepth + ", processed=" + processed
+                    + ", failed=" + failed + ", busyMs=" + busyMillis;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.javaclaw.agent;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 记忆合并调度器：全局共享、并发数有界的执行器，按会话 key 合并重复请求。
+ * 同一会话已在排队时，新请求直接并入该任务；正在运行时，标记结束后再跑一次（最多再跑一次）。
+ * 因此排队任务数不超过活跃会话数，同一会话也不会并发合并。
+ */
+public class ConsolidationScheduler {
+
+    private final ThreadPoolExecutor executor;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param maxConcurrent 同时执行的合并任务上限，&lt;= 0 时取 1
+     */
+    public ConsolidationScheduler(int maxConcurrent) {
+        int n = maxConcurrent > 0 ? maxConcurrent : 1;
+        AtomicInteger seq = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+            Thread t = new Thread(r, "memory-consolidate-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 为 key 调度一次合并。返回 true 表示新建了任务，false 表示并入了已有任务。
+     * 并入时以最新的 task 为准。
+     */
+    public boolean schedule(String key, Runnable task) {
+        submitted.incrementAndGet();
+        boolean[] created = {false};
+        Job job = jobs.compute(key, (k, j) -> {
+            if (j == null) {
+                created[0] = true;
+                return new Job(k, task);
+            }
+            j.task = task;
+            if (j.started) {
+                j.rerun = true;
+            }
+            return j;
+        });
+        if (created[0]) {
+            executor.execute(job);
+        } else {
+            coalesced.incrementAndGet();
+        }
+        return created[0];
+    }
+
+    /** 执行器队列中等待的任务数 */
+    public int getQueueLength() {
+        return executor.getQueue().size();
+    }
+
+    /** 正在执行的任务数 */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /** 排队或运行中的会话数 */
+    public int getPendingSessions() {
+        return jobs.size();
+    }
+
+    /** 累计调度请求数 */
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    /** 累计被合并掉的请求数 */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /** 累计实际执行次数 */
+    public long getRuns() {
+        return runs.get();
+    }
+
+    /** 累计执行失败次数 */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private final class Job implements Runnable {
+        private final String key;
+        private volatile Runnable task;
+        /** 已开始执行；此后的新请求需要结束后重跑 */
+        private volatile boolean started;
+        private volatile boolean rerun;
+
+        Job(String key, Runnable task) {
+            this.key = key;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            jobs.computeIfPresent(key, (k, j) -> {
+                j.started = true;
+                return j;
+            });
+            try {
+                runs.incrementAndGet();
+                task.run();
+            } catch (Exception e) {
+                failures.incrementAndGet();
+                System.err.println("[Memory] consolidate failed for " + key + ": " + e.getMessage());
+            }
+            boolean[] again = {false};
+            jobs.compute(key, (k, j) -> {
+                if (j != null && j.rerun) {
+                    j.rerun = false;
+                    j.started = false;
+                    again[0] = true;
+                    return j;
+                }
+                return null;
+            });
+            if (again[0]) {
+                executor.execute(this);
+            }
+        }
+    }
+}
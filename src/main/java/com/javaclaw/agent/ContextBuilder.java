@@ -1,24 +1,53 @@
 package com.javaclaw.agent;
 
+import com.javaclaw.tokenizer.TokenCounter;
+
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 组装发给 LLM 的 system prompt 与消息列表：身份、bootstrap 文件、记忆、技能；buildMessages、addToolResult、addAssistantMessage。
+ * system prompt 中除时间外的静态部分会缓存，仅当 bootstrap 文件、MEMORY.md 或技能目录的 mtime/size 变化时重建。
+ * 默认布局 CLASSIC 全部放在 system 消息中；可选布局 STABLE_FIRST：system 消息只含工作区、bootstrap 与技能，
+ * 记忆、时间、渠道信息放到末尾的当前用户消息前，system 消息与历史跨请求逐字节不变，利于 provider 的前缀缓存。
  */
 public class ContextBuilder {
 
+    /** system prompt 布局 */
+    public enum PromptLayout {
+        /** 全部在 system 消息中：时间（精确到分钟）在最前，依次为工作区、bootstrap、记忆、技能 */
+        CLASSIC,
+        /** system 消息为工作区、bootstrap、技能；记忆、时间（精确到分钟）、渠道信息随当前用户消息发送 */
+        STABLE_FIRST;
+
+        /** 解析配置值：stableFirst（不区分大小写）为 STABLE_FIRST，其余（含未配置）为 CLASSIC */
+        public static PromptLayout parse(String value) {
+            if (value != null && value.trim().equalsIgnoreCase("stableFirst")) {
+                return STABLE_FIRST;
+            }
+            return CLASSIC;
+        }
+    }
+
     private static final String[] BOOTSTRAP_FILES = {"AGENTS.md", "SOUL.md", "USER.md", "TOOLS.md", "IDENTITY.md"};
 
     private final Path workspace;
     private final MemoryStore memory;
     private final SkillsLoader skillsLoader;
+    /** 静态部分缓存；文件变化或 skillNames 不同时重建 */
+    private volatile StaticPrompt staticPrompt;
+    private volatile PromptLayout layout = PromptLayout.CLASSIC;
 
     public ContextBuilder(Path workspace) {
         this.workspace = workspace;
@@ -32,10 +61,68 @@ public class ContextBuilder {
         this.skillsLoader = skillsLoader != null ? skillsLoader : new SkillsLoader(workspace, builtinSkillsDir);
     }
 
-    /** 组装系统提示：身份、bootstrap 文件、记忆、技能（常驻 + 摘要） */
+    public void setLayout(PromptLayout layout) {
+        this.layout = layout != null ? layout : PromptLayout.CLASSIC;
+    }
+
+    public PromptLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * 组装系统提示：身份、bootstrap 文件、技能（常驻 + 摘要）；静态部分走缓存。
+     * CLASSIC 布局另含时间与记忆；STABLE_FIRST 布局下二者见 buildTurnContext。
+     */
     public String buildSystemPrompt(List<String> skillNames) {
+        StaticPrompt cached = staticPrompt(skillNames);
+        if (layout == PromptLayout.STABLE_FIRST) {
+            return cached.stable;
+        }
+        return "Current time: " + now() + "\n\n" + cached.head + cached.memory + cached.skills;
+    }
+
+    /**
+     * STABLE_FIRST 布局下随当前用户消息发送的易变上下文：记忆、时间、当前渠道与会话；CLASSIC 布局返回空串。
+     */
+    public String buildTurnContext(List<String> skillNames, String channel, String chatId) {
+        if (layout != PromptLayout.STABLE_FIRST) {
+            return "";
+        }
+        StaticPrompt cached = staticPrompt(skillNames);
+        StringBuilder sb = new StringBuilder(cached.memory.length() + 128);
+        sb.append("<context>\n").append(cached.memory);
+        sb.append("Current time: ").append(now()).append("\n");
+        if (channel != null && chatId != null) {
+            sb.append("Channel: ").append(channel).append(", chat: ").append(chatId).append("\n");
+        }
+        return sb.append("</context>\n\n").toString();
+    }
+
+    private StaticPrompt staticPrompt(List<String> skillNames) {
+        List<String> names = skillNames != null ? skillNames : Collections.<String>emptyList();
+        StaticPrompt cached = staticPrompt;
+        if (cached == null || !cached.skillNames.equals(names) || cached.isStale()) {
+            cached = buildStaticPrompt(names);
+            staticPrompt = cached;
+        }
+        return cached;
+    }
+
+    private static ZonedDateTime now() {
+        return ZonedDateTime.now().truncatedTo(ChronoUnit.MINUTES);
+    }
+
+    /** 读取文件并拼出静态部分，同时记录所依赖路径的 mtime/size 指纹 */
+    private StaticPrompt buildStaticPrompt(List<String> skillNames) {
+        List<Path> watched = new ArrayList<>();
+        for (String name : BOOTSTRAP_FILES) {
+            watched.add(workspace.resolve(name));
+        }
+        watched.add(memory.getMemoryPath());
+        watched.addAll(skillsLoader.getWatchPaths(skillNames));
+        // 先取指纹再读内容：读取期间若有修改，下次检查会发现并重建
+        long[] stamps = fingerprint(watched);
         StringBuilder sb = new StringBuilder();
-        sb.append("Current time: ").append(ZonedDateTime.now()).append("\n\n");
         sb.append("Workspace: ").append(workspace).append("\n\n");
         for (String name : BOOTSTRAP_FILES) {
             Path p = workspace.resolve(name);
@@ -49,21 +136,36 @@ public class ContextBuilder {
             }
         }
         String mem = memory.getMemoryContext();
-        if (mem != null && !mem.isEmpty()) {
-            sb.append(mem);
-        }
+        StringBuilder skills = new StringBuilder();
         if (skillNames != null && !skillNames.isEmpty()) {
-            sb.append(skillsLoader.loadSkillsForContext(skillNames));
+            skills.append(skillsLoader.loadSkillsForContext(skillNames));
+        }
+        skills.append(skillsLoader.buildSkillsSummary());
+        return new StaticPrompt(new ArrayList<>(skillNames), watched, stamps,
+                sb.toString(), mem != null ? mem : "", skills.toString());
+    }
+
+    /** 每个路径取 (mtime 纳秒, size)；不存在记为 (-1, -1) */
+    private static long[] fingerprint(List<Path> paths) {
+        long[] out = new long[paths.size() * 2];
+        for (int i = 0; i < paths.size(); i++) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(paths.get(i), BasicFileAttributes.class);
+                out[i * 2] = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+                out[i * 2 + 1] = attrs.size();
+            } catch (IOException e) {
+                out[i * 2] = -1;
+                out[i * 2 + 1] = -1;
+            }
         }
-        sb.append(skillsLoader.buildSkillsSummary());
-        return sb.toString();
+        return out;
     }
 
     public String buildSystemPrompt() {
         return buildSystemPrompt(skillsLoader.getAlwaysSkills());
     }
 
-    /** 返回给 LLM 的消息列表：[system, ...history, userMessage] */
+    /** 返回给 LLM 的消息列表：[system, ...history, userMessage]；STABLE_FIRST 时 userMessage 前附 buildTurnContext */
     public List<Map<String, Object>> buildMessages(List<Map<String, Object>> history,
                                                    String currentMessage,
                                                    List<String> skillNames,
@@ -83,11 +185,47 @@ public class ContextBuilder {
         }
         Map<String, Object> userMsg = new HashMap<>();
         userMsg.put("role", "user");
-        userMsg.put("content", currentMessage != null ? currentMessage : "");
+        userMsg.put("content", buildTurnContext(skillNames, channel, chatId) + (currentMessage != null ? currentMessage : ""));
         messages.add(userMsg);
         return messages;
     }
 
+    /**
+     * 按 token 预算组装消息：system 与当前消息必定保留，history 从最新往前加入，直到总 token 数将超出 tokenBudget。
+     * tokenBudget 应已扣除回复预留与工具定义所占的 token。
+     */
+    public List<Map<String, Object>> buildMessages(List<Map<String, Object>> history,
+                                                   String currentMessage,
+                                                   List<String> skillNames,
+                                                   List<String> media,
+                                                   String channel,
+                                                   String chatId,
+                                                   TokenCounter counter,
+                                                   int tokenBudget) {
+        List<Map<String, Object>> messages = buildMessages(null, currentMessage, skillNames, media, channel, chatId);
+        if (history == null || history.isEmpty()) {
+            return messages;
+        }
+        // 3 为回复起始的格式开销
+        int used = counter.countMessages(messages) + 3;
+        int from = history.size();
+        while (from > 0) {
+            int n = counter.countMessage(history.get(from - 1));
+            if (used + n > tokenBudget) {
+                break;
+            }
+            used += n;
+            from--;
+        }
+        List<Map<String, Object>> out = new ArrayList<>(messages.size() + history.size() - from);
+        out.add(messages.get(0));
+        for (int i = from; i < history.size(); i++) {
+            out.add(new HashMap<>(history.get(i)));
+        }
+        out.add(messages.get(messages.size() - 1));
+        return out;
+    }
+
     /** 向消息列表追加一条 tool 结果 */
     public void addToolResult(List<Map<String, Object>> messages, String toolCallId, String toolName, String result) {
         Map<String, Object> tr = new HashMap<>();
@@ -115,4 +253,31 @@ public class ContextBuilder {
         }
         messages.add(msg);
     }
+
+    private static final class StaticPrompt {
+        private final List<String> skillNames;
+        private final List<Path> watched;
+        private final long[] stamps;
+        /** 工作区 + bootstrap 文件 */
+        private final String head;
+        private final String memory;
+        /** 常驻技能内容 + 技能摘要 */
+        private final String skills;
+        /** STABLE_FIRST 的 system 消息：head + skills */
+        private final String stable;
+
+        StaticPrompt(List<String> skillNames, List<Path> watched, long[] stamps, String head, String memory, String skills) {
+            this.skillNames = skillNames;
+            this.watched = watched;
+            this.stamps = stamps;
+            this.head = head;
+            this.memory = memory;
+            this.skills = skills;
+            this.stable = head + skills;
+        }
+
+        boolean isStale() {
+            return !java.util.Arrays.equals(stamps, fingerprint(watched));
+        }
+    }
 }
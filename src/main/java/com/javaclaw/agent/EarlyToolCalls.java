@@ -0,0 +1,54 @@
+package com.javaclaw.agent;
+
+import com.javaclaw.providers.LLMResponse;
+import com.javaclaw.providers.ToolCallRequest;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 一轮 LLM 请求在流式阶段提前派发的工具调用（按 id）。响应结束后必须 release：
+ * 最终 tool_calls 中没有的调用（请求出错、换端点重试、回复不含工具调用）被取消，release 之后到达的回调不再派发。
+ */
+final class EarlyToolCalls {
+
+    private final Map<String, Future<String>> futures = new ConcurrentHashMap<>();
+    private boolean released;
+
+    /** 提交一个提前执行的调用；已 release 或同一 id 已派发（如对冲请求的另一路）时忽略 */
+    synchronized void dispatch(String id, ExecutorService exec, Callable<String> task) {
+        if (released || futures.containsKey(id)) {
+            return;
+        }
+        futures.put(id, exec.submit(task));
+    }
+
+    /** 已提前派发的调用结果，没有则为 null */
+    Future<String> get(String id) {
+        return futures.get(id);
+    }
+
+    /** 响应结束：保留 response 的 tool_calls 对应的调用，取消其余；response 为 null 表示请求失败，全部取消 */
+    synchronized void release(LLMResponse response) {
+        released = true;
+        Set<String> keep = new HashSet<>();
+        if (response != null && response.hasToolCalls()) {
+            for (ToolCallRequest tc : response.getToolCalls()) {
+                keep.add(tc.getId());
+            }
+        }
+        for (Iterator<Map.Entry<String, Future<String>>> it = futures.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Future<String>> e = it.next();
+            if (!keep.contains(e.getKey())) {
+                e.getValue().cancel(true);
+                it.remove();
+            }
+        }
+    }
+}
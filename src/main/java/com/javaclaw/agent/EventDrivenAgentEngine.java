@@ -0,0 +1,264 @@
+package com.javaclaw.agent;
+
+import com.javaclaw.bus.InboundMessage;
+import com.javaclaw.bus.MessageBus;
+import com.javaclaw.bus.OutboundMessage;
+import com.javaclaw.providers.ConversationBuffer;
+import com.javaclaw.providers.LLMResponse;
+import com.javaclaw.providers.ToolCallRequest;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 事件驱动的 Agent 引擎：每次运行是一个状态机（AWAITING_LLM → EXECUTING_TOOLS → … → PERSISTING → DONE），
+ * 由 provider.chatAsync 与工具执行 future 的完成事件推进。状态转移都在少量固定的事件线程上执行，
+ * 等待 LLM 期间不占线程，因此少量线程即可同时推进大量会话。
+ * 同一会话的消息按到达顺序逐条运行（上一条 DONE 后才开始下一条）；返回的 RunResult 与 runAgentLoop 一致。
+ */
+class EventDrivenAgentEngine {
+
+    /** 单次运行的状态 */
+    enum State {
+        AWAITING_LLM, EXECUTING_TOOLS, PERSISTING, DONE
+    }
+
+    private final AgentLoop agent;
+    private final int maxIterations;
+    private final MessageBus bus;
+    private final ExecutorService events;
+    /** 会话 key -&gt; 排队中的消息；存在 key 即表示该会话有正在进行的运行 */
+    private final Map<String, ArrayDeque<InboundMessage>> sessions = new HashMap<>();
+    private final Map<State, AtomicInteger> stateCounts = new EnumMap<>(State.class);
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param threads   事件线程数，&lt;= 0 时取 2
+     * @param bus       运行结束后向其发布回复；入站消息的确认经 agent.turnFinished（成功或失败都确认）
+     */
+    EventDrivenAgentEngine(AgentLoop agent, int maxIterations, int threads, MessageBus bus) {
+        this.agent = agent;
+        this.maxIterations = maxIterations;
+        this.bus = bus;
+        AtomicInteger seq = new AtomicInteger();
+        this.events = Executors.newFixedThreadPool(threads > 0 ? threads : 2, r -> {
+            Thread t = new Thread(r, "agent-event-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        for (State s : State.values()) {
+            stateCounts.put(s, new AtomicInteger());
+        }
+    }
+
+    /** 接收一条入站消息：会话空闲时立即开始，否则排在该会话之后 */
+    void submit(InboundMessage msg) {
+        if (msg == null) {
+            return;
+        }
+        String key = msg.getSessionKey();
+        synchronized (sessions) {
+            ArrayDeque<InboundMessage> queue = sessions.get(key);
+            if (queue != null) {
+                queue.add(msg);
+                return;
+            }
+            sessions.put(key, new ArrayDeque<InboundMessage>());
+        }
+        events.execute(() -> start(msg));
+    }
+
+    void stop() {
+        events.shutdownNow();
+    }
+
+    private void start(InboundMessage msg) {
+        bus.recordInboundStart(msg);
+        try {
+            if ("system".equals(msg.getChannel())) {
+                // system 渠道沿用同步处理，放到工具线程上避免阻塞事件线程
+                agent.executeBlocking(() -> agent.processMessage(msg))
+                        .whenCompleteAsync((out, ex) -> {
+                            if (ex != null) {
+                                fail(msg, ex);
+                            } else {
+                                finish(msg, out);
+                            }
+                        }, events);
+                return;
+            }
+            // 加载会话与构建上下文涉及磁盘读写，放到工具线程上
+            agent.executeBlocking(() -> agent.prepareTurn(msg, null))
+                    .whenCompleteAsync((turn, ex) -> {
+                        if (ex != null) {
+                            fail(msg, ex);
+                        } else if (turn.immediateReply != null) {
+                            finish(msg, turn.immediateReply);
+                        } else {
+                            new Run(turn).requestLlm();
+                        }
+                    }, events);
+        } catch (Exception e) {
+            fail(msg, e);
+        }
+    }
+
+    /** 发布回复并让出会话，开始该会话的下一条消息 */
+    private void finish(InboundMessage msg, OutboundMessage out) {
+        if (out != null) {
+            bus.publishOutbound(out);
+        }
+        agent.turnFinished(msg);
+        next(msg.getSessionKey());
+    }
+
+    private void fail(InboundMessage msg, Throwable e) {
+        failed.incrementAndGet();
+        System.err.println("[Agent] event engine failed on " + msg.getSessionKey() + ": " + e.getMessage());
+        agent.turnFinished(msg);
+        next(msg.getSessionKey());
+    }
+
+    private void next(String key) {
+        InboundMessage nextMsg;
+        synchronized (sessions) {
+            ArrayDeque<InboundMessage> queue = sessions.get(key);
+            nextMsg = queue != null ? queue.poll() : null;
+            if (nextMsg == null) {
+                sessions.remove(key);
+                return;
+            }
+        }
+        events.execute(() -> start(nextMsg));
+    }
+
+    /** 当前处于各状态的运行数 */
+    Map<State, Integer> getStateCounts() {
+        Map<State, Integer> out = new EnumMap<>(State.class);
+        for (Map.Entry<State, AtomicInteger> e : stateCounts.entrySet()) {
+            out.put(e.getKey(), e.getValue().get());
+        }
+        return out;
+    }
+
+    /** 有进行中运行的会话数 */
+    int getActiveSessions() {
+        synchronized (sessions) {
+            return sessions.size();
+        }
+    }
+
+    /** 各会话排队等待的消息总数 */
+    int getQueuedMessages() {
+        synchronized (sessions) {
+            int n = 0;
+            for (ArrayDeque<InboundMessage> q : sessions.values()) {
+                n += q.size();
+            }
+            return n;
+        }
+    }
+
+    long getCompleted() {
+        return completed.get();
+    }
+
+    long getFailed() {
+        return failed.get();
+    }
+
+    /** 一次运行的状态机；所有方法只在事件线程上调用 */
+    private final class Run {
+        private final AgentLoop.Turn turn;
+        private final List<Map<String, Object>> messages;
+        private final List<String> toolsUsed = new ArrayList<>();
+        private final AgentLoop.RunUsage usage = new AgentLoop.RunUsage();
+        private State state;
+        private int iter;
+
+        Run(AgentLoop.Turn turn) {
+            this.turn = turn;
+            this.messages = new ConversationBuffer(turn.initialMessages);
+        }
+
+        private void enter(State next) {
+            if (state != null) {
+                stateCounts.get(state).decrementAndGet();
+            }
+            state = next;
+            if (next != State.DONE) {
+                stateCounts.get(next).incrementAndGet();
+            }
+        }
+
+        /** → AWAITING_LLM；迭代用尽时直接进入 PERSISTING */
+        void requestLlm() {
+            if (iter >= maxIterations) {
+                persist("[Max tool iterations reached]");
+                return;
+            }
+            iter++;
+            enter(State.AWAITING_LLM);
+            EarlyToolCalls early = agent.newEarlyToolCalls();
+            agent.requestLlmAsync(messages, null, early, turn.requestContext, turn.sessionKey)
+                    .whenCompleteAsync((response, ex) -> {
+                        if (ex != null) {
+                            abort(ex);
+                        } else {
+                            onLlmResponse(response, early);
+                        }
+                    }, events);
+        }
+
+        /** AWAITING_LLM 完成：无工具调用则 PERSISTING，否则 → EXECUTING_TOOLS */
+        private void onLlmResponse(LLMResponse response, EarlyToolCalls early) {
+            usage.add(response);
+            if (!response.hasToolCalls()) {
+                persist(response.getContent() != null ? response.getContent() : "");
+                return;
+            }
+            enter(State.EXECUTING_TOOLS);
+            agent.addAssistantToolCalls(messages, response);
+            List<ToolCallRequest> calls = response.getToolCalls();
+            agent.executeToolCallsAsync(calls, turn.requestContext, early)
+                    .whenCompleteAsync((results, ex) -> {
+                        if (ex != null) {
+                            abort(ex);
+                        } else {
+                            agent.addToolResults(messages, calls, results, toolsUsed);
+                            requestLlm();
+                        }
+                    }, events);
+        }
+
+        /** → PERSISTING：在工具线程上写会话、记用量，完成后发布回复并 DONE */
+        private void persist(String content) {
+            enter(State.PERSISTING);
+            RunResult result = usage.result(content, toolsUsed);
+            agent.executeBlocking(() -> agent.completeTurn(turn, result))
+                    .whenCompleteAsync((out, ex) -> {
+                        if (ex != null) {
+                            abort(ex);
+                            return;
+                        }
+                        enter(State.DONE);
+                        completed.incrementAndGet();
+                        finish(turn.msg, out);
+                    }, events);
+        }
+
+        private void abort(Throwable e) {
+            enter(State.DONE);
+            fail(turn.msg, e);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.javaclaw.agent;
+
+import com.javaclaw.bus.InboundMessage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 按会话防抖：同一会话同一发送者连续发来的短消息先攒着，安静 windowMs 后合并成一条再交给 Agent；
+ * 该会话上一轮仍在排队或处理中时继续攒，上一轮结束后再合并发出，一次 LLM 往返回答整段话。
+ * 以 "/" 开头的命令与 system 渠道消息不合并：先发出已攒的消息，再原样发出。
+ * 连续输入时攒的时长最多为 MAX_HOLD_FACTOR 个窗口，避免一直不回复。
+ * 要发出的消息在锁内按决定的先后排入 releases，由定时线程依次交给 sink，命令不会越过先攒的合并消息；
+ * done() 由工作线程调用，只排队不直接调用 sink。
+ * stop() 不再把攒着的消息交给 sink（随后停止的工作线程池会丢弃排队消息）：它们保持未确认，启用 WAL 时下次启动重放，
+ * 未启用 WAL 时与池中排队的消息一样丢失。
+ */
+class InboundDebouncer {
+
+    /** 从第一条开始最多攒多少个窗口 */
+    private static final int MAX_HOLD_FACTOR = 4;
+    /** stop() 等待定时线程交完已排队消息的时长 */
+    private static final long STOP_WAIT_MS = 2000;
+
+    private final long windowNanos;
+    private final Consumer<InboundMessage> sink;
+    private final ScheduledThreadPoolExecutor timer;
+    /** 会话 key -&gt; 攒着的消息 */
+    private final Map<String, Pending> pending = new HashMap<>();
+    /** 会话 key -&gt; 已发出但尚未处理完的条数 */
+    private final Map<String, Integer> inFlight = new HashMap<>();
+    /** 待交给 sink 的消息，按决定发出的先后排列 */
+    private final ArrayDeque<InboundMessage> releases = new ArrayDeque<>();
+    /** 定时线程上是否有 drainReleases 在跑或已排队；保证同一时刻只有一个线程在交 */
+    private boolean draining;
+    private boolean stopped;
+    private final AtomicLong merged = new AtomicLong();
+
+    /**
+     * @param windowMs 防抖窗口（毫秒）
+     * @param sink     合并后的消息交给谁（工作线程池或事件引擎）
+     */
+    InboundDebouncer(long windowMs, Consumer<InboundMessage> sink) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        this.sink = sink;
+        this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "agent-debounce");
+            t.setDaemon(true);
+            return t;
+        });
+        // stop() 后未到期的窗口不再等待，攒着的消息由 stop() 直接发出
+        this.timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /** 接收一条入站消息：立即转发，或攒入该会话等待合并 */
+    void submit(InboundMessage msg) {
+        String key = msg.getSessionKey();
+        boolean direct = false;
+        synchronized (this) {
+            Pending p = pending.get(key);
+            if (stopped) {
+                // 已停止：不再攒，直接交出
+                direct = true;
+            } else if (!mergeable(msg) || (p != null && !p.senderId.equals(String.valueOf(msg.getSenderId())))) {
+                // 命令、system 消息或换了发送者：已攒的先发，保持顺序
+                if (p != null) {
+                    pending.remove(key);
+                    release(dispatch(key, p));
+                }
+                release(dispatch(key, msg));
+            } else {
+                long now = System.nanoTime();
+                if (p == null) {
+                    p = new Pending(String.valueOf(msg.getSenderId()), now);
+                    pending.put(key, p);
+                }
+                p.parts.add(msg);
+                p.deadline = Math.min(now + windowNanos, p.firstArrival + windowNanos * MAX_HOLD_FACTOR);
+                schedule(key, p.deadline - now);
+            }
+        }
+        if (direct) {
+            sink.accept(msg);
+        }
+    }
+
+    /** 一条由本防抖器发出的消息处理完毕（成功或失败） */
+    void done(InboundMessage msg) {
+        String key = msg.getSessionKey();
+        synchronized (this) {
+            Integer n = inFlight.get(key);
+            if (n == null) {
+                return;
+            }
+            if (n > 1) {
+                inFlight.put(key, n - 1);
+                return;
+            }
+            inFlight.remove(key);
+            Pending p = pending.get(key);
+            if (p != null && System.nanoTime() >= p.deadline) {
+                pending.remove(key);
+                release(dispatch(key, p));
+            }
+        }
+    }
+
+    /** 停止定时器：等定时线程交完已排队的消息；仍攒着的消息不再发出，留给 WAL 重放 */
+    void stop() {
+        int held;
+        synchronized (this) {
+            stopped = true;
+            held = 0;
+            for (Pending p : pending.values()) {
+                held += p.parts.size();
+            }
+            pending.clear();
+        }
+        timer.shutdown();
+        try {
+            timer.awaitTermination(STOP_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (held > 0) {
+            System.err.println("[Agent] debouncer stopped with " + held + " held message(s), left unacknowledged");
+        }
+    }
+
+    /** 被合并掉的消息条数（合并成一条的 n 条计 n - 1） */
+    long getMerged() {
+        return merged.get();
+    }
+
+    /** 正在攒着等待合并的消息条数 */
+    synchronized int getHeld() {
+        int n = 0;
+        for (Pending p : pending.values()) {
+            n += p.parts.size();
+        }
+        return n;
+    }
+
+    private static boolean mergeable(InboundMessage msg) {
+        String content = msg.getContent();
+        return !"system".equals(msg.getChannel()) && content != null && !content.trim().startsWith("/");
+    }
+
+    private void schedule(String key, long delayNanos) {
+        timer.schedule(() -> fire(key), Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+    }
+
+    /** 窗口到期：该会话空闲则合并发出，忙则留给 done() */
+    private void fire(String key) {
+        synchronized (this) {
+            Pending p = pending.get(key);
+            // 期间又来了新消息，截止时间已推后，由后来的定时任务处理
+            if (p == null || System.nanoTime() < p.deadline || inFlight.containsKey(key)) {
+                return;
+            }
+            pending.remove(key);
+            release(dispatch(key, p));
+        }
+    }
+
+    /** 排入待发队列，没有在交的就让定时线程去交；调用方持有锁 */
+    private void release(InboundMessage msg) {
+        releases.addLast(msg);
+        if (!draining && !stopped) {
+            draining = true;
+            timer.execute(this::drainReleases);
+        }
+    }
+
+    /** 按排队顺序把待发消息交给 sink；sink 在锁外调用，单条失败记录后按处理完结掉，不影响后面的消息 */
+    private void drainReleases() {
+        while (true) {
+            InboundMessage msg;
+            synchronized (this) {
+                msg = releases.pollFirst();
+                if (msg == null) {
+                    draining = false;
+                    return;
+                }
+            }
+            try {
+                sink.accept(msg);
+            } catch (RuntimeException e) {
+                System.err.println("[Agent] debouncer release failed on " + msg.getSessionKey() + ": " + e.getMessage());
+                // 这条不会再有 done() 回来，自己结掉，免得该会话一直被视为在途
+                done(msg);
+            }
+        }
+    }
+
+    /** 记一条在途并返回要发出的消息；调用方持有锁 */
+    private InboundMessage dispatch(String key, InboundMessage msg) {
+        inFlight.merge(key, 1, Integer::sum);
+        return msg;
+    }
+
+    /** 合并攒着的消息并记一条在途；调用方持有锁 */
+    private InboundMessage dispatch(String key, Pending p) {
+        merged.addAndGet(p.parts.size() - 1);
+        return dispatch(key, InboundMessage.merge(p.parts));
+    }
+
+    private static final class Pending {
+        final String senderId;
+        final long firstArrival;
+        final List<InboundMessage> parts = new ArrayList<>();
+        long deadline;
+
+        Pending(String senderId, long firstArrival) {
+            this.senderId = senderId;
+            this.firstArrival = firstArrival;
+        }
+    }
+}
@@ -60,6 +60,11 @@ public class MemoryStore {
         }
     }
 
+    /** MEMORY.md 路径，供上下文缓存检测变更 */
+    public Path getMemoryPath() {
+        return memoryPath;
+    }
+
     /** 返回带标题的长期记忆片段，供 system prompt 使用 */
     public String getMemoryContext() {
         String raw = readLongTerm();
@@ -4,16 +4,29 @@ import java.util.Collections;
 import java.util.List;
 
 /**
- * runAgentLoop 的返回：最终回复文本与使用过的工具名列表。
+ * runAgentLoop 的返回：最终回复文本、使用过的工具名列表，以及本次循环内各轮 LLM 调用合计的 token 用量。
  */
 public class RunResult {
 
     private final String content;
     private final List<String> toolsUsed;
+    private final int llmCalls;
+    private final long promptTokens;
+    private final long completionTokens;
+    private final long cachedTokens;
 
     public RunResult(String content, List<String> toolsUsed) {
+        this(content, toolsUsed, 0, 0, 0, 0);
+    }
+
+    public RunResult(String content, List<String> toolsUsed,
+                     int llmCalls, long promptTokens, long completionTokens, long cachedTokens) {
         this.content = content != null ? content : "";
         this.toolsUsed = toolsUsed != null ? toolsUsed : Collections.<String>emptyList();
+        this.llmCalls = llmCalls;
+        this.promptTokens = promptTokens;
+        this.completionTokens = completionTokens;
+        this.cachedTokens = cachedTokens;
     }
 
     public String getContent() {
@@ -23,4 +36,22 @@ public class RunResult {
     public List<String> getToolsUsed() {
         return toolsUsed;
     }
+
+    /** 本次循环调用 LLM 的次数 */
+    public int getLlmCalls() {
+        return llmCalls;
+    }
+
+    public long getPromptTokens() {
+        return promptTokens;
+    }
+
+    public long getCompletionTokens() {
+        return completionTokens;
+    }
+
+    /** 其中命中 provider 前缀缓存的 prompt token */
+    public long getCachedTokens() {
+        return cachedTokens;
+    }
 }
@@ -131,6 +131,33 @@ public class SkillsLoader {
         return sb.toString();
     }
 
+    /**
+     * 影响 system prompt 中技能部分的路径：技能根目录、其下各技能子目录，以及 skillNames 对应的 SKILL.md。
+     * 上下文缓存据此做 mtime/size 检测；新增/删除技能会改变根目录或子目录的 mtime。
+     */
+    public List<Path> getWatchPaths(List<String> skillNames) {
+        List<Path> out = new ArrayList<>();
+        for (Path root : new Path[]{workspaceSkillsDir, builtinSkillsDir}) {
+            if (root == null) {
+                continue;
+            }
+            out.add(root);
+            if (Files.isDirectory(root)) {
+                try (java.util.stream.Stream<Path> dirs = Files.list(root)) {
+                    dirs.filter(Files::isDirectory).forEach(out::add);
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            if (skillNames != null) {
+                for (String name : skillNames) {
+                    out.add(root.resolve(name).resolve(SKILL_FILE));
+                }
+            }
+        }
+        return out;
+    }
+
     /** 返回需常驻加载的技能名列表（由 SKILL 元数据决定；暂无元数据时返回空） */
     public List<String> getAlwaysSkills() {
         return Collections.emptyList();
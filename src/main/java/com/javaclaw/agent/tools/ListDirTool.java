@@ -42,6 +42,17 @@ public class ListDirTool extends BaseTool {
         return params;
     }
 
+    /** 只读，可并发执行 */
+    @Override
+    public boolean isConcurrencySafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
     @Override
     public String execute(Map<String, Object> params) {
         Path path = workspace;
@@ -43,6 +43,17 @@ public class ReadFileTool extends BaseTool {
         return params;
     }
 
+    /** 只读，可并发执行 */
+    @Override
+    public boolean isConcurrencySafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
     @Override
     public String execute(Map<String, Object> params) {
         Object p = params.get("path");
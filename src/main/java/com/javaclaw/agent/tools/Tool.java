@@ -21,4 +21,18 @@ public interface Tool {
      * params 为 LLM 传入参数与调用方注入的 channel、chatId、metadata 等合并后的结果。
      */
     String execute(Map<String, Object> params);
+
+    /**
+     * 是否可与同一轮的其它工具调用并发执行。默认 false（串行）；只读或互不影响的工具可覆盖为 true。
+     */
+    default boolean isConcurrencySafe() {
+        return false;
+    }
+
+    /**
+     * 是否只读、无副作用。默认 false；只有只读工具会在流式阶段提前执行（结果可能因响应出错或换端点而被丢弃）。
+     */
+    default boolean isReadOnly() {
+        return false;
+    }
 }
@@ -0,0 +1,74 @@
+package com.javaclaw.agent.tools;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 工具定义的不可变快照：OpenAI function 列表 + 版本号 + 预序列化的 JSON。
+ * 由 ToolRegistry 在工具集变化后重建；实现 JsonSerializable，provider 序列化请求体时直接写出缓存的 JSON，不再遍历 Map。
+ */
+public final class ToolDefinitions extends AbstractList<Map<String, Object>> implements JsonSerializable {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final long version;
+    private final List<Map<String, Object>> definitions;
+    private final SerializedString json;
+
+    ToolDefinitions(long version, List<Map<String, Object>> definitions) {
+        this.version = version;
+        this.definitions = Collections.unmodifiableList(definitions);
+        try {
+            this.json = new SerializedString(MAPPER.writeValueAsString(this.definitions));
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to serialize tool definitions", e);
+        }
+        // 提前编码 UTF-8 字节，之后每次写出只做拷贝
+        this.json.asUnquotedUTF8();
+    }
+
+    /** 快照版本号，每次 register/unregister 后递增 */
+    public long getVersion() {
+        return version;
+    }
+
+    /** 预序列化的 JSON 数组文本（同一快照返回同一实例） */
+    public String getJson() {
+        return json.getValue();
+    }
+
+    /** 预序列化的 UTF-8 JSON 数组 */
+    public byte[] getJsonBytes() {
+        return json.asUnquotedUTF8().clone();
+    }
+
+    @Override
+    public Map<String, Object> get(int index) {
+        return definitions.get(index);
+    }
+
+    @Override
+    public int size() {
+        return definitions.size();
+    }
+
+    @Override
+    public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException {
+        gen.writeRawValue(json);
+    }
+
+    @Override
+    public void serializeWithType(JsonGenerator gen, SerializerProvider serializers, TypeSerializer typeSer) throws IOException {
+        serialize(gen, serializers);
+    }
+}
@@ -2,6 +2,7 @@ package com.javaclaw.agent.tools;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -9,19 +10,28 @@ import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 工具注册表：注册、按名获取、getDefinitions（OpenAI function 列表）、execute。
+ * 定义列表缓存为带版本号的不可变快照，仅在 register/unregister 改变工具集后重建。
  */
 public class ToolRegistry {
 
     private final Map<String, Tool> tools = new ConcurrentHashMap<>();
+    private long version;
+    /** 当前定义快照；工具集变化后置 null，下次 getDefinitions 时重建 */
+    private volatile ToolDefinitions snapshot;
 
-    public void register(Tool tool) {
+    public synchronized void register(Tool tool) {
         if (tool != null) {
             tools.put(tool.getName(), tool);
+            version++;
+            snapshot = null;
         }
     }
 
-    public void unregister(String name) {
-        tools.remove(name);
+    public synchronized void unregister(String name) {
+        if (tools.remove(name) != null) {
+            version++;
+            snapshot = null;
+        }
     }
 
     public Optional<Tool> get(String name) {
@@ -32,10 +42,30 @@ public class ToolRegistry {
         return tools.containsKey(name);
     }
 
-    /** 所有工具的 OpenAI function 定义，供 provider.chat(tools=...) 使用 */
-    public List<Map<String, Object>> getDefinitions() {
+    /** 所有工具的 OpenAI function 定义（按名称排序的不可变快照），供 provider.chat(tools=...) 使用 */
+    public ToolDefinitions getDefinitions() {
+        ToolDefinitions s = snapshot;
+        if (s != null) {
+            return s;
+        }
+        synchronized (this) {
+            if (snapshot == null) {
+                snapshot = new ToolDefinitions(version, buildDefinitions());
+            }
+            return snapshot;
+        }
+    }
+
+    /** 当前工具集版本号，每次 register/unregister 后递增 */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    private List<Map<String, Object>> buildDefinitions() {
+        List<Tool> sorted = new ArrayList<>(tools.values());
+        sorted.sort(Comparator.comparing(Tool::getName));
         List<Map<String, Object>> out = new ArrayList<>();
-        for (Tool t : tools.values()) {
+        for (Tool t : sorted) {
             if (t instanceof BaseTool) {
                 out.add(((BaseTool) t).toSchema());
             } else {
@@ -71,6 +101,18 @@ public class ToolRegistry {
         }
     }
 
+    /** 指定工具是否声明可并发执行；未注册的工具视为不可并发 */
+    public boolean isConcurrencySafe(String name) {
+        Tool tool = name != null ? tools.get(name) : null;
+        return tool != null && tool.isConcurrencySafe();
+    }
+
+    /** 指定工具是否声明只读；未注册的工具视为非只读 */
+    public boolean isReadOnly(String name) {
+        Tool tool = name != null ? tools.get(name) : null;
+        return tool != null && tool.isReadOnly();
+    }
+
     public List<String> getToolNames() {
         return new ArrayList<>(tools.keySet());
     }
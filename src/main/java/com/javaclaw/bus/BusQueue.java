@@ -0,0 +1,50 @@
+package com.javaclaw.bus;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * MessageBus 单个方向的队列实现：多生产者、多消费者，线程安全。
+ * 实现有 LinkedBusQueue（LinkedBlockingQueue，默认）、RingBusQueue（预分配的无锁环形缓冲）
+ * 与 FairBusQueue（按优先级类别与会话公平调度）。
+ */
+public interface BusQueue<T> {
+
+    /** 先进先出的链表队列，capacity &lt;= 0 不限 */
+    static <T> BusQueue<T> linked(int capacity) {
+        return new LinkedBusQueue<>(capacity);
+    }
+
+    /** 入站消息的公平队列：INTERACTIVE 优先于 BACKGROUND，同一类别内按会话轮转 */
+    static BusQueue<InboundMessage> fairInbound(int capacity) {
+        return new FairBusQueue<>(capacity, InboundMessage::getSessionKey,
+                m -> InboundPriority.of(m).ordinal(), InboundPriority.values().length);
+    }
+
+    /** 有空位则入队，否则立即返回 false */
+    boolean offer(T item);
+
+    /** 入队，满时阻塞等待 */
+    void put(T item) throws InterruptedException;
+
+    /** 阻塞取一条 */
+    T take() throws InterruptedException;
+
+    /** 限时取一条，超时返回 null */
+    T poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /** 不阻塞地取出至多 max 条加入 out，返回取出条数 */
+    int drainTo(Collection<? super T> out, int max);
+
+    /**
+     * 为 item 腾出空位：丢弃一条排队消息并返回它，队列为空时返回 null。
+     * 能按会话挑选的实现优先丢弃与 item 同会话的最早一条。
+     */
+    T dropOldest(T item, Function<T, String> sessionKey);
+
+    int size();
+
+    /** 容量；0 表示不限 */
+    int capacity();
+}
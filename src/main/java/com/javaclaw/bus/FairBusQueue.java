@@ -0,0 +1,242 @@
+package com.javaclaw.bus;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * 按优先级类别与会话公平调度的 BusQueue：出队时优先取高优先级类别（序号小）；同一类别内按会话轮转，
+ * 每个会话每轮只出一条，单个会话刷屏不会挡住其他会话。会话内保持先进先出。
+ * 为避免低优先级饿死，连续 STARVATION_LIMIT 次出高优先级后，若低优先级有排队则让出一次。
+ * dropOldest 优先丢同一会话最早的一条，其次丢最低优先级类别中排队最多的会话的最早一条。
+ */
+public class FairBusQueue<T> implements BusQueue<T> {
+
+    /** 低优先级有排队时，高优先级连续出队的最大次数 */
+    private static final int STARVATION_LIMIT = 8;
+
+    private final int capacity;
+    private final Function<T, String> sessionKey;
+    private final ToIntFunction<T> classOf;
+    private final List<Lane> lanes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int count;
+    /** 低优先级等待时高优先级已连续出队的次数 */
+    private int streak;
+
+    /**
+     * @param capacity   容量，&lt;= 0 不限
+     * @param sessionKey 会话键
+     * @param classOf    优先级类别序号，0 最高，越界时按最低处理
+     * @param classes    类别数
+     */
+    public FairBusQueue(int capacity, Function<T, String> sessionKey, ToIntFunction<T> classOf, int classes) {
+        this.capacity = Math.max(0, capacity);
+        this.sessionKey = sessionKey;
+        this.classOf = classOf;
+        this.lanes = new ArrayList<>(Math.max(1, classes));
+        for (int i = 0; i < Math.max(1, classes); i++) {
+            lanes.add(new Lane());
+        }
+    }
+
+    @Override
+    public boolean offer(T item) {
+        lock.lock();
+        try {
+            if (capacity > 0 && count >= capacity) {
+                return false;
+            }
+            enqueue(item);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(T item) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (capacity > 0 && count >= capacity) {
+                notFull.await();
+            }
+            enqueue(item);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> out, int max) {
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < max && count > 0) {
+                out.add(dequeue());
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T dropOldest(T item, Function<T, String> key) {
+        lock.lock();
+        try {
+            if (count == 0) {
+                return null;
+            }
+            String k = key.apply(item);
+            for (Lane lane : lanes) {
+                if (lane.sessions.containsKey(k)) {
+                    return lane.removeFirst(k);
+                }
+            }
+            for (int i = lanes.size() - 1; i >= 0; i--) {
+                String heaviest = null;
+                int most = 0;
+                for (Map.Entry<String, ArrayDeque<T>> e : lanes.get(i).sessions.entrySet()) {
+                    if (e.getValue().size() > most) {
+                        most = e.getValue().size();
+                        heaviest = e.getKey();
+                    }
+                }
+                if (heaviest != null) {
+                    return lanes.get(i).removeFirst(heaviest);
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    /** 调用方持有 lock */
+    private void enqueue(T item) {
+        int c = classOf.applyAsInt(item);
+        Lane lane = lanes.get(c >= 0 && c < lanes.size() ? c : lanes.size() - 1);
+        String key = sessionKey.apply(item);
+        ArrayDeque<T> q = lane.sessions.get(key);
+        if (q == null) {
+            q = new ArrayDeque<>();
+            lane.sessions.put(key, q);
+            lane.rotation.addLast(key);
+        }
+        q.addLast(item);
+        count++;
+        notEmpty.signal();
+    }
+
+    /** 调用方持有 lock 且 count &gt; 0 */
+    private T dequeue() {
+        int first = -1;
+        int lower = -1;
+        for (int i = 0; i < lanes.size(); i++) {
+            if (!lanes.get(i).rotation.isEmpty()) {
+                if (first < 0) {
+                    first = i;
+                } else {
+                    lower = i;
+                    break;
+                }
+            }
+        }
+        int pick = first;
+        if (lower >= 0 && ++streak > STARVATION_LIMIT) {
+            pick = lower;
+        }
+        if (pick != first || lower < 0) {
+            streak = 0;
+        }
+        Lane lane = lanes.get(pick);
+        String key = lane.rotation.pollFirst();
+        ArrayDeque<T> q = lane.sessions.get(key);
+        T item = q.pollFirst();
+        if (q.isEmpty()) {
+            lane.sessions.remove(key);
+        } else {
+            lane.rotation.addLast(key);
+        }
+        count--;
+        notFull.signal();
+        return item;
+    }
+
+    /** 一个优先级类别：各会话的队列与轮转顺序 */
+    private final class Lane {
+        final Map<String, ArrayDeque<T>> sessions = new HashMap<>();
+        /** 有排队消息的会话，队首为下一个出队的会话 */
+        final ArrayDeque<String> rotation = new ArrayDeque<>();
+
+        /** 调用方持有 lock */
+        T removeFirst(String key) {
+            ArrayDeque<T> q = sessions.get(key);
+            T item = q.pollFirst();
+            if (q.isEmpty()) {
+                sessions.remove(key);
+                rotation.remove(key);
+            }
+            count--;
+            notFull.signal();
+            return item;
+        }
+    }
+}
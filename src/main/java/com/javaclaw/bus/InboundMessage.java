@@ -19,6 +19,12 @@ public class InboundMessage {
     private ZonedDateTime timestamp;
     private List<String> media;
     private Map<String, Object> metadata;
+    /** 在 MessageWal 中的记录号，0 表示未记录；不参与序列化 */
+    transient long walId;
+    /** 进入总线的 nanoTime，0 表示未经总线；用于统计排队等待 */
+    transient long enqueuedNanos;
+    /** merge 得到的消息：被合并的原始消息（确认时逐条确认）；否则为 null */
+    transient List<InboundMessage> parts;
 
     public InboundMessage() {
         this.media = new ArrayList<>();
@@ -45,6 +51,36 @@ public class InboundMessage {
         this.metadata = metadata != null ? metadata : Collections.<String, Object>emptyMap();
     }
 
+    /**
+     * 把同一会话连续的几条消息合并为一条：正文按行拼接，media 依次拼接，metadata 取最后一条（被动回复引用最新消息），
+     * 时间戳与排队起点取第一条。只有一条时原样返回。
+     */
+    public static InboundMessage merge(List<InboundMessage> messages) {
+        if (messages.size() == 1) {
+            return messages.get(0);
+        }
+        InboundMessage first = messages.get(0);
+        InboundMessage last = messages.get(messages.size() - 1);
+        StringBuilder content = new StringBuilder();
+        List<String> media = new ArrayList<>();
+        for (InboundMessage m : messages) {
+            if (m.content != null && !m.content.isEmpty()) {
+                if (content.length() > 0) {
+                    content.append('\n');
+                }
+                content.append(m.content);
+            }
+            if (m.media != null) {
+                media.addAll(m.media);
+            }
+        }
+        InboundMessage merged = new InboundMessage(first.channel, last.senderId, first.chatId, content.toString(),
+                first.timestamp, media, last.metadata);
+        merged.enqueuedNanos = first.enqueuedNanos;
+        merged.parts = new ArrayList<>(messages);
+        return merged;
+    }
+
     /** 会话唯一键：channel + ":" + chatId */
     public String getSessionKey() {
         return channel + ":" + chatId;
@@ -0,0 +1,36 @@
+package com.javaclaw.bus;
+
+import java.util.Map;
+
+/**
+ * 入站消息的优先级类别：渠道里用户发来的消息为 INTERACTIVE；system 渠道（子任务回报等）
+ * 以及 metadata.priority 为 background / low 的消息为 BACKGROUND。序号越小越优先。
+ */
+public enum InboundPriority {
+
+    INTERACTIVE("interactive"),
+    BACKGROUND("background");
+
+    private final String label;
+
+    InboundPriority(String label) {
+        this.label = label;
+    }
+
+    /** 指标标签 */
+    public String label() {
+        return label;
+    }
+
+    public static InboundPriority of(InboundMessage msg) {
+        if ("system".equals(msg.getChannel())) {
+            return BACKGROUND;
+        }
+        Map<String, Object> metadata = msg.getMetadata();
+        Object p = metadata != null ? metadata.get("priority") : null;
+        if (p != null && ("background".equalsIgnoreCase(p.toString()) || "low".equalsIgnoreCase(p.toString()))) {
+            return BACKGROUND;
+        }
+        return INTERACTIVE;
+    }
+}
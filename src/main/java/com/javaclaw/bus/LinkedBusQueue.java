@@ -0,0 +1,88 @@
+package com.javaclaw.bus;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 基于 LinkedBlockingQueue 的 BusQueue：可不限容量；dropOldest 按会话挑选丢弃对象。
+ */
+class LinkedBusQueue<T> implements BusQueue<T> {
+
+    private final int capacity;
+    private final BlockingQueue<T> queue;
+
+    /** @param capacity 容量，&lt;= 0 不限 */
+    LinkedBusQueue(int capacity) {
+        this.capacity = Math.max(0, capacity);
+        this.queue = capacity > 0 ? new LinkedBlockingQueue<T>(capacity) : new LinkedBlockingQueue<T>();
+    }
+
+    @Override
+    public boolean offer(T item) {
+        return queue.offer(item);
+    }
+
+    @Override
+    public void put(T item) throws InterruptedException {
+        queue.put(item);
+    }
+
+    @Override
+    public T take() throws InterruptedException {
+        return queue.take();
+    }
+
+    @Override
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.poll(timeout, unit);
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> out, int max) {
+        return queue.drainTo(out, max);
+    }
+
+    /** 丢弃同一会话最早的一条；该会话无排队消息时丢弃排队最多的会话中最早的一条 */
+    @Override
+    public T dropOldest(T item, Function<T, String> sessionKey) {
+        String key = sessionKey.apply(item);
+        Map<String, Integer> counts = new HashMap<>();
+        Map<String, T> oldest = new HashMap<>();
+        T victim = null;
+        for (T queued : queue) {
+            String k = sessionKey.apply(queued);
+            if (k.equals(key)) {
+                victim = queued;
+                break;
+            }
+            counts.merge(k, 1, Integer::sum);
+            oldest.putIfAbsent(k, queued);
+        }
+        if (victim == null) {
+            String heaviest = null;
+            for (Map.Entry<String, Integer> e : counts.entrySet()) {
+                if (heaviest == null || e.getValue() > counts.get(heaviest)) {
+                    heaviest = e.getKey();
+                }
+            }
+            victim = heaviest != null ? oldest.get(heaviest) : null;
+        }
+        // 可能已被消费者取走，调用方重试 offer 即可
+        return victim != null && queue.remove(victim) ? victim : null;
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+}
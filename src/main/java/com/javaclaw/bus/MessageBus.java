@@ -1,52 +1,285 @@
 package com.javaclaw.bus;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import com.javaclaw.metrics.Histogram;
+import com.javaclaw.metrics.MetricsWriter;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
- * 异步消息总线：解耦渠道与 Agent。使用 BlockingQueue 实现入站/出站队列。
- * 渠道 publishInbound，Agent consumeInbound；Agent/Cron publishOutbound，分发循环 consumeOutbound。
+ * 异步消息总线：解耦渠道与 Agent。入站/出站各一个 BusQueue：默认 LinkedBusQueue（LinkedBlockingQueue），
+ * 也可选 RingBusQueue（预分配无锁环形缓冲，必然有界）。
+ * 渠道 publishInbound，Agent consumeInbound / drainInbound；Agent/Cron publishOutbound，分发循环 consumeOutbound / drainOutbound。
+ * 两个队列可分别设容量与溢出策略（OverflowPolicy），避免 LLM 变慢时消息无限堆积；容量 &lt;= 0 表示不限（ring 时取 DEFAULT_RING_CAPACITY）。
+ * 入站可选公平调度（FairBusQueue）：用户消息优先于 system 等后台消息，同一类别内按会话轮转；
+ * 各类别从入队到开始处理的等待时间记入直方图（recordInboundStart）。
+ * 设置 MessageWal 后，消息入队前先落盘，处理完（ackInbound）或发送成功（ackOutbound）后确认，重启时 replayWal 重新入队未确认的消息。
  */
 public class MessageBus {
 
-    private final BlockingQueue<InboundMessage> inbound;
-    private final BlockingQueue<OutboundMessage> outbound;
+    /** 入站被拒绝时回给发送者的默认提示 */
+    public static final String DEFAULT_BUSY_REPLY = "Busy right now, please try again later.";
+    /** 队列实现：链表（默认） */
+    public static final String IMPL_LINKED = "linked";
+    /** 队列实现：无锁环形缓冲 */
+    public static final String IMPL_RING = "ring";
+    /** ring 实现未指定容量时的容量 */
+    public static final int DEFAULT_RING_CAPACITY = 4096;
+
+    private final Lane<InboundMessage> inbound;
+    private final Lane<OutboundMessage> outbound;
     private final AtomicBoolean running = new AtomicBoolean(true);
+    private volatile String busyReply = DEFAULT_BUSY_REPLY;
+    private volatile MessageWal wal;
+    private final Map<InboundPriority, Histogram> inboundWait = new EnumMap<>(InboundPriority.class);
 
+    /** 入站、出站均不限容量 */
     public MessageBus() {
-        this.inbound = new LinkedBlockingQueue<>();
-        this.outbound = new LinkedBlockingQueue<>();
+        this(0, OverflowPolicy.BLOCK, 0, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * @param inboundCapacity  入站队列容量，&lt;= 0 不限
+     * @param inboundPolicy    入站队列满时的策略
+     * @param outboundCapacity 出站队列容量，&lt;= 0 不限
+     * @param outboundPolicy   出站队列满时的策略（REJECT 即丢弃新回复）
+     */
+    public MessageBus(int inboundCapacity, OverflowPolicy inboundPolicy,
+                      int outboundCapacity, OverflowPolicy outboundPolicy) {
+        this(IMPL_LINKED, inboundCapacity, inboundPolicy, outboundCapacity, outboundPolicy);
+    }
+
+    /**
+     * @param impl 队列实现：linked 或 ring；ring 的容量向上取整为 2 的幂，dropOldest 只能丢弃队首
+     */
+    public MessageBus(String impl, int inboundCapacity, OverflowPolicy inboundPolicy,
+                      int outboundCapacity, OverflowPolicy outboundPolicy) {
+        this(impl, false, inboundCapacity, inboundPolicy, outboundCapacity, outboundPolicy);
+    }
+
+    /**
+     * @param fairInbound 入站使用 FairBusQueue（优先级 + 会话轮转）；此时 impl 只作用于出站
+     */
+    public MessageBus(String impl, boolean fairInbound, int inboundCapacity, OverflowPolicy inboundPolicy,
+                      int outboundCapacity, OverflowPolicy outboundPolicy) {
+        boolean ring = IMPL_RING.equalsIgnoreCase(impl);
+        BusQueue<InboundMessage> in = fairInbound ? BusQueue.fairInbound(inboundCapacity) : newQueue(ring, inboundCapacity);
+        this.inbound = new Lane<InboundMessage>("inbound", in, inboundPolicy,
+                InboundMessage::getSessionKey, this::ackInbound);
+        this.outbound = new Lane<OutboundMessage>("outbound", newQueue(ring, outboundCapacity), outboundPolicy,
+                m -> m.getChannel() + ":" + m.getChatId(), this::ackOutbound);
+        for (InboundPriority p : InboundPriority.values()) {
+            inboundWait.put(p, new Histogram(Histogram.LATENCY_SECONDS));
+        }
+    }
+
+    private static <T> BusQueue<T> newQueue(boolean ring, int capacity) {
+        if (ring) {
+            return new RingBusQueue<>(capacity > 0 ? capacity : DEFAULT_RING_CAPACITY);
+        }
+        return new LinkedBusQueue<>(capacity);
+    }
+
+    /** 启用预写日志；需在渠道与 Agent 开始收发之前调用 */
+    public void setWal(MessageWal wal) {
+        this.wal = wal;
+    }
+
+    /**
+     * 把 WAL 中上次未确认的消息重新入队（保留原记录号，不重复写日志）。应在 Agent 与出站分发启动后调用，
+     * 否则有界队列可能阻塞在这里；并在渠道开始接收之前调用，使重放的消息排在新消息之前。
+     *
+     * @return 重新入队的条数
+     */
+    public int replayWal() {
+        MessageWal w = wal;
+        if (w == null) {
+            return 0;
+        }
+        int n = 0;
+        for (OutboundMessage msg : w.drainRecoveredOutbound()) {
+            if (outbound.publish(msg)) {
+                n++;
+            } else {
+                ackOutbound(msg);
+            }
+        }
+        for (InboundMessage msg : w.drainRecoveredInbound()) {
+            msg.enqueuedNanos = System.nanoTime();
+            if (inbound.publish(msg)) {
+                n++;
+            } else {
+                ackInbound(msg);
+            }
+        }
+        return n;
     }
 
-    /** 渠道调用：将用户消息入队 */
-    public void publishInbound(InboundMessage msg) {
-        if (msg != null) {
-            inbound.offer(msg);
+    /**
+     * Agent 开始处理一条入站消息时调用：把它从进入总线到现在的等待时间记入所属类别的直方图。
+     * 未经总线的消息（processDirect）忽略。
+     */
+    public void recordInboundStart(InboundMessage msg) {
+        if (msg == null || msg.enqueuedNanos == 0) {
+            return;
+        }
+        long waited = System.nanoTime() - msg.enqueuedNanos;
+        msg.enqueuedNanos = 0;
+        inboundWait.get(InboundPriority.of(msg)).observe(waited / 1e9);
+    }
+
+    /** 入站消息已处理完（无论成败），在 WAL 中确认；合并消息逐条确认原始消息。未启用 WAL 时无操作 */
+    public void ackInbound(InboundMessage msg) {
+        MessageWal w = wal;
+        if (w != null && msg != null && msg.parts != null) {
+            for (InboundMessage part : msg.parts) {
+                ackInbound(part);
+            }
+        }
+        if (w != null && msg != null && msg.walId > 0) {
+            w.ack(msg.walId);
+            msg.walId = 0;
+        }
+    }
+
+    /** 出站消息已发送成功（或无法投递），在 WAL 中确认；未启用 WAL 时无操作 */
+    public void ackOutbound(OutboundMessage msg) {
+        MessageWal w = wal;
+        if (w != null && msg != null && msg.walId > 0) {
+            w.ack(msg.walId);
+            msg.walId = 0;
+        }
+    }
+
+    /** 入站 REJECT 时回复的文本；null 或空串表示静默拒绝 */
+    public void setBusyReply(String busyReply) {
+        this.busyReply = busyReply;
+    }
+
+    /**
+     * 渠道调用：将用户消息入队。队列满时按入站策略阻塞、挤掉旧消息或拒绝（拒绝时向发送者回复繁忙提示）。
+     *
+     * @return 是否已入队
+     */
+    public boolean publishInbound(InboundMessage msg) {
+        if (msg == null) {
+            return false;
+        }
+        MessageWal w = wal;
+        if (w != null && msg.walId == 0) {
+            msg.walId = w.appendInbound(msg);
+        }
+        msg.enqueuedNanos = System.nanoTime();
+        if (inbound.publish(msg)) {
+            return true;
+        }
+        ackInbound(msg);
+        if (inbound.policy == OverflowPolicy.REJECT) {
+            replyBusy(msg);
+        }
+        return false;
+    }
+
+    /** 入站队列满时的策略；下游（Agent 工作分片）满时也按它处理 */
+    public OverflowPolicy getInboundPolicy() {
+        return inbound.policy;
+    }
+
+    /** 下游按 DROP_OLDEST 挤掉了一条已出队的入站消息：计入 dropped 并确认 WAL */
+    public void dropInbound(InboundMessage victim) {
+        if (victim == null) {
+            return;
+        }
+        inbound.dropped.incrementAndGet();
+        ackInbound(victim);
+    }
+
+    /** 下游按 REJECT 拒绝了一条已出队的入站消息：计入 rejected、确认 WAL 并向发送者回复繁忙提示 */
+    public void rejectInbound(InboundMessage msg) {
+        if (msg == null) {
+            return;
+        }
+        inbound.rejected.incrementAndGet();
+        ackInbound(msg);
+        replyBusy(msg);
+    }
+
+    private void replyBusy(InboundMessage msg) {
+        String reply = busyReply;
+        if (reply != null && !reply.isEmpty() && !"system".equals(msg.getChannel())) {
+            OutboundMessage busy = new OutboundMessage(msg.getChannel(), msg.getChatId(), reply);
+            busy.setMetadata(msg.getMetadata() != null ? msg.getMetadata() : java.util.Collections.<String, Object>emptyMap());
+            // 提示本身不阻塞：出站也满时放弃
+            outbound.queue.offer(busy);
         }
     }
 
     /** Agent 调用：阻塞取一条入站消息 */
     public InboundMessage consumeInbound() throws InterruptedException {
-        return inbound.take();
+        return inbound.queue.take();
+    }
+
+    /**
+     * 批量取入站消息：等待至多 timeout 直到有一条，再不阻塞地取走已排队的其余消息，合计至多 max 条。
+     *
+     * @return 取出条数，超时为 0
+     */
+    public int drainInbound(Collection<? super InboundMessage> out, int max, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return drain(inbound.queue, out, max, timeout, unit);
     }
 
-    /** Agent 或 Cron 调用：将回复入队 */
-    public void publishOutbound(OutboundMessage msg) {
-        if (msg != null) {
-            outbound.offer(msg);
+    /**
+     * Agent 或 Cron 调用：将回复入队，队列满时按出站策略处理。
+     *
+     * @return 是否已入队
+     */
+    public boolean publishOutbound(OutboundMessage msg) {
+        if (msg == null) {
+            return false;
+        }
+        MessageWal w = wal;
+        if (w != null && msg.walId == 0) {
+            msg.walId = w.appendOutbound(msg);
+        }
+        if (outbound.publish(msg)) {
+            return true;
         }
+        ackOutbound(msg);
+        return false;
     }
 
     /** 分发循环调用：阻塞取一条出站消息 */
     public OutboundMessage consumeOutbound() throws InterruptedException {
-        return outbound.take();
+        return outbound.queue.take();
     }
 
     /** 带超时取一条出站消息，便于循环中检查停止标志 */
     public OutboundMessage consumeOutbound(long timeout, TimeUnit unit) throws InterruptedException {
-        return outbound.poll(timeout, unit);
+        return outbound.queue.poll(timeout, unit);
+    }
+
+    /** 批量取出站消息，语义同 drainInbound */
+    public int drainOutbound(Collection<? super OutboundMessage> out, int max, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return drain(outbound.queue, out, max, timeout, unit);
+    }
+
+    private static <T> int drain(BusQueue<T> queue, Collection<? super T> out, int max, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        T first = queue.poll(timeout, unit);
+        if (first == null) {
+            return 0;
+        }
+        out.add(first);
+        return 1 + (max > 1 ? queue.drainTo(out, max - 1) : 0);
     }
 
     /** 停止 dispatch 循环（设置 running 标志） */
@@ -59,18 +292,121 @@ public class MessageBus {
     }
 
     public int getInboundSize() {
-        return inbound.size();
+        return inbound.queue.size();
     }
 
     public int getOutboundSize() {
-        return outbound.size();
+        return outbound.queue.size();
+    }
+
+    public BusQueue<InboundMessage> getInboundQueue() {
+        return inbound.queue;
+    }
+
+    public BusQueue<OutboundMessage> getOutboundQueue() {
+        return outbound.queue;
+    }
+
+    /** 队列长度、容量、历史最高水位、丢弃与拒绝计数 */
+    public void collectMetrics(MetricsWriter w) {
+        w.gauge("javaclaw_bus_queue_size", "Messages currently queued on the bus");
+        for (Lane<?> lane : new Lane<?>[]{inbound, outbound}) {
+            w.sample("javaclaw_bus_queue_size", lane.queue.size(), "queue", lane.name);
+        }
+        w.gauge("javaclaw_bus_queue_capacity", "Bus queue capacity (0 means unbounded)");
+        for (Lane<?> lane : new Lane<?>[]{inbound, outbound}) {
+            w.sample("javaclaw_bus_queue_capacity", lane.queue.capacity(), "queue", lane.name);
+        }
+        w.gauge("javaclaw_bus_queue_high_water", "Largest bus queue size seen since start");
+        for (Lane<?> lane : new Lane<?>[]{inbound, outbound}) {
+            w.sample("javaclaw_bus_queue_high_water", lane.highWater.get(), "queue", lane.name);
+        }
+        w.histogram("javaclaw_bus_inbound_wait_seconds",
+                "Time inbound messages waited from bus publish until the agent started processing them");
+        for (Map.Entry<InboundPriority, Histogram> e : inboundWait.entrySet()) {
+            w.histogram("javaclaw_bus_inbound_wait_seconds", e.getValue(), "class", e.getKey().label());
+        }
+        w.counter("javaclaw_bus_published_total", "Messages accepted onto the bus");
+        for (Lane<?> lane : new Lane<?>[]{inbound, outbound}) {
+            w.sample("javaclaw_bus_published_total", lane.published.get(), "queue", lane.name);
+        }
+        w.counter("javaclaw_bus_dropped_total", "Queued messages dropped to make room (dropOldest)");
+        for (Lane<?> lane : new Lane<?>[]{inbound, outbound}) {
+            w.sample("javaclaw_bus_dropped_total", lane.dropped.get(), "queue", lane.name);
+        }
+        w.counter("javaclaw_bus_rejected_total", "Messages rejected because the queue was full");
+        for (Lane<?> lane : new Lane<?>[]{inbound, outbound}) {
+            w.sample("javaclaw_bus_rejected_total", lane.rejected.get(), "queue", lane.name);
+        }
+    }
+
+    public long getDropped() {
+        return inbound.dropped.get() + outbound.dropped.get();
     }
 
-    public BlockingQueue<InboundMessage> getInboundQueue() {
-        return inbound;
+    public long getRejected() {
+        return inbound.rejected.get() + outbound.rejected.get();
     }
 
-    public BlockingQueue<OutboundMessage> getOutboundQueue() {
-        return outbound;
+    /** 一个方向的队列：溢出策略与统计 */
+    private static final class Lane<T> {
+        final String name;
+        final OverflowPolicy policy;
+        final Function<T, String> sessionKey;
+        /** 被 dropOldest 挤掉的消息 */
+        final Consumer<T> onDrop;
+        final BusQueue<T> queue;
+        final AtomicLong published = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicInteger highWater = new AtomicInteger();
+
+        Lane(String name, BusQueue<T> queue, OverflowPolicy policy, Function<T, String> sessionKey,
+             Consumer<T> onDrop) {
+            this.name = name;
+            this.queue = queue;
+            this.policy = policy != null ? policy : OverflowPolicy.BLOCK;
+            this.sessionKey = sessionKey;
+            this.onDrop = onDrop;
+        }
+
+        boolean publish(T msg) {
+            boolean ok;
+            switch (policy) {
+                case DROP_OLDEST:
+                    while (!queue.offer(msg)) {
+                        T victim = queue.dropOldest(msg, sessionKey);
+                        if (victim != null) {
+                            dropped.incrementAndGet();
+                            onDrop.accept(victim);
+                        }
+                    }
+                    ok = true;
+                    break;
+                case REJECT:
+                    ok = queue.offer(msg);
+                    break;
+                default:
+                    try {
+                        queue.put(msg);
+                        ok = true;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        ok = false;
+                    }
+                    break;
+            }
+            if (!ok) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            published.incrementAndGet();
+            int size = queue.size();
+            int hw;
+            while (size > (hw = highWater.get()) && !highWater.compareAndSet(hw, size)) {
+                // 重试
+            }
+            return true;
+        }
     }
 }
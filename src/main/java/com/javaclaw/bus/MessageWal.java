@@ -0,0 +1,539 @@
+package com.javaclaw.bus;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.javaclaw.metrics.MetricsSource;
+import com.javaclaw.metrics.MetricsWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * 总线消息的预写日志（WAL）：入队前把消息追加到 dataDir/wal 下内存映射的分段文件，
+ * 处理或发送完成后追加确认记录；重启时未确认的消息重新入队。
+ * <p>
+ * 记录格式：[长度 int][CRC32 int][类型 byte][记录号 long][JSON]，长度 0 表示段内已无记录。
+ * 段写满后滚动到新段；最旧的段中消息全部确认后删除，长期未确认的消息会被搬到当前段，避免旧段一直留着。
+ * <p>
+ * 组提交：发布消息的线程写入映射区后等待落盘，后台线程一次 force() 覆盖期间所有写入，
+ * 并发发布共享同一次 fsync。确认记录不等待落盘，崩溃时最多导致一条消息被重放（至少一次语义）。
+ * force()、删除旧段与搬运记录都在锁外进行（滚动出去的段也交给后台线程 force），发布者只在写映射区时持锁。
+ */
+public class MessageWal implements Closeable, MetricsSource {
+
+    private static final byte TYPE_INBOUND = 1;
+    private static final byte TYPE_OUTBOUND = 2;
+    private static final byte TYPE_ACK = 3;
+    private static final int HEADER_BYTES = 8;
+    private static final int BODY_PREFIX_BYTES = 9;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".wal";
+    /** 段数超过该值时，把最旧段中仍未确认的消息搬到当前段 */
+    private static final int CARRY_FORWARD_SEGMENTS = 2;
+    /** 写入失败时两次打印之间的最短间隔；期间的失败只计数 */
+    private static final long ERROR_LOG_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final Object lock = new Object();
+    /** 最旧在前，最后一个为当前写入段 */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    /** 已滚动出去、尚未 force 的段映射，由后台线程在下一轮 force */
+    private final List<MappedByteBuffer> sealed = new ArrayList<>();
+    /** 记录号 -&gt; 未确认的消息 */
+    private final Map<Long, Pending> pending = new HashMap<>();
+    private final List<InboundMessage> recoveredInbound = new ArrayList<>();
+    private final List<OutboundMessage> recoveredOutbound = new ArrayList<>();
+    private final Thread flusher;
+
+    private long nextId = 1;
+    /** 已写入映射区的记录数 / 已落盘的记录数 */
+    private long written;
+    private long flushed;
+    private volatile boolean open = true;
+
+    private final AtomicLong appends = new AtomicLong();
+    private final AtomicLong acks = new AtomicLong();
+    private final AtomicLong fsyncs = new AtomicLong();
+    private final AtomicLong carried = new AtomicLong();
+    private final AtomicLong writeErrors = new AtomicLong();
+    private final AtomicLong lastErrorLog = new AtomicLong(System.nanoTime() - ERROR_LOG_INTERVAL_NANOS);
+
+    /**
+     * 打开（不存在则创建）日志目录并扫描已有分段，未确认的消息可通过 drainRecovered* 取出重新入队。
+     *
+     * @param dir          日志目录，通常为 dataDir/wal
+     * @param segmentBytes 单个分段文件大小
+     */
+    public static MessageWal open(Path dir, int segmentBytes) throws IOException {
+        MessageWal wal = new MessageWal(dir, segmentBytes);
+        wal.recover();
+        wal.flusher.start();
+        return wal;
+    }
+
+    private MessageWal(Path dir, int segmentBytes) {
+        this.dir = dir;
+        this.segmentBytes = Math.max(64 * 1024, segmentBytes);
+        this.flusher = new Thread(this::flushLoop, "bus-wal-flusher");
+        this.flusher.setDaemon(true);
+    }
+
+    /** 记录一条入站消息并等待落盘，返回记录号；写入失败时返回 0（消息照常投递，只是不受保护） */
+    long appendInbound(InboundMessage msg) {
+        return appendMessage(TYPE_INBOUND, msg);
+    }
+
+    /** 记录一条出站消息并等待落盘，语义同 appendInbound */
+    long appendOutbound(OutboundMessage msg) {
+        return appendMessage(TYPE_OUTBOUND, msg);
+    }
+
+    private long appendMessage(byte type, Object msg) {
+        byte[] payload;
+        try {
+            payload = MAPPER.writeValueAsBytes(msg);
+        } catch (IOException e) {
+            writeFailed("encode", e);
+            return 0;
+        }
+        long id;
+        long seq;
+        synchronized (lock) {
+            if (!open) {
+                return 0;
+            }
+            id = nextId++;
+            try {
+                Segment seg = write(type, id, payload);
+                track(id, new Pending(type, payload), seg);
+            } catch (IOException e) {
+                writeFailed("append", e);
+                return 0;
+            }
+            seq = written;
+            lock.notifyAll();
+        }
+        appends.incrementAndGet();
+        awaitFlushed(seq);
+        return id;
+    }
+
+    /** 确认一条消息已处理完成；不等待落盘 */
+    void ack(long id) {
+        if (id <= 0) {
+            return;
+        }
+        synchronized (lock) {
+            Pending p = pending.remove(id);
+            if (p == null || !open) {
+                return;
+            }
+            p.segment.pending--;
+            try {
+                write(TYPE_ACK, id, new byte[0]);
+            } catch (IOException e) {
+                writeFailed("ack", e);
+                return;
+            }
+            lock.notifyAll();
+        }
+        acks.incrementAndGet();
+    }
+
+    /** 取出启动时恢复的未确认入站消息（已带记录号），只能取一次 */
+    List<InboundMessage> drainRecoveredInbound() {
+        synchronized (lock) {
+            List<InboundMessage> out = new ArrayList<>(recoveredInbound);
+            recoveredInbound.clear();
+            return out;
+        }
+    }
+
+    /** 取出启动时恢复的未确认出站消息（已带记录号），只能取一次 */
+    List<OutboundMessage> drainRecoveredOutbound() {
+        synchronized (lock) {
+            List<OutboundMessage> out = new ArrayList<>(recoveredOutbound);
+            recoveredOutbound.clear();
+            return out;
+        }
+    }
+
+    /** 未确认的消息数 */
+    public int getPendingCount() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /** 写入当前段，空间不足时先滚动；调用方持有 lock */
+    private Segment write(byte type, long id, byte[] payload) throws IOException {
+        int bodyLen = BODY_PREFIX_BYTES + payload.length;
+        Segment seg = segments.peekLast();
+        if (seg == null || seg.buffer == null || seg.buffer.remaining() < HEADER_BYTES + bodyLen) {
+            seg = rotate(HEADER_BYTES + bodyLen);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (id >>> shift));
+        }
+        crc.update(payload, 0, payload.length);
+        MappedByteBuffer buf = seg.buffer;
+        int start = buf.position();
+        // 先写正文、最后写长度：恢复时长度为 0 即视为未写完
+        buf.position(start + HEADER_BYTES);
+        buf.put(type).putLong(id).put(payload);
+        buf.putInt(start + 4, (int) crc.getValue());
+        buf.putInt(start, bodyLen);
+        written++;
+        return seg;
+    }
+
+    /** 封存当前段（交给后台线程 force），新建下一段；调用方持有 lock */
+    private Segment rotate(int minBytes) throws IOException {
+        Segment last = segments.peekLast();
+        long index = last != null ? last.index + 1 : 1;
+        if (last != null && last.buffer != null) {
+            sealed.add(last.buffer);
+            last.buffer = null;
+        }
+        Path path = dir.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+        int size = Math.max(segmentBytes, minBytes + HEADER_BYTES);
+        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+            raf.setLength(size);
+            Segment seg = new Segment(index, path);
+            // 映射在通道关闭后仍然有效
+            seg.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            segments.addLast(seg);
+            return seg;
+        }
+    }
+
+    private void track(long id, Pending p, Segment seg) {
+        Pending old = pending.put(id, p);
+        if (old != null) {
+            old.segment.pending--;
+        }
+        p.segment = seg;
+        seg.pending++;
+    }
+
+    private void awaitFlushed(long seq) {
+        boolean interrupted = false;
+        synchronized (lock) {
+            while (flushed < seq && open) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** 组提交循环：有新写入就 force 封存段与当前段，唤醒所有等待到该位置的发布者，再清理旧段 */
+    private void flushLoop() {
+        while (true) {
+            List<MappedByteBuffer> bufs;
+            long target;
+            synchronized (lock) {
+                while (written == flushed && open) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!open) {
+                    return;
+                }
+                target = written;
+                bufs = new ArrayList<>(sealed);
+                sealed.clear();
+                Segment active = segments.peekLast();
+                if (active != null && active.buffer != null) {
+                    bufs.add(active.buffer);
+                }
+            }
+            // force 期间的新写入留给下一轮
+            for (MappedByteBuffer buf : bufs) {
+                buf.force();
+            }
+            fsyncs.incrementAndGet();
+            List<Path> dead;
+            synchronized (lock) {
+                flushed = target;
+                lock.notifyAll();
+                dead = retire();
+            }
+            delete(dead);
+            carryForward();
+        }
+    }
+
+    /**
+     * 摘下已全部确认的最旧段并返回其路径，由调用方在锁外删除
+     * （只摘前缀，保证被删段里的确认记录不会让更早的消息复活）；调用方持有 lock
+     */
+    private List<Path> retire() {
+        List<Path> dead = new ArrayList<>();
+        while (segments.size() > 1 && segments.peekFirst().pending <= 0) {
+            dead.add(segments.pollFirst().path);
+        }
+        return dead;
+    }
+
+    private static void delete(List<Path> dead) {
+        for (Path path : dead) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                System.err.println("[WAL] delete " + path + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 段数超过 CARRY_FORWARD_SEGMENTS 时，把最旧段中仍未确认的消息逐条重写到当前段，
+     * 每条单独持锁，不阻塞并发发布；下一轮 force 之后旧段即可删除
+     */
+    private void carryForward() {
+        Segment oldest;
+        List<Long> ids = new ArrayList<>();
+        synchronized (lock) {
+            if (!open || segments.size() <= CARRY_FORWARD_SEGMENTS) {
+                return;
+            }
+            oldest = segments.peekFirst();
+            for (Map.Entry<Long, Pending> e : pending.entrySet()) {
+                if (e.getValue().segment == oldest) {
+                    ids.add(e.getKey());
+                }
+            }
+        }
+        for (Long id : ids) {
+            synchronized (lock) {
+                Pending p = pending.get(id);
+                // 期间已确认或已被搬走
+                if (!open || p == null || p.segment != oldest) {
+                    continue;
+                }
+                try {
+                    track(id, p, write(p.type, id, p.payload));
+                } catch (IOException e) {
+                    writeFailed("carry forward", e);
+                    return;
+                }
+            }
+            carried.incrementAndGet();
+        }
+    }
+
+    /** 写入失败：计数，并按 ERROR_LOG_INTERVAL_NANOS 限频打印，避免磁盘故障时每条消息刷一行 */
+    private void writeFailed(String what, IOException e) {
+        long errors = writeErrors.incrementAndGet();
+        long now = System.nanoTime();
+        long last = lastErrorLog.get();
+        if (now - last >= ERROR_LOG_INTERVAL_NANOS && lastErrorLog.compareAndSet(last, now)) {
+            System.err.println("[WAL] " + what + " failed (" + errors + " write errors so far): " + e.getMessage());
+        }
+    }
+
+    /** 扫描已有分段，重建未确认集合，再新开一段用于写入 */
+    private void recover() throws IOException {
+        Files.createDirectories(dir);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path p : ds) {
+                files.add(p);
+            }
+        }
+        Collections.sort(files);
+        long maxId = 0;
+        // 按记录号排序：搬运过的消息在文件中靠后，但应按最初发布的顺序重放
+        TreeMap<Long, Pending> order = new TreeMap<>();
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long index;
+            try {
+                index = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Segment seg = new Segment(index, file);
+            segments.addLast(seg);
+            maxId = Math.max(maxId, scan(seg, order));
+        }
+        synchronized (lock) {
+            nextId = maxId + 1;
+            for (Map.Entry<Long, Pending> e : order.entrySet()) {
+                Pending p = e.getValue();
+                try {
+                    if (p.type == TYPE_INBOUND) {
+                        InboundMessage msg = MAPPER.readValue(p.payload, InboundMessage.class);
+                        msg.walId = e.getKey();
+                        recoveredInbound.add(msg);
+                    } else {
+                        OutboundMessage msg = MAPPER.readValue(p.payload, OutboundMessage.class);
+                        msg.walId = e.getKey();
+                        recoveredOutbound.add(msg);
+                    }
+                } catch (IOException ex) {
+                    // 无法解析的记录视为已确认，避免每次启动都卡在它上面
+                    System.err.println("[WAL] skip unreadable record " + e.getKey() + ": " + ex.getMessage());
+                    pending.remove(e.getKey()).segment.pending--;
+                }
+            }
+            rotate(0);
+            delete(retire());
+        }
+        carryForward();
+    }
+
+    /** 读取一个分段的全部完整记录，返回其中最大的记录号 */
+    private long scan(Segment seg, Map<Long, Pending> order) throws IOException {
+        long maxId = 0;
+        try (FileChannel ch = FileChannel.open(seg.path)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            while (buf.remaining() >= HEADER_BYTES + BODY_PREFIX_BYTES) {
+                int start = buf.position();
+                int len = buf.getInt(start);
+                if (len < BODY_PREFIX_BYTES || len > buf.remaining() - HEADER_BYTES) {
+                    break;
+                }
+                byte[] body = new byte[len];
+                buf.position(start + HEADER_BYTES);
+                buf.get(body);
+                CRC32 crc = new CRC32();
+                crc.update(body, 0, len);
+                if ((int) crc.getValue() != buf.getInt(start + 4)) {
+                    // 崩溃时写了一半的记录
+                    break;
+                }
+                byte type = body[0];
+                long id = 0;
+                for (int i = 1; i < BODY_PREFIX_BYTES; i++) {
+                    id = (id << 8) | (body[i] & 0xFF);
+                }
+                maxId = Math.max(maxId, id);
+                if (type == TYPE_ACK) {
+                    Pending p = pending.remove(id);
+                    if (p != null) {
+                        p.segment.pending--;
+                        order.remove(id);
+                    }
+                } else {
+                    byte[] payload = new byte[len - BODY_PREFIX_BYTES];
+                    System.arraycopy(body, BODY_PREFIX_BYTES, payload, 0, payload.length);
+                    Pending p = new Pending(type, payload);
+                    track(id, p, seg);
+                    order.put(id, p);
+                }
+            }
+        }
+        return maxId;
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (!open) {
+                return;
+            }
+            open = false;
+            lock.notifyAll();
+        }
+        try {
+            flusher.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            for (MappedByteBuffer buf : sealed) {
+                buf.force();
+            }
+            sealed.clear();
+            Segment active = segments.peekLast();
+            if (active != null && active.buffer != null) {
+                active.buffer.force();
+                active.buffer = null;
+            }
+        }
+    }
+
+    @Override
+    public void collect(MetricsWriter w) {
+        int pendingCount;
+        int segmentCount;
+        synchronized (lock) {
+            pendingCount = pending.size();
+            segmentCount = segments.size();
+        }
+        w.gauge("javaclaw_wal_pending", "Bus messages logged but not yet acknowledged")
+                .sample("javaclaw_wal_pending", pendingCount);
+        w.gauge("javaclaw_wal_segments", "WAL segment files on disk")
+                .sample("javaclaw_wal_segments", segmentCount);
+        w.counter("javaclaw_wal_appends_total", "Messages appended to the WAL")
+                .sample("javaclaw_wal_appends_total", appends.get());
+        w.counter("javaclaw_wal_acks_total", "Acknowledgements appended to the WAL")
+                .sample("javaclaw_wal_acks_total", acks.get());
+        w.counter("javaclaw_wal_fsyncs_total", "WAL group commits (one fsync each)")
+                .sample("javaclaw_wal_fsyncs_total", fsyncs.get());
+        w.counter("javaclaw_wal_carried_forward_total", "Unacknowledged records rewritten into a newer segment")
+                .sample("javaclaw_wal_carried_forward_total", carried.get());
+        w.counter("javaclaw_wal_write_errors_total", "WAL writes that failed")
+                .sample("javaclaw_wal_write_errors_total", writeErrors.get());
+    }
+
+    /** 一个分段文件；buffer 仅当前写入段非 null */
+    private static final class Segment {
+        final long index;
+        final Path path;
+        MappedByteBuffer buffer;
+        /** 本段中最新一次记录的、仍未确认的消息数 */
+        int pending;
+
+        Segment(long index, Path path) {
+            this.index = index;
+            this.path = path;
+        }
+    }
+
+    private static final class Pending {
+        final byte type;
+        final byte[] payload;
+        Segment segment;
+
+        Pending(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+}
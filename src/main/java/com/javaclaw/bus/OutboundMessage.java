@@ -16,6 +16,8 @@ public class OutboundMessage {
     private String replyTo;
     private List<String> media;
     private Map<String, Object> metadata;
+    /** 在 MessageWal 中的记录号，0 表示未记录；不参与序列化 */
+    transient long walId;
 
     public OutboundMessage() {
         this.media = new ArrayList<>();
@@ -0,0 +1,29 @@
+package com.javaclaw.bus;
+
+/**
+ * 有界队列已满时对新消息的处理方式。
+ */
+public enum OverflowPolicy {
+
+    /** 阻塞生产者，直到有空位 */
+    BLOCK,
+    /** 丢弃同一会话最早的一条排队消息（该会话没有排队消息时丢弃排队最多的会话中最早的一条），再放入新消息 */
+    DROP_OLDEST,
+    /** 拒绝新消息；入站时给发送者回一条"繁忙"提示 */
+    REJECT;
+
+    /** 解析配置值（block / dropOldest / reject，大小写与下划线不敏感），无法识别时为 BLOCK */
+    public static OverflowPolicy parse(String value) {
+        if (value == null) {
+            return BLOCK;
+        }
+        String v = value.replace("_", "").replace("-", "").toLowerCase();
+        if ("dropoldest".equals(v)) {
+            return DROP_OLDEST;
+        }
+        if ("reject".equals(v)) {
+            return REJECT;
+        }
+        return BLOCK;
+    }
+}
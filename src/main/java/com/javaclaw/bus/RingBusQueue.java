@@ -0,0 +1,218 @@
+package com.javaclaw.bus;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * 预分配的有界环形缓冲（多生产者多消费者，Vyukov 算法）：每个槽位带序号，生产者与消费者各自 CAS 推进
+ * tail / head 认领槽位，入队出队都不加锁、不分配节点。容量向上取整为 2 的幂。
+ * 空时 take 先自旋再在监视器上等待，生产者只在有消费者等待时才去唤醒；满时 put 以短暂 park 退避。
+ * dropOldest 无法从环中间删除，直接丢弃队首（全局最早的一条）。
+ */
+class RingBusQueue<T> implements BusQueue<T> {
+
+    private static final int SPINS = 64;
+    /** 满时 put 的退避间隔 */
+    private static final long PUT_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicReferenceArray<T> items;
+    private final PaddedLong head = new PaddedLong();
+    private final PaddedLong tail = new PaddedLong();
+
+    /** 正在等待的消费者数；大于 0 时生产者入队后 notifyAll */
+    private final AtomicInteger sleepers = new AtomicInteger();
+    private final Object notEmpty = new Object();
+
+    /** @param capacity 期望容量，向上取整为 2 的幂，至少 2 */
+    RingBusQueue(int capacity) {
+        int size = 2;
+        while (size < capacity && size < (1 << 30)) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        this.items = new AtomicReferenceArray<>(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    @Override
+    public boolean offer(T item) {
+        if (item == null) {
+            throw new NullPointerException();
+        }
+        long pos = tail.get();
+        while (true) {
+            int idx = (int) (pos & mask);
+            long seq = sequences.get(idx);
+            long diff = seq - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items.lazySet(idx, item);
+                    // 序号发布在元素之后：消费者看到 pos + 1 时元素已可见
+                    sequences.set(idx, pos + 1);
+                    if (sleepers.get() > 0) {
+                        synchronized (notEmpty) {
+                            notEmpty.notifyAll();
+                        }
+                    }
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // 该槽位还没被上一轮消费：队列已满
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /** 不阻塞取一条，空时返回 null */
+    T poll() {
+        long pos = head.get();
+        while (true) {
+            int idx = (int) (pos & mask);
+            long seq = sequences.get(idx);
+            long diff = seq - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    T item = items.get(idx);
+                    items.lazySet(idx, null);
+                    // 槽位交还给下一轮的生产者
+                    sequences.set(idx, pos + capacity);
+                    return item;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    @Override
+    public void put(T item) throws InterruptedException {
+        while (!offer(item)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            LockSupport.parkNanos(PUT_BACKOFF_NANOS);
+        }
+    }
+
+    @Override
+    public T take() throws InterruptedException {
+        T item = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        while (item == null) {
+            item = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        return item;
+    }
+
+    @Override
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        for (int i = 0; i < SPINS; i++) {
+            T item = poll();
+            if (item != null) {
+                return item;
+            }
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        sleepers.incrementAndGet();
+        try {
+            while (true) {
+                // 先登记再检查：与 offer 的"先发布再看 sleepers"配对，不会丢失唤醒
+                T item = poll();
+                if (item != null) {
+                    return item;
+                }
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return null;
+                }
+                synchronized (notEmpty) {
+                    if (isEmpty()) {
+                        TimeUnit.NANOSECONDS.timedWait(notEmpty, left);
+                    }
+                }
+            }
+        } finally {
+            sleepers.decrementAndGet();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> out, int max) {
+        int n = 0;
+        while (n < max) {
+            T item = poll();
+            if (item == null) {
+                break;
+            }
+            out.add(item);
+            n++;
+        }
+        return n;
+    }
+
+    @Override
+    public T dropOldest(T item, Function<T, String> sessionKey) {
+        return poll();
+    }
+
+    private boolean isEmpty() {
+        long pos = head.get();
+        return sequences.get((int) (pos & mask)) - (pos + 1) < 0;
+    }
+
+    @Override
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(capacity, size));
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    /** value 之前的填充；HotSpot 先排父类字段，继承链保证填充位于 value 两侧 */
+    @SuppressWarnings("unused")
+    private abstract static class LeftPad {
+        long p01, p02, p03, p04, p05, p06, p07;
+    }
+
+    private abstract static class Value extends LeftPad {
+        volatile long value;
+    }
+
+    /** 前后各填充 56 字节的 long，避免 head 与 tail 落在同一缓存行上互相干扰 */
+    @SuppressWarnings("unused")
+    private static final class PaddedLong extends Value {
+        private static final AtomicLongFieldUpdater<Value> VALUE =
+                AtomicLongFieldUpdater.newUpdater(Value.class, "value");
+
+        long p11, p12, p13, p14, p15, p16, p17;
+
+        long get() {
+            return value;
+        }
+
+        boolean compareAndSet(long expect, long update) {
+            return VALUE.compareAndSet(this, expect, update);
+        }
+    }
+}
@@ -34,8 +34,17 @@ public abstract class BaseChannel {
     /** 停止渠道并释放资源 */
     public abstract void stop();
 
-    /** 将一条出站消息通过平台 API 发送到 msg.getChatId() */
-    public abstract void send(OutboundMessage msg);
+    /**
+     * 将一条出站消息通过平台 API 发送到 msg.getChatId()。
+     *
+     * @return 是否已送达平台；false 时启用 WAL 的 gateway 会在下次启动重发。无法发送的消息（如缺 chatId）返回 true
+     */
+    public abstract boolean send(OutboundMessage msg);
+
+    /** gateway 启动时需预先建立连接的 API 地址；默认无 */
+    public List<String> warmUpUrls() {
+        return Collections.emptyList();
+    }
 
     /** 按配置判断是否允许该发送者；空列表表示允许所有人。子类可覆盖以使用 config。 */
     public boolean isAllowed(String senderId) {
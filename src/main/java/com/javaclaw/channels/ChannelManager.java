@@ -4,22 +4,39 @@ import com.javaclaw.bus.MessageBus;
 import com.javaclaw.bus.OutboundMessage;
 import com.javaclaw.config.Config;
 
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 /**
  * 按配置初始化并启动渠道（当前仅钉钉）；启动 outbound 分发循环，从 bus 取消息并交给对应 channel.send。
+ * 发送失败的消息按指数退避重试，共尝试 MAX_SEND_ATTEMPTS 次仍失败则放弃并确认，不再留在 WAL 中。
  */
 public class ChannelManager {
 
+    /** 分发循环一次从总线批量取出的出站消息上限 */
+    private static final int OUTBOUND_BATCH = 64;
+    /** 单条出站消息最多尝试发送的次数 */
+    private static final int MAX_SEND_ATTEMPTS = 5;
+    /** 第一次重试前的等待，之后每次翻倍 */
+    private static final long RETRY_BASE_MS = 1000;
+    private static final long RETRY_MAX_MS = 60_000;
+    /** 分发循环无消息时的最长等待 */
+    private static final long POLL_MS = 2000;
+
     private final Config config;
     private final MessageBus bus;
     private final Map<String, BaseChannel> channels = new HashMap<>();
     private final ExecutorService executor = Executors.newCachedThreadPool();
     private volatile boolean running = true;
+    /** 等待重试的出站消息，按到期时间排序；只由分发循环访问 */
+    private final PriorityQueue<Retry> retries = new PriorityQueue<>(Comparator.comparingLong((Retry r) -> r.dueMillis));
 
     public ChannelManager(Config config, MessageBus bus) {
         this.config = config;
@@ -47,24 +64,48 @@ public class ChannelManager {
 
     /** 启动 dispatchOutbound 循环与各 channel.start() */
     public void startAll() {
+        startOutbound();
+        startChannels();
+    }
+
+    /** 启动 dispatchOutbound 循环 */
+    public void startOutbound() {
         executor.submit(this::dispatchOutbound);
+    }
+
+    /** 启动各 channel.start()，开始接收入站消息 */
+    public void startChannels() {
         for (BaseChannel ch : channels.values()) {
             executor.submit(ch::start);
         }
     }
 
-    /** 从 bus 取 outbound 分发给已注册 channel */
+    /** 各已启用渠道需要预连接的 API 地址 */
+    public List<String> warmUpUrls() {
+        List<String> urls = new ArrayList<>();
+        for (BaseChannel ch : channels.values()) {
+            urls.addAll(ch.warmUpUrls());
+        }
+        return urls;
+    }
+
+    /** 从 bus 批量取 outbound（每批至多 OUTBOUND_BATCH 条）分发给已注册 channel，并重发到期的失败消息 */
     public void dispatchOutbound() {
+        List<OutboundMessage> batch = new ArrayList<>(OUTBOUND_BATCH);
         while (running && bus.isRunning()) {
             try {
-                OutboundMessage msg = bus.consumeOutbound(2, TimeUnit.SECONDS);
-                if (msg == null) {
-                    continue;
+                long now = System.currentTimeMillis();
+                while (!retries.isEmpty() && retries.peek().dueMillis <= now) {
+                    Retry r = retries.poll();
+                    deliver(r.msg, r.attempts + 1);
                 }
-                BaseChannel ch = channels.get(msg.getChannel());
-                if (ch != null) {
-                    ch.send(msg);
+                long wait = retries.isEmpty() ? POLL_MS
+                        : Math.max(1, Math.min(POLL_MS, retries.peek().dueMillis - System.currentTimeMillis()));
+                bus.drainOutbound(batch, OUTBOUND_BATCH, wait, TimeUnit.MILLISECONDS);
+                for (OutboundMessage msg : batch) {
+                    deliver(msg, 1);
                 }
+                batch.clear();
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 break;
@@ -72,6 +113,26 @@ public class ChannelManager {
         }
     }
 
+    /**
+     * 第 attempt 次发送一条出站消息：成功或没有对应渠道（永远无法投递）时确认；
+     * 失败则安排退避重试，次数用尽后放弃并确认。停止时仍在等待重试的消息不确认，启用 WAL 时下次启动重发
+     */
+    private void deliver(OutboundMessage msg, int attempt) {
+        BaseChannel ch = channels.get(msg.getChannel());
+        if (ch == null || ch.send(msg)) {
+            bus.ackOutbound(msg);
+            return;
+        }
+        if (attempt >= MAX_SEND_ATTEMPTS) {
+            System.err.println("[Channel] give up sending to " + msg.getChannel() + ":" + msg.getChatId()
+                    + " after " + attempt + " attempts");
+            bus.ackOutbound(msg);
+            return;
+        }
+        long delay = Math.min(RETRY_MAX_MS, RETRY_BASE_MS << (attempt - 1));
+        retries.add(new Retry(msg, attempt, System.currentTimeMillis() + delay));
+    }
+
     public void stop() {
         running = false;
         for (BaseChannel ch : channels.values()) {
@@ -88,4 +149,17 @@ public class ChannelManager {
     public Map<String, BaseChannel> getChannels() {
         return new HashMap<>(channels);
     }
+
+    private static final class Retry {
+        final OutboundMessage msg;
+        /** 已尝试的次数 */
+        final int attempts;
+        final long dueMillis;
+
+        Retry(OutboundMessage msg, int attempts, long dueMillis) {
+            this.msg = msg;
+            this.attempts = attempts;
+            this.dueMillis = dueMillis;
+        }
+    }
 }
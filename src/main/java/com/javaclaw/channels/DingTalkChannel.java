@@ -74,17 +74,18 @@ public class DingTalkChannel extends BaseChannel {
     }
 
     @Override
-    public void send(OutboundMessage msg) {
+    public boolean send(OutboundMessage msg) {
         if (msg == null) {
-            return;
+            return true;
         }
         String chatId = msg.getChatId();
         String content = msg.getContent();
         if (chatId == null || content == null) {
-            return;
+            return true;
         }
         // 钉钉机器人发消息需调用 OpenAPI（需 access_token）。此处占位：仅打印日志，实际可接入钉钉机器人发送 API。
         System.err.println("[DingTalk] send to " + chatId + ": " + (content.length() > 80 ? content.substring(0, 80) + "..." : content));
+        return true;
     }
 
     private void handleRequest(HttpExchange exchange) {
@@ -8,6 +8,7 @@ import com.javaclaw.bus.MessageBus;
 import com.javaclaw.bus.OutboundMessage;
 import com.javaclaw.config.GatewayConfig;
 import com.javaclaw.config.QQConfig;
+import com.javaclaw.http.HttpClients;
 
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
@@ -18,6 +19,7 @@ import okhttp3.WebSocket;
 import okhttp3.WebSocketListener;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -38,6 +40,7 @@ public class QQChannel extends BaseChannel {
 
     private static final ObjectMapper MAPPER = new ObjectMapper();
     private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+    private static final String ACCESS_TOKEN_URL = "https://bots.qq.com/app/getAppAccessToken";
 
     private static final int OP_DISPATCH = 0;
     private static final int OP_HEARTBEAT = 1;
@@ -62,7 +65,7 @@ public class QQChannel extends BaseChannel {
     public QQChannel(QQConfig qqConfig, GatewayConfig gatewayConfig, MessageBus bus) {
         super("qq", bus);
         this.config = qqConfig != null ? qqConfig : new QQConfig();
-        this.httpClient = new OkHttpClient.Builder()
+        this.httpClient = HttpClients.newBuilder()
                 .connectTimeout(15, TimeUnit.SECONDS)
                 .readTimeout(15, TimeUnit.SECONDS)
                 .writeTimeout(15, TimeUnit.SECONDS)
@@ -74,6 +77,12 @@ public class QQChannel extends BaseChannel {
         });
     }
 
+    /** 获取 access_token 与 OpenAPI 两个地址 */
+    @Override
+    public List<String> warmUpUrls() {
+        return Arrays.asList(ACCESS_TOKEN_URL, config.getGatewayApiBase());
+    }
+
     @Override
     public boolean isAllowed(String senderId) {
         List<String> allow = config.getAllowFrom();
@@ -106,14 +115,14 @@ public class QQChannel extends BaseChannel {
     private static final int MSG_TYPE_TEXT = 0;
 
     @Override
-    public void send(OutboundMessage msg) {
+    public boolean send(OutboundMessage msg) {
         if (msg == null) {
-            return;
+            return true;
         }
         String chatId = msg.getChatId();
         String content = msg.getContent();
         if (chatId == null || content == null) {
-            return;
+            return true;
         }
         Map<String, Object> metadata = msg.getMetadata();
         String msgId = metadata != null && metadata.get("qq_msg_id") != null ? metadata.get("qq_msg_id").toString() : null;
@@ -122,7 +131,7 @@ public class QQChannel extends BaseChannel {
             token = cachedAccessToken != null ? cachedAccessToken : getAccessToken();
         } catch (IOException e) {
             System.err.println("[QQ] send getAccessToken failed: " + e.getMessage());
-            return;
+            return false;
         }
         String base = config.getGatewayApiBase().replaceAll("/$", "");
         String path = "/v2/users/" + chatId + "/messages";
@@ -137,7 +146,7 @@ public class QQChannel extends BaseChannel {
             requestBody = RequestBody.create(MAPPER.writeValueAsString(body), JSON);
         } catch (Exception e) {
             System.err.println("[QQ] send build body failed: " + e.getMessage());
-            return;
+            return true;
         }
         Request request = new Request.Builder()
                 .url(base + path)
@@ -150,12 +159,15 @@ public class QQChannel extends BaseChannel {
                 System.err.println("[QQ] send failed: " + resp.code() + " " + errBody);
                 if (resp.code() == 401 && cachedAccessToken != null) {
                     cachedAccessToken = null;
-                    send(msg);
+                    return send(msg);
                 }
-                return;
+                // 其余 4xx（如被动回复的 msg_id 已过期）重发也不会成功，只有 429 与 5xx 值得重试
+                return resp.code() < 500 && resp.code() != 429;
             }
+            return true;
         } catch (IOException e) {
             System.err.println("[QQ] send request failed: " + e.getMessage());
+            return false;
         }
     }
 
@@ -167,7 +179,7 @@ public class QQChannel extends BaseChannel {
         if (secret != null && !secret.isEmpty() && config.getAppId() != null && !config.getAppId().isEmpty()) {
             String body = "{\"appId\":\"" + escapeJson(config.getAppId()) + "\",\"clientSecret\":\"" + escapeJson(secret) + "\"}";
             Request req = new Request.Builder()
-                    .url("https://bots.qq.com/app/getAppAccessToken")
+                    .url(ACCESS_TOKEN_URL)
                     .post(RequestBody.create(body, JSON))
                     .build();
             try (Response resp = httpClient.newCall(req).execute()) {
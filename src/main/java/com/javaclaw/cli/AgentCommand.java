@@ -4,8 +4,11 @@ import com.javaclaw.agent.AgentLoop;
 import com.javaclaw.bus.MessageBus;
 import com.javaclaw.config.Config;
 import com.javaclaw.config.ConfigLoader;
+import com.javaclaw.http.HttpClients;
 import com.javaclaw.providers.ProviderFactory;
 import com.javaclaw.session.SessionManager;
+import com.javaclaw.tokenizer.TokenCounter;
+import com.javaclaw.tokenizer.Tokenizers;
 import picocli.CommandLine;
 
 import java.io.BufferedReader;
@@ -24,6 +27,7 @@ public class AgentCommand implements Runnable {
     @Override
     public void run() {
         Config config = ConfigLoader.loadConfig();
+        HttpClients.configure(config.getGateway().getHttp());
         MessageBus bus = new MessageBus();
         SessionManager sessionManager = new SessionManager(ConfigLoader.getSessionsDir());
         AgentLoop agent = new AgentLoop(
@@ -41,6 +45,15 @@ public class AgentCommand implements Runnable {
                 config.getTools().isRestrictToWorkspace(),
                 sessionManager,
                 config.getTools().getMcpServers());
+        agent.setParallelToolCalls(config.getAgents().isParallelToolCalls(), config.getAgents().getToolConcurrency());
+        agent.setEarlyToolDispatch(config.getAgents().isEarlyToolDispatch());
+        agent.setPromptLayout(config.getAgents().getPromptLayout());
+        agent.setConsolidationConcurrency(config.getAgents().getConsolidationConcurrency());
+        int contextTokens = config.getAgents().resolveContextWindowTokens(config.getAgents().getModel());
+        if (contextTokens > 0) {
+            agent.setContextTokenBudget(contextTokens, new TokenCounter(
+                    Tokenizers.forModel(config.getAgents().getModel(), ConfigLoader.getDataDir())));
+        }
         agent.connectMcp();
 
         if (message != null && !message.isEmpty()) {
@@ -2,16 +2,27 @@ package com.javaclaw.cli;
 
 import com.javaclaw.agent.AgentLoop;
 import com.javaclaw.bus.MessageBus;
+import com.javaclaw.bus.MessageWal;
 import com.javaclaw.bus.OutboundMessage;
+import com.javaclaw.bus.OverflowPolicy;
 import com.javaclaw.channels.ChannelManager;
 import com.javaclaw.config.Config;
 import com.javaclaw.config.ConfigLoader;
+import com.javaclaw.config.GatewayConfig;
 import com.javaclaw.cron.CronServiceImpl;
 import com.javaclaw.heartbeat.HeartbeatService;
+import com.javaclaw.http.HttpClients;
+import com.javaclaw.metrics.MetricsRegistry;
+import com.javaclaw.metrics.MetricsServer;
 import com.javaclaw.providers.ProviderFactory;
 import com.javaclaw.session.SessionManager;
+import com.javaclaw.tokenizer.TokenCounter;
+import com.javaclaw.tokenizer.Tokenizers;
 import picocli.CommandLine;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -25,7 +36,22 @@ public class GatewayCommand implements Runnable {
     @Override
     public void run() {
         Config config = ConfigLoader.loadConfig();
-        MessageBus bus = new MessageBus();
+        // 先配置共享 HTTP 客户端，之后创建的 provider 与渠道都从它派生
+        HttpClients.configure(config.getGateway().getHttp());
+        GatewayConfig gw = config.getGateway();
+        MessageBus bus = new MessageBus(gw.getBusImpl(), gw.isFairInbound(),
+                gw.getInboundCapacity(), OverflowPolicy.parse(gw.getInboundOverflow()),
+                gw.getOutboundCapacity(), OverflowPolicy.parse(gw.getOutboundOverflow()));
+        bus.setBusyReply(gw.getBusyReply());
+        MessageWal wal = null;
+        if (gw.isWal()) {
+            try {
+                wal = MessageWal.open(ConfigLoader.getDataDir().resolve("wal"), gw.getWalSegmentMb() * 1024 * 1024);
+                bus.setWal(wal);
+            } catch (IOException e) {
+                System.err.println("[WAL] open failed, running without it: " + e.getMessage());
+            }
+        }
         SessionManager sessionManager = new SessionManager(ConfigLoader.getSessionsDir());
         CronServiceImpl cronService = new CronServiceImpl(ConfigLoader.getDataDir());
         AgentLoop agent = new AgentLoop(
@@ -43,6 +69,19 @@ public class GatewayCommand implements Runnable {
                 config.getTools().isRestrictToWorkspace(),
                 sessionManager,
                 config.getTools().getMcpServers());
+        agent.setParallelToolCalls(config.getAgents().isParallelToolCalls(), config.getAgents().getToolConcurrency());
+        agent.setEarlyToolDispatch(config.getAgents().isEarlyToolDispatch());
+        agent.setPromptLayout(config.getAgents().getPromptLayout());
+        agent.setConsolidationConcurrency(config.getAgents().getConsolidationConcurrency());
+        int contextTokens = config.getAgents().resolveContextWindowTokens(config.getAgents().getModel());
+        if (contextTokens > 0) {
+            agent.setContextTokenBudget(contextTokens, new TokenCounter(
+                    Tokenizers.forModel(config.getAgents().getModel(), ConfigLoader.getDataDir())));
+        }
+        agent.setWorkers(config.getAgents().getWorkerThreads(), config.getAgents().getWorkerQueueCapacity());
+        agent.setEngine(config.getAgents().getEngine(), config.getAgents().getEventThreads());
+        agent.setFairScheduling(gw.isFairInbound());
+        agent.setDebounce(config.getAgents().getDebounceMs());
         cronService.setOnJob(job -> {
             String msg = job.getPayload() != null ? job.getPayload().getMessage() : "";
             String sk = "cron:" + job.getId();
@@ -55,14 +94,42 @@ public class GatewayCommand implements Runnable {
                         job.getPayload().getChannel(), job.getPayload().getChatId(), response));
             }
         });
-        HeartbeatService heartbeat = new HeartbeatService(agent::processDirect);
+        // 心跳用独立会话：不混入 CLI 会话，且在 LLM 准入排队时与 cron 一样归入后台类
+        HeartbeatService heartbeat = new HeartbeatService(prompt -> agent.processDirect(prompt, "heartbeat:direct", "cli", "direct"));
         ChannelManager channelManager = new ChannelManager(config, bus);
 
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        metrics.register(agent.getTokenUsage());
+        metrics.register(agent::collectMetrics);
+        metrics.register(HttpClients.metrics());
+        metrics.register(bus::collectMetrics);
+        if (wal != null) {
+            metrics.register(wal);
+        }
+        MetricsServer metricsServer = null;
+        if (config.getGateway().getMetricsPort() > 0) {
+            metricsServer = new MetricsServer(config.getGateway().getMetricsHost(),
+                    config.getGateway().getMetricsPort(), metrics, agent.getTokenUsage());
+            metricsServer.start();
+        }
+
+        if (config.getGateway().getHttp().isPrewarm()) {
+            List<String> warmUp = new ArrayList<>(ProviderFactory.apiBases(config));
+            warmUp.addAll(channelManager.warmUpUrls());
+            HttpClients.prewarm(warmUp);
+        }
+
         ExecutorService executor = Executors.newCachedThreadPool();
         cronService.start();
         heartbeat.start();
         executor.submit(agent::run);
-        channelManager.startAll();
+        channelManager.startOutbound();
+        // Agent 与出站分发都已在消费，先把上次未处理完的消息放回总线，再让渠道接收新消息，保持先后顺序
+        int replayed = bus.replayWal();
+        if (replayed > 0) {
+            System.out.println("Replayed " + replayed + " unacknowledged message(s) from WAL.");
+        }
+        channelManager.startChannels();
 
         System.out.println("javaClaw gateway started. Press Ctrl+C to stop.");
         try {
@@ -73,8 +140,14 @@ public class GatewayCommand implements Runnable {
         agent.stop();
         bus.stop();
         channelManager.stop();
+        if (wal != null) {
+            wal.close();
+        }
         cronService.stop();
         heartbeat.stop();
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
         agent.closeMcp();
         executor.shutdown();
     }
@@ -1,12 +1,23 @@
 package com.javaclaw.cli;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.javaclaw.config.Config;
 import com.javaclaw.config.ConfigLoader;
+import com.javaclaw.config.GatewayConfig;
+import com.javaclaw.http.HttpClients;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
 import picocli.CommandLine;
 
 import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
- * status 子命令：打印配置路径、工作区、数据目录是否存在等状态。
+ * status 子命令：打印配置路径、工作区、数据目录是否存在等状态；gateway 开启指标服务时一并打印 token 用量。
  */
 @CommandLine.Command(name = "status", description = "查看配置与工作区状态")
 public class StatusCommand implements Runnable {
@@ -17,5 +28,58 @@ public class StatusCommand implements Runnable {
         System.out.println("DataDir:  " + ConfigLoader.getDataDir() + " (exists: " + Files.exists(ConfigLoader.getDataDir()) + ")");
         System.out.println("Workspace: " + ConfigLoader.getDefaultWorkspacePath() + " (exists: " + Files.exists(ConfigLoader.getDefaultWorkspacePath()) + ")");
         System.out.println("Sessions: " + ConfigLoader.getSessionsDir() + " (exists: " + Files.exists(ConfigLoader.getSessionsDir()) + ")");
+        printTokenUsage(ConfigLoader.loadConfig());
+    }
+
+    /** 从运行中 gateway 的 /usage 读取 token 用量；未配置 metricsPort 或连不上时只打印一行提示 */
+    private static void printTokenUsage(Config config) {
+        GatewayConfig gw = config.getGateway();
+        if (gw == null || gw.getMetricsPort() <= 0) {
+            System.out.println("Token usage: unavailable (gateway.metricsPort not set)");
+            return;
+        }
+        String host = gw.getMetricsHost() == null || gw.getMetricsHost().isEmpty() || "0.0.0.0".equals(gw.getMetricsHost())
+                ? "127.0.0.1" : gw.getMetricsHost();
+        String url = "http://" + host + ":" + gw.getMetricsPort() + "/usage";
+        OkHttpClient client = HttpClients.newBuilder()
+                .connectTimeout(2, TimeUnit.SECONDS)
+                .readTimeout(5, TimeUnit.SECONDS)
+                .build();
+        try (Response response = client.newCall(new Request.Builder().url(url).build()).execute()) {
+            if (!response.isSuccessful() || response.body() == null) {
+                System.out.println("Token usage: unavailable (" + url + " -> " + response.code() + ")");
+                return;
+            }
+            JsonNode root = new ObjectMapper().readTree(response.body().string());
+            System.out.println("Token usage (" + url + "):");
+            printRow("total", root.get("total"));
+            printSection("By model", root.get("models"));
+            printSection("By channel", root.get("channels"));
+            printSection("By session", root.get("sessions"));
+        } catch (Exception e) {
+            System.out.println("Token usage: unavailable (gateway not reachable at " + url + ")");
+        }
+    }
+
+    private static void printSection(String title, JsonNode section) {
+        if (section == null || section.size() == 0) {
+            return;
+        }
+        System.out.println("  " + title + ":");
+        Iterator<Map.Entry<String, JsonNode>> it = section.fields();
+        while (it.hasNext()) {
+            Map.Entry<String, JsonNode> e = it.next();
+            printRow("  " + e.getKey(), e.getValue());
+        }
+    }
+
+    private static void printRow(String name, JsonNode u) {
+        if (u == null) {
+            return;
+        }
+        System.out.println("  " + name + ": requests=" + u.path("requests").asLong()
+                + ", prompt=" + u.path("promptTokens").asLong()
+                + ", completion=" + u.path("completionTokens").asLong()
+                + ", cached=" + u.path("cachedTokens").asLong());
     }
 }
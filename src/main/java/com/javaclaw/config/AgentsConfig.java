@@ -2,6 +2,7 @@ package com.javaclaw.config;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Agent 默认配置：工作区、模型、Token 上限、温度、工具迭代次数、记忆窗口等。
@@ -25,6 +26,46 @@ public class AgentsConfig {
     private String defaultProvider;
     /** 可选：指定 model 使用的 provider，未设则用 defaultProvider */
     private List<String> providerModels;
+    /** 备用 provider 名（providers 中的 key），与主 provider 一起按延迟/错误率路由并故障切换 */
+    private List<String> fallbackProviders;
+    /** 端点连续失败多少次后熔断 */
+    private int circuitBreakerFailures = 3;
+    /** 熔断持续秒数，到期后放行一个探测请求 */
+    private int circuitBreakerOpenSeconds = 30;
+    /** 是否开启精确匹配的 LLM 响应缓存（同样的 model、messages、tools、temperature 直接返回上次结果） */
+    private boolean responseCache = false;
+    /** 响应缓存内存层最多条数 */
+    private int responseCacheMaxEntries = 256;
+    /** 响应缓存有效期（秒） */
+    private int responseCacheTtlSeconds = 3600;
+    /** 是否启用响应缓存磁盘层（数据目录 cache/llm 下），重启后仍可命中 */
+    private boolean responseCacheDisk = false;
+    /** 响应缓存磁盘层最多条数 */
+    private int responseCacheDiskMaxEntries = 4096;
+    /** Gateway 下 Agent 工作线程（会话分片）数，0 表示取 CPU 核数 */
+    private int workerThreads = 0;
+    /** 每个工作分片的排队上限，满时阻塞入站分派 */
+    private int workerQueueCapacity = 256;
+    /** gateway 使用的 Agent 引擎：threaded（工作线程同步处理）或 event（事件驱动状态机） */
+    private String engine = "threaded";
+    /** event 引擎的事件线程数 */
+    private int eventThreads = 2;
+    /** 按会话防抖窗口（毫秒）：连续消息合并为一轮，0 表示关闭 */
+    private long debounceMs = 0;
+    /** 是否并发执行同一轮响应中可并发的工具调用（如 read_file、list_dir、exec） */
+    private boolean parallelToolCalls = false;
+    /** 并发工具调用的线程上限 */
+    private int toolConcurrency = 4;
+    /** 流式接收时提前执行参数已完整的工具调用（需开启 parallelToolCalls） */
+    private boolean earlyToolDispatch = false;
+    /** system prompt 布局：classic（默认，全部在 system 消息中，时间在最前）或 stableFirst（易变内容随用户消息发送，便于 provider 前缀缓存） */
+    private String promptLayout = "classic";
+    /** 记忆合并（consolidate）同时运行的任务上限 */
+    private int consolidationConcurrency = 1;
+    /** 模型上下文窗口 token 数；大于 0 时按 token 预算截取历史（替代 memoryWindow 条数），0 表示不启用 */
+    private int contextWindowTokens = 0;
+    /** 按模型名覆盖 contextWindowTokens */
+    private Map<String, Integer> contextWindowTokensByModel;
 
     public String getWorkspace() {
         return workspace;
@@ -89,4 +130,170 @@ public class AgentsConfig {
     public void setProviderModels(List<String> providerModels) {
         this.providerModels = providerModels;
     }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public int getWorkerQueueCapacity() {
+        return workerQueueCapacity;
+    }
+
+    public void setWorkerQueueCapacity(int workerQueueCapacity) {
+        this.workerQueueCapacity = workerQueueCapacity;
+    }
+
+    public boolean isParallelToolCalls() {
+        return parallelToolCalls;
+    }
+
+    public void setParallelToolCalls(boolean parallelToolCalls) {
+        this.parallelToolCalls = parallelToolCalls;
+    }
+
+    public int getToolConcurrency() {
+        return toolConcurrency;
+    }
+
+    public void setToolConcurrency(int toolConcurrency) {
+        this.toolConcurrency = toolConcurrency;
+    }
+
+    public String getPromptLayout() {
+        return promptLayout;
+    }
+
+    public void setPromptLayout(String promptLayout) {
+        this.promptLayout = promptLayout;
+    }
+
+    public boolean isResponseCache() {
+        return responseCache;
+    }
+
+    public void setResponseCache(boolean responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    public int getResponseCacheMaxEntries() {
+        return responseCacheMaxEntries;
+    }
+
+    public void setResponseCacheMaxEntries(int responseCacheMaxEntries) {
+        this.responseCacheMaxEntries = responseCacheMaxEntries;
+    }
+
+    public int getResponseCacheTtlSeconds() {
+        return responseCacheTtlSeconds;
+    }
+
+    public void setResponseCacheTtlSeconds(int responseCacheTtlSeconds) {
+        this.responseCacheTtlSeconds = responseCacheTtlSeconds;
+    }
+
+    public boolean isResponseCacheDisk() {
+        return responseCacheDisk;
+    }
+
+    public void setResponseCacheDisk(boolean responseCacheDisk) {
+        this.responseCacheDisk = responseCacheDisk;
+    }
+
+    public int getResponseCacheDiskMaxEntries() {
+        return responseCacheDiskMaxEntries;
+    }
+
+    public void setResponseCacheDiskMaxEntries(int responseCacheDiskMaxEntries) {
+        this.responseCacheDiskMaxEntries = responseCacheDiskMaxEntries;
+    }
+
+    public int getConsolidationConcurrency() {
+        return consolidationConcurrency;
+    }
+
+    public void setConsolidationConcurrency(int consolidationConcurrency) {
+        this.consolidationConcurrency = consolidationConcurrency;
+    }
+
+    public int getContextWindowTokens() {
+        return contextWindowTokens;
+    }
+
+    public void setContextWindowTokens(int contextWindowTokens) {
+        this.contextWindowTokens = contextWindowTokens;
+    }
+
+    public Map<String, Integer> getContextWindowTokensByModel() {
+        return contextWindowTokensByModel == null ? Collections.<String, Integer>emptyMap() : contextWindowTokensByModel;
+    }
+
+    public void setContextWindowTokensByModel(Map<String, Integer> contextWindowTokensByModel) {
+        this.contextWindowTokensByModel = contextWindowTokensByModel;
+    }
+
+    /** 指定模型的上下文窗口 token 数：优先 contextWindowTokensByModel，否则 contextWindowTokens */
+    public int resolveContextWindowTokens(String model) {
+        Integer v = model != null ? getContextWindowTokensByModel().get(model) : null;
+        return v != null ? v : contextWindowTokens;
+    }
+
+    public boolean isEarlyToolDispatch() {
+        return earlyToolDispatch;
+    }
+
+    public void setEarlyToolDispatch(boolean earlyToolDispatch) {
+        this.earlyToolDispatch = earlyToolDispatch;
+    }
+
+    public List<String> getFallbackProviders() {
+        return fallbackProviders == null ? Collections.<String>emptyList() : fallbackProviders;
+    }
+
+    public void setFallbackProviders(List<String> fallbackProviders) {
+        this.fallbackProviders = fallbackProviders;
+    }
+
+    public int getCircuitBreakerFailures() {
+        return circuitBreakerFailures;
+    }
+
+    public void setCircuitBreakerFailures(int circuitBreakerFailures) {
+        this.circuitBreakerFailures = circuitBreakerFailures;
+    }
+
+    public int getCircuitBreakerOpenSeconds() {
+        return circuitBreakerOpenSeconds;
+    }
+
+    public void setCircuitBreakerOpenSeconds(int circuitBreakerOpenSeconds) {
+        this.circuitBreakerOpenSeconds = circuitBreakerOpenSeconds;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    public void setEngine(String engine) {
+        this.engine = engine;
+    }
+
+    public int getEventThreads() {
+        return eventThreads;
+    }
+
+    public void setEventThreads(int eventThreads) {
+        this.eventThreads = eventThreads;
+    }
+
+    public long getDebounceMs() {
+        return debounceMs;
+    }
+
+    public void setDebounceMs(long debounceMs) {
+        this.debounceMs = debounceMs;
+    }
 }
@@ -1,12 +1,36 @@
 package com.javaclaw.config;
 
 /**
- * Gateway 服务配置：host、port。对应 config.json 中 gateway。
+ * Gateway 服务配置：host、port，指标 HTTP 服务的 metricsHost、metricsPort，消息总线容量与溢出策略，以及共享 HTTP 客户端设置 http。
+ * 对应 config.json 中 gateway。
  */
 public class GatewayConfig {
 
     private String host = "0.0.0.0";
     private int port = 8765;
+    /** 指标服务监听地址，默认仅本机 */
+    private String metricsHost = "127.0.0.1";
+    /** 指标服务端口（/metrics、/usage），0 表示不启动 */
+    private int metricsPort = 0;
+    /** 入站队列容量，0 表示不限 */
+    private int inboundCapacity = 0;
+    /** 入站队列满时的策略：block / dropOldest / reject */
+    private String inboundOverflow = "block";
+    /** 出站队列容量，0 表示不限 */
+    private int outboundCapacity = 0;
+    /** 出站队列满时的策略：block / dropOldest / reject */
+    private String outboundOverflow = "block";
+    /** 入站 reject 时回给发送者的提示，空串表示不回复 */
+    private String busyReply = "Busy right now, please try again later.";
+    /** 总线队列实现：linked（LinkedBlockingQueue）/ ring（预分配无锁环形缓冲） */
+    private String busImpl = "linked";
+    /** 入站调度：fifo / fair（用户消息优先于后台消息，同类别内按会话轮转） */
+    private String inboundScheduling = "fifo";
+    /** 是否启用总线预写日志（dataDir/wal），重启后重放未处理完的消息 */
+    private boolean wal = false;
+    /** WAL 单个分段文件大小（MB） */
+    private int walSegmentMb = 16;
+    private HttpClientConfig http;
 
     public String getHost() {
         return host;
@@ -23,4 +47,105 @@ public class GatewayConfig {
     public void setPort(int port) {
         this.port = port;
     }
+
+    public String getMetricsHost() {
+        return metricsHost;
+    }
+
+    public void setMetricsHost(String metricsHost) {
+        this.metricsHost = metricsHost;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    public int getInboundCapacity() {
+        return inboundCapacity;
+    }
+
+    public void setInboundCapacity(int inboundCapacity) {
+        this.inboundCapacity = inboundCapacity;
+    }
+
+    public String getInboundOverflow() {
+        return inboundOverflow;
+    }
+
+    public void setInboundOverflow(String inboundOverflow) {
+        this.inboundOverflow = inboundOverflow;
+    }
+
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    public void setOutboundCapacity(int outboundCapacity) {
+        this.outboundCapacity = outboundCapacity;
+    }
+
+    public String getOutboundOverflow() {
+        return outboundOverflow;
+    }
+
+    public void setOutboundOverflow(String outboundOverflow) {
+        this.outboundOverflow = outboundOverflow;
+    }
+
+    public String getBusyReply() {
+        return busyReply;
+    }
+
+    public void setBusyReply(String busyReply) {
+        this.busyReply = busyReply;
+    }
+
+    public String getBusImpl() {
+        return busImpl;
+    }
+
+    public void setBusImpl(String busImpl) {
+        this.busImpl = busImpl;
+    }
+
+    public String getInboundScheduling() {
+        return inboundScheduling;
+    }
+
+    public void setInboundScheduling(String inboundScheduling) {
+        this.inboundScheduling = inboundScheduling;
+    }
+
+    /** inboundScheduling 是否为 fair */
+    public boolean isFairInbound() {
+        return "fair".equalsIgnoreCase(inboundScheduling);
+    }
+
+    public boolean isWal() {
+        return wal;
+    }
+
+    public void setWal(boolean wal) {
+        this.wal = wal;
+    }
+
+    public int getWalSegmentMb() {
+        return walSegmentMb;
+    }
+
+    public void setWalSegmentMb(int walSegmentMb) {
+        this.walSegmentMb = walSegmentMb;
+    }
+
+    public HttpClientConfig getHttp() {
+        return http == null ? new HttpClientConfig() : http;
+    }
+
+    public void setHttp(HttpClientConfig http) {
+        this.http = http;
+    }
 }
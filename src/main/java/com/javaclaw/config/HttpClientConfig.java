@@ -0,0 +1,68 @@
+package com.javaclaw.config;
+
+/**
+ * 进程内共享 HTTP 客户端（LLM provider、QQ 等渠道）的连接池与并发设置。对应 config.json 中 gateway.http。
+ */
+public class HttpClientConfig {
+
+    /** 连接池保留的最大空闲连接数 */
+    private int maxIdleConnections = 32;
+    /** 空闲连接保活时间（秒） */
+    private int keepAliveSeconds = 300;
+    /** 是否允许 HTTP/2（TLS 协商成功时同一主机的请求复用一条连接） */
+    private boolean http2 = true;
+    /** 异步请求总并发上限 */
+    private int maxRequests = 256;
+    /** 每个主机的异步请求并发上限 */
+    private int maxRequestsPerHost = 64;
+    /** gateway 启动时是否预先连接各 provider 地址与渠道 API，省去首个请求的 DNS 与 TLS 握手 */
+    private boolean prewarm = true;
+
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    public void setMaxIdleConnections(int maxIdleConnections) {
+        this.maxIdleConnections = maxIdleConnections;
+    }
+
+    public int getKeepAliveSeconds() {
+        return keepAliveSeconds;
+    }
+
+    public void setKeepAliveSeconds(int keepAliveSeconds) {
+        this.keepAliveSeconds = keepAliveSeconds;
+    }
+
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    public void setHttp2(boolean http2) {
+        this.http2 = http2;
+    }
+
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    public void setMaxRequests(int maxRequests) {
+        this.maxRequests = maxRequests;
+    }
+
+    public int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        this.maxRequestsPerHost = maxRequestsPerHost;
+    }
+
+    public boolean isPrewarm() {
+        return prewarm;
+    }
+
+    public void setPrewarm(boolean prewarm) {
+        this.prewarm = prewarm;
+    }
+}
@@ -1,16 +1,39 @@
 package com.javaclaw.config;
 
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 /**
- * 单个 LLM 提供商配置：apiKey、apiBase、可选 extraHeaders。
+ * 单个 LLM 提供商配置：apiKey、apiBase、可选 extraHeaders，以及可选的备用地址 apiBases。
  * 对应 config.json 中 providers.&lt;name&gt; 节点。
  */
 public class ProviderConfig {
 
     private String apiKey;
     private String apiBase;
+    /** 同一 provider 的其他可用地址（镜像、代理、其他区域），与 apiBase 一起参与路由与故障切换 */
+    private List<String> apiBases;
+    /** 是否开启对冲请求：首字节迟迟不到时再发一份，先到者胜出 */
+    private boolean hedge = false;
+    /** 对冲延迟取最近首字节耗时的该分位数 */
+    private double hedgePercentile = 0.95;
+    /** 对冲延迟下限（毫秒） */
+    private long hedgeMinDelayMs = 500;
+    /** 对冲延迟上限（毫秒），样本不足时直接使用 */
+    private long hedgeMaxDelayMs = 5000;
+    /** 同时在途请求上限，0 不限；与 tokensPerMinute 任一大于 0 时启用准入控制 */
+    private int maxInFlight = 0;
+    /** 每分钟 token 预算（prompt 估算 + max_tokens 预扣，结束后按实际用量修正），0 不限 */
+    private long tokensPerMinute = 0;
+    /** 429 的 Retry-After 不超过该秒数时自动等待重试，超过则直接返回错误 */
+    private int maxRetryAfterSeconds = 60;
+    /** 是否 gzip 压缩请求体（Content-Encoding: gzip），需上游或代理支持 */
+    private boolean gzipRequests = false;
+    /** 请求体达到该字节数才压缩 */
+    private int gzipMinBytes = 16384;
+    /** 流式请求是否带 stream_options.include_usage；null 时按 apiBase 判断（仅已知支持的官方端点开启） */
+    private Boolean streamUsage;
     private Map<String, String> extraHeaders;
 
     public String getApiKey() {
@@ -36,4 +59,92 @@ public class ProviderConfig {
     public void setExtraHeaders(Map<String, String> extraHeaders) {
         this.extraHeaders = extraHeaders;
     }
+
+    public List<String> getApiBases() {
+        return apiBases == null ? Collections.<String>emptyList() : apiBases;
+    }
+
+    public void setApiBases(List<String> apiBases) {
+        this.apiBases = apiBases;
+    }
+
+    public boolean isHedge() {
+        return hedge;
+    }
+
+    public void setHedge(boolean hedge) {
+        this.hedge = hedge;
+    }
+
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    public void setHedgePercentile(double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    public long getHedgeMinDelayMs() {
+        return hedgeMinDelayMs;
+    }
+
+    public void setHedgeMinDelayMs(long hedgeMinDelayMs) {
+        this.hedgeMinDelayMs = hedgeMinDelayMs;
+    }
+
+    public long getHedgeMaxDelayMs() {
+        return hedgeMaxDelayMs;
+    }
+
+    public void setHedgeMaxDelayMs(long hedgeMaxDelayMs) {
+        this.hedgeMaxDelayMs = hedgeMaxDelayMs;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public long getTokensPerMinute() {
+        return tokensPerMinute;
+    }
+
+    public void setTokensPerMinute(long tokensPerMinute) {
+        this.tokensPerMinute = tokensPerMinute;
+    }
+
+    public int getMaxRetryAfterSeconds() {
+        return maxRetryAfterSeconds;
+    }
+
+    public void setMaxRetryAfterSeconds(int maxRetryAfterSeconds) {
+        this.maxRetryAfterSeconds = maxRetryAfterSeconds;
+    }
+
+    public boolean isGzipRequests() {
+        return gzipRequests;
+    }
+
+    public void setGzipRequests(boolean gzipRequests) {
+        this.gzipRequests = gzipRequests;
+    }
+
+    public Boolean getStreamUsage() {
+        return streamUsage;
+    }
+
+    public void setStreamUsage(Boolean streamUsage) {
+        this.streamUsage = streamUsage;
+    }
+
+    public int getGzipMinBytes() {
+        return gzipMinBytes;
+    }
+
+    public void setGzipMinBytes(int gzipMinBytes) {
+        this.gzipMinBytes = gzipMinBytes;
+    }
 }
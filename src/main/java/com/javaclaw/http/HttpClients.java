@@ -0,0 +1,120 @@
+package com.javaclaw.http;
+
+import com.javaclaw.config.HttpClientConfig;
+import com.javaclaw.metrics.MetricsSource;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 进程内共享的 OkHttpClient：所有 provider 与渠道共用一个连接池和 Dispatcher，
+ * 各自的超时通过 newBuilder() 派生（派生的 client 仍共用连接池与 Dispatcher）。
+ * 需在创建 provider / 渠道前调用 configure；未调用时使用 HttpClientConfig 默认值。
+ */
+public final class HttpClients {
+
+    private static volatile OkHttpClient shared;
+
+    private HttpClients() {
+    }
+
+    /** 按配置重建共享 client；已派生的 client 不受影响，故应在启动早期调用 */
+    public static synchronized void configure(HttpClientConfig config) {
+        shared = build(config != null ? config : new HttpClientConfig());
+    }
+
+    /** 共享 client（不设超时，沿用 OkHttp 默认 10s） */
+    public static OkHttpClient shared() {
+        OkHttpClient c = shared;
+        if (c == null) {
+            synchronized (HttpClients.class) {
+                if (shared == null) {
+                    shared = build(new HttpClientConfig());
+                }
+                c = shared;
+            }
+        }
+        return c;
+    }
+
+    /** 基于共享 client 的 builder，用于设置各自的超时等；build 出的 client 共用连接池与 Dispatcher */
+    public static OkHttpClient.Builder newBuilder() {
+        return shared().newBuilder();
+    }
+
+    private static OkHttpClient build(HttpClientConfig config) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(Math.max(1, config.getMaxRequests()));
+        dispatcher.setMaxRequestsPerHost(Math.max(1, config.getMaxRequestsPerHost()));
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(Math.max(0, config.getMaxIdleConnections()),
+                        Math.max(1, config.getKeepAliveSeconds()), TimeUnit.SECONDS));
+        if (!config.isHttp2()) {
+            builder.protocols(Collections.singletonList(Protocol.HTTP_1_1));
+        } else {
+            builder.protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+        }
+        return builder.build();
+    }
+
+    /**
+     * 预先连接：对每个地址的 scheme://host:port 各发一个异步 HEAD 请求，完成 DNS、TCP 与 TLS 握手，
+     * 连接留在池中供之后的请求复用。响应状态不重要（404/401 同样建立了连接），失败只打印日志。
+     */
+    public static void prewarm(Collection<String> urls) {
+        Set<HttpUrl> origins = new LinkedHashSet<>();
+        for (String url : urls) {
+            HttpUrl parsed = url != null ? HttpUrl.parse(url) : null;
+            if (parsed != null) {
+                origins.add(new HttpUrl.Builder().scheme(parsed.scheme()).host(parsed.host()).port(parsed.port()).build());
+            }
+        }
+        OkHttpClient client = newBuilder().callTimeout(10, TimeUnit.SECONDS).build();
+        for (HttpUrl origin : origins) {
+            long start = System.nanoTime();
+            client.newCall(new Request.Builder().url(origin).head().build()).enqueue(new Callback() {
+                @Override
+                public void onResponse(Call call, Response response) {
+                    try (Response r = response) {
+                        System.out.println("[HTTP] pre-connected " + origin.host() + " (" + r.protocol() + ") in "
+                                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+                    }
+                }
+
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    System.err.println("[HTTP] pre-connect " + origin.host() + " failed: " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    /** 连接池与 Dispatcher 状态 */
+    public static MetricsSource metrics() {
+        return w -> {
+            OkHttpClient c = shared();
+            w.gauge("javaclaw_http_connections", "Connections in the shared HTTP pool")
+                    .sample("javaclaw_http_connections", c.connectionPool().connectionCount(), "state", "total")
+                    .sample("javaclaw_http_connections", c.connectionPool().idleConnectionCount(), "state", "idle");
+            w.gauge("javaclaw_http_calls", "Async calls in the shared HTTP dispatcher")
+                    .sample("javaclaw_http_calls", c.dispatcher().runningCallsCount(), "state", "running")
+                    .sample("javaclaw_http_calls", c.dispatcher().queuedCallsCount(), "state", "queued");
+        };
+    }
+}
@@ -0,0 +1,61 @@
+package com.javaclaw.metrics;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 固定桶的直方图（Prometheus histogram 语义，桶为累计计数）。observe 无锁，可多线程同时记录。
+ */
+public class Histogram {
+
+    /** 等待/延迟类指标的默认桶（秒） */
+    public static final double[] LATENCY_SECONDS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    private final double[] bounds;
+    private final LongAdder[] buckets;
+    private final LongAdder count = new LongAdder();
+    private final DoubleAdder sum = new DoubleAdder();
+
+    /** @param bounds 各桶上界，需升序；+Inf 桶自动追加 */
+    public Histogram(double[] bounds) {
+        this.bounds = bounds.clone();
+        this.buckets = new LongAdder[bounds.length];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void observe(double value) {
+        for (int i = 0; i < bounds.length; i++) {
+            if (value <= bounds[i]) {
+                buckets[i].increment();
+                break;
+            }
+        }
+        count.increment();
+        sum.add(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getSum() {
+        return sum.sum();
+    }
+
+    double[] bounds() {
+        return bounds;
+    }
+
+    /** 各桶的累计计数（le 语义），不含 +Inf */
+    long[] cumulativeCounts() {
+        long[] out = new long[bounds.length];
+        long running = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            running += buckets[i].sum();
+            out[i] = running;
+        }
+        return out;
+    }
+}
@@ -0,0 +1,42 @@
+package com.javaclaw.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 指标注册表：各组件注册 MetricsSource，抓取时依次收集并输出 Prometheus 文本。
+ * 进程内默认共享一个实例（getDefault），组件无需层层传递注册表。
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    private final List<MetricsSource> sources = new CopyOnWriteArrayList<>();
+
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    public void register(MetricsSource source) {
+        if (source != null) {
+            sources.add(source);
+        }
+    }
+
+    public void unregister(MetricsSource source) {
+        sources.remove(source);
+    }
+
+    /** 收集全部来源；单个来源出错时跳过，不影响其余指标 */
+    public String render() {
+        MetricsWriter writer = new MetricsWriter();
+        for (MetricsSource source : sources) {
+            try {
+                source.collect(writer);
+            } catch (Exception e) {
+                System.err.println("[Metrics] collect failed: " + e.getMessage());
+            }
+        }
+        return writer.toString();
+    }
+}
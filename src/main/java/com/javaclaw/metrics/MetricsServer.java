@@ -0,0 +1,95 @@
+package com.javaclaw.metrics;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 指标 HTTP 服务：GET /metrics 输出 Prometheus 文本，GET /usage 输出 token 用量 JSON（供 status 命令读取）。
+ */
+public class MetricsServer {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final String host;
+    private final int port;
+    private final MetricsRegistry registry;
+    private final TokenUsageTracker usage;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "metrics-http");
+        t.setDaemon(true);
+        return t;
+    });
+    private HttpServer server;
+
+    public MetricsServer(String host, int port, MetricsRegistry registry, TokenUsageTracker usage) {
+        this.host = host != null && !host.isEmpty() ? host : "127.0.0.1";
+        this.port = port;
+        this.registry = registry;
+        this.usage = usage;
+    }
+
+    public void start() {
+        try {
+            server = HttpServer.create(new InetSocketAddress(host, port), 0);
+            server.createContext("/metrics", this::handleMetrics);
+            server.createContext("/usage", this::handleUsage);
+            server.setExecutor(executor);
+            server.start();
+        } catch (Exception e) {
+            throw new RuntimeException("Metrics HTTP server start failed", e);
+        }
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        executor.shutdown();
+    }
+
+    private void handleMetrics(HttpExchange exchange) {
+        respond(exchange, "text/plain; version=0.0.4; charset=UTF-8", () -> registry.render());
+    }
+
+    private void handleUsage(HttpExchange exchange) {
+        respond(exchange, "application/json; charset=UTF-8", () -> MAPPER.writeValueAsString(usage.snapshot()));
+    }
+
+    private void respond(HttpExchange exchange, String contentType, Body body) {
+        try {
+            int code = 200;
+            String text;
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                code = 405;
+                text = "method not allowed";
+            } else {
+                text = body.get();
+            }
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(code, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        } catch (Exception e) {
+            try {
+                exchange.sendResponseHeaders(500, -1);
+            } catch (Exception ignored) {
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private interface Body {
+        String get() throws Exception;
+    }
+}
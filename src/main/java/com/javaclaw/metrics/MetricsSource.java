@@ -0,0 +1,9 @@
+package com.javaclaw.metrics;
+
+/**
+ * 指标来源：每次抓取 /metrics 时被调用，把当前值写入 MetricsWriter。
+ */
+public interface MetricsSource {
+
+    void collect(MetricsWriter writer);
+}
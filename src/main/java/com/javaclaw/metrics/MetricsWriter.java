@@ -0,0 +1,114 @@
+package com.javaclaw.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Prometheus 文本格式（0.0.4）输出：样本按指标名归组（不同来源写同名指标也会连续输出），
+ * 同名指标只写一次 HELP/TYPE，标签值自动转义。
+ */
+public class MetricsWriter {
+
+    /** 指标名 -> 该指标的 HELP/TYPE 与样本行，保持首次出现顺序 */
+    private final Map<String, StringBuilder> families = new LinkedHashMap<>();
+
+    /** 计数器（只增） */
+    public MetricsWriter counter(String name, String help) {
+        return declare(name, "counter", help);
+    }
+
+    /** 瞬时值 */
+    public MetricsWriter gauge(String name, String help) {
+        return declare(name, "gauge", help);
+    }
+
+    /** 直方图，样本用 histogram(name, h, labels...) 写出 */
+    public MetricsWriter histogram(String name, String help) {
+        return declare(name, "histogram", help);
+    }
+
+    /** 写出一个直方图的 _bucket / _sum / _count 样本，归在 name 这一组下 */
+    public MetricsWriter histogram(String name, Histogram h, String... labels) {
+        long count = h.getCount();
+        double[] bounds = h.bounds();
+        long[] cumulative = h.cumulativeCounts();
+        String[] withLe = new String[labels.length + 2];
+        System.arraycopy(labels, 0, withLe, 0, labels.length);
+        withLe[labels.length] = "le";
+        for (int i = 0; i < bounds.length; i++) {
+            withLe[labels.length + 1] = Double.toString(bounds[i]);
+            append(name, name + "_bucket", cumulative[i], withLe);
+        }
+        withLe[labels.length + 1] = "+Inf";
+        append(name, name + "_bucket", count, withLe);
+        append(name, name + "_sum", h.getSum(), labels);
+        append(name, name + "_count", count, labels);
+        return this;
+    }
+
+    /**
+     * 写一条样本。labels 为 key, value 交替排列，value 为 null 时记为空串。
+     */
+    public MetricsWriter sample(String name, double value, String... labels) {
+        return append(name, name, value, labels);
+    }
+
+    private MetricsWriter append(String family, String name, double value, String... labels) {
+        StringBuilder out = families.computeIfAbsent(family, k -> new StringBuilder());
+        out.append(name);
+        if (labels.length > 0) {
+            out.append('{');
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(labels[i]).append("=\"");
+                escape(out, labels[i + 1]);
+                out.append('"');
+            }
+            out.append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+        return this;
+    }
+
+    private MetricsWriter declare(String name, String type, String help) {
+        if (!families.containsKey(name)) {
+            families.put(name, new StringBuilder()
+                    .append("# HELP ").append(name).append(' ').append(help).append('\n')
+                    .append("# TYPE ").append(name).append(' ').append(type).append('\n'));
+        }
+        return this;
+    }
+
+    private static void escape(StringBuilder out, String v) {
+        if (v == null) {
+            return;
+        }
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder(4096);
+        for (StringBuilder family : families.values()) {
+            out.append(family);
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,146 @@
+package com.javaclaw.metrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LLM token 用量统计：按会话、渠道、模型三个维度累计请求数与 prompt / completion / 缓存命中 token。
+ * 计数用 LongAdder，维度表用 ConcurrentHashMap，记录路径无锁，多个工作线程同时写入不互相阻塞。
+ */
+public class TokenUsageTracker implements MetricsSource {
+
+    private final Usage total = new Usage();
+    private final Map<String, Usage> bySession = new ConcurrentHashMap<>();
+    private final Map<String, Usage> byChannel = new ConcurrentHashMap<>();
+    private final Map<String, Usage> byModel = new ConcurrentHashMap<>();
+
+    /** 记录 calls 次 LLM 调用的合计用量；维度为 null 时记为 "unknown" */
+    public void record(String sessionKey, String channel, String model,
+                       long calls, long promptTokens, long completionTokens, long cachedTokens) {
+        total.add(calls, promptTokens, completionTokens, cachedTokens);
+        usageOf(bySession, sessionKey).add(calls, promptTokens, completionTokens, cachedTokens);
+        usageOf(byChannel, channel).add(calls, promptTokens, completionTokens, cachedTokens);
+        usageOf(byModel, model).add(calls, promptTokens, completionTokens, cachedTokens);
+    }
+
+    private static Usage usageOf(Map<String, Usage> map, String key) {
+        return map.computeIfAbsent(key != null ? key : "unknown", k -> new Usage());
+    }
+
+    public Usage getTotal() {
+        return total;
+    }
+
+    public Map<String, Usage> getBySession() {
+        return Collections.unmodifiableMap(bySession);
+    }
+
+    public Map<String, Usage> getByChannel() {
+        return Collections.unmodifiableMap(byChannel);
+    }
+
+    public Map<String, Usage> getByModel() {
+        return Collections.unmodifiableMap(byModel);
+    }
+
+    /** 当前快照（按 key 排序），用于 JSON 输出：{total, sessions, channels, models} */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put("total", total.toMap());
+        out.put("sessions", toMaps(bySession));
+        out.put("channels", toMaps(byChannel));
+        out.put("models", toMaps(byModel));
+        return out;
+    }
+
+    private static Map<String, Object> toMaps(Map<String, Usage> map) {
+        Map<String, Object> out = new TreeMap<>();
+        for (Map.Entry<String, Usage> e : map.entrySet()) {
+            out.put(e.getKey(), e.getValue().toMap());
+        }
+        return out;
+    }
+
+    @Override
+    public void collect(MetricsWriter w) {
+        w.counter("javaclaw_llm_requests_total", "LLM chat calls");
+        writeFamily(w, "javaclaw_llm_requests_total", 0);
+        w.counter("javaclaw_llm_prompt_tokens_total", "Prompt tokens reported by the provider");
+        writeFamily(w, "javaclaw_llm_prompt_tokens_total", 1);
+        w.counter("javaclaw_llm_completion_tokens_total", "Completion tokens reported by the provider");
+        writeFamily(w, "javaclaw_llm_completion_tokens_total", 2);
+        w.counter("javaclaw_llm_cached_tokens_total", "Prompt tokens served from the provider prefix cache");
+        writeFamily(w, "javaclaw_llm_cached_tokens_total", 3);
+    }
+
+    /** 同一指标的全部样本连续写出（Prometheus 文本格式要求），field 依次为 requests / prompt / completion / cached */
+    private void writeFamily(MetricsWriter w, String name, int field) {
+        writeDimension(w, name, field, "model", byModel);
+        writeDimension(w, name, field, "channel", byChannel);
+        writeDimension(w, name, field, "session", bySession);
+    }
+
+    private static void writeDimension(MetricsWriter w, String name, int field, String label, Map<String, Usage> map) {
+        for (Map.Entry<String, Usage> e : map.entrySet()) {
+            w.sample(name, e.getValue().get(field), label, e.getKey());
+        }
+    }
+
+    /** 单个维度值的累计用量 */
+    public static final class Usage {
+
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder promptTokens = new LongAdder();
+        private final LongAdder completionTokens = new LongAdder();
+        private final LongAdder cachedTokens = new LongAdder();
+
+        void add(long calls, long prompt, long completion, long cached) {
+            requests.add(calls);
+            promptTokens.add(prompt);
+            completionTokens.add(completion);
+            cachedTokens.add(cached);
+        }
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        public long getPromptTokens() {
+            return promptTokens.sum();
+        }
+
+        public long getCompletionTokens() {
+            return completionTokens.sum();
+        }
+
+        public long getCachedTokens() {
+            return cachedTokens.sum();
+        }
+
+        long get(int field) {
+            switch (field) {
+                case 0:
+                    return getRequests();
+                case 1:
+                    return getPromptTokens();
+                case 2:
+                    return getCompletionTokens();
+                default:
+                    return getCachedTokens();
+            }
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("requests", getRequests());
+            m.put("promptTokens", getPromptTokens());
+            m.put("completionTokens", getCompletionTokens());
+            m.put("cachedTokens", getCachedTokens());
+            return m;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.javaclaw.providers;
+
+import com.javaclaw.metrics.Histogram;
+import com.javaclaw.metrics.MetricsSource;
+import com.javaclaw.metrics.MetricsWriter;
+import com.javaclaw.tokenizer.EstimatingTokenizer;
+import com.javaclaw.tokenizer.Tokenizer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单个 provider 的准入控制：同时在途请求数上限 + 每分钟 token 预算（令牌桶），超出时排队。
+ * 队列按会话 key 分组、轮转放行，某个会话的突发请求不会饿死其他会话。
+ * 会话分两个优先级类别：定时任务（cron:）、心跳（heartbeat:）与 system 会话为后台类，其余为交互类；
+ * 交互类有等待时优先放行，后台类有等待时交互类连续放行 STARVATION_LIMIT 次后让出一次，避免饿死。
+ * 上游返回 429 时整个 provider 暂停到 Retry-After 之后再放行。同一 provider 的多个地址共用一个实例。
+ */
+public class AdmissionController implements MetricsSource {
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "llm-admission");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final Tokenizer ESTIMATOR = new EstimatingTokenizer();
+    /** 不在任何会话作用域内的请求（如 CLI 单次调用）归入该 key */
+    private static final String NO_SESSION = "";
+    /** 后台类会话 key 前缀 */
+    private static final String[] BACKGROUND_PREFIXES = {"cron:", "heartbeat:", "system:"};
+    /** 后台类有等待时，交互类连续放行的最大次数 */
+    private static final int STARVATION_LIMIT = 8;
+    private static final int INTERACTIVE = 0;
+    private static final int BACKGROUND = 1;
+
+    private final String name;
+    private final int maxInFlight;
+    private final long tokensPerMinute;
+
+    /** 会话 key -&gt; 等待者；rotations[类别] 为该类别中有等待者的会话的轮转顺序 */
+    private final Map<String, ArrayDeque<Waiter>> queues = new HashMap<>();
+    private final List<ArrayDeque<String>> rotations = new ArrayList<>(2);
+    /** 后台类有等待时交互类已连续放行的次数 */
+    private int streak;
+    private int queued;
+    private int inFlight;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+    /** 429 之后暂停放行到该时刻（System.nanoTime），0 表示未暂停 */
+    private long pausedUntilNanos;
+    private boolean timerScheduled;
+
+    private final Histogram queueWait = new Histogram(Histogram.LATENCY_SECONDS);
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+
+    /**
+     * @param name            指标标签（provider 名）
+     * @param maxInFlight     同时在途请求上限，&lt;= 0 不限
+     * @param tokensPerMinute 每分钟 token 预算，&lt;= 0 不限
+     */
+    public AdmissionController(String name, int maxInFlight, long tokensPerMinute) {
+        this.name = name;
+        this.maxInFlight = maxInFlight;
+        this.tokensPerMinute = tokensPerMinute;
+        this.tokens = tokensPerMinute;
+        this.rotations.add(new ArrayDeque<String>());
+        this.rotations.add(new ArrayDeque<String>());
+    }
+
+    /** 会话是否属于后台类（定时任务、心跳、system） */
+    static boolean isBackground(String sessionKey) {
+        for (String prefix : BACKGROUND_PREFIXES) {
+            if (sessionKey.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 估算一次请求消耗的 token：消息文本按 EstimatingTokenizer 计，再加 maxTokens（上游的 TPM 限额也按 max_tokens 预扣）。
+     * 请求结束后按实际 usage 在 release 中多退少补。
+     */
+    public int estimate(List<Map<String, Object>> messages, int maxTokens) {
+        if (tokensPerMinute <= 0) {
+            return 0;
+        }
+        int n = Math.max(0, maxTokens);
+        if (messages != null) {
+            for (Map<String, Object> m : messages) {
+                Object content = m.get("content");
+                if (content instanceof String) {
+                    n += ESTIMATOR.count((String) content);
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * 申请放行。能立即放行时返回已完成的 future；否则排入 sessionKey 的队列，轮到时完成。
+     * retry 为 true 时插到该会话队首（429 后的重试不重新排队尾）。取消 future 即放弃排队。
+     */
+    public CompletableFuture<Void> acquire(String sessionKey, int cost, boolean retry) {
+        Waiter w = new Waiter(cost);
+        String key = sessionKey != null ? sessionKey : NO_SESSION;
+        synchronized (this) {
+            ArrayDeque<Waiter> q = queues.get(key);
+            if (q == null) {
+                q = new ArrayDeque<>();
+                queues.put(key, q);
+                rotations.get(isBackground(key) ? BACKGROUND : INTERACTIVE).addLast(key);
+            }
+            if (retry) {
+                q.addFirst(w);
+            } else {
+                q.addLast(w);
+            }
+            queued++;
+        }
+        dispatch();
+        return w.future;
+    }
+
+    /**
+     * 请求结束：归还在途名额，并按实际用量修正预扣的 token。
+     * response 为 null 或失败时全额退回（被拒绝的请求不计入上游用量）。
+     */
+    public void release(int cost, LLMResponse response) {
+        synchronized (this) {
+            inFlight--;
+            if (tokensPerMinute > 0) {
+                if (response == null || response.isError()) {
+                    tokens += cost;
+                } else if (response.getPromptTokens() + response.getCompletionTokens() > 0) {
+                    tokens += cost - (response.getPromptTokens() + response.getCompletionTokens());
+                }
+                tokens = Math.min(tokens, tokensPerMinute);
+            }
+        }
+        dispatch();
+    }
+
+    /** 上游限流：暂停放行 delayMillis，期间到达的请求都排队 */
+    public void pause(long delayMillis) {
+        throttled.incrementAndGet();
+        synchronized (this) {
+            long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            if (until - pausedUntilNanos > 0 || pausedUntilNanos == 0) {
+                pausedUntilNanos = until;
+            }
+        }
+    }
+
+    void recordRetry() {
+        retries.incrementAndGet();
+    }
+
+    /** 本次从哪个类别放行：交互类优先，后台类等待时每 STARVATION_LIMIT 次让出一次；都为空时返回 -1。调用方持有锁 */
+    private int pickClass() {
+        boolean interactive = !rotations.get(INTERACTIVE).isEmpty();
+        boolean background = !rotations.get(BACKGROUND).isEmpty();
+        if (!interactive) {
+            return background ? BACKGROUND : -1;
+        }
+        return background && streak >= STARVATION_LIMIT ? BACKGROUND : INTERACTIVE;
+    }
+
+    /** 按类别与轮转顺序放行能放行的等待者；受限于令牌或暂停时安排定时器稍后再试 */
+    private void dispatch() {
+        List<Waiter> ready = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            refill(now);
+            long wakeAt = 0;
+            int cls;
+            while ((cls = pickClass()) >= 0 && (maxInFlight <= 0 || inFlight < maxInFlight)) {
+                if (pausedUntilNanos != 0) {
+                    if (now - pausedUntilNanos < 0) {
+                        wakeAt = pausedUntilNanos;
+                        break;
+                    }
+                    pausedUntilNanos = 0;
+                }
+                ArrayDeque<String> rotation = rotations.get(cls);
+                String key = rotation.peekFirst();
+                ArrayDeque<Waiter> q = queues.get(key);
+                Waiter w = q.peekFirst();
+                if (!w.future.isDone() && tokensPerMinute > 0 && tokens < Math.min(w.cost, tokensPerMinute)) {
+                    // 单个请求超过整分钟预算时等桶满即放行，避免永远等不到
+                    double missing = Math.min(w.cost, tokensPerMinute) - tokens;
+                    wakeAt = now + (long) Math.ceil(missing * TimeUnit.MINUTES.toNanos(1) / tokensPerMinute);
+                    break;
+                }
+                q.pollFirst();
+                queued--;
+                rotation.pollFirst();
+                if (q.isEmpty()) {
+                    queues.remove(key);
+                } else {
+                    rotation.addLast(key);
+                }
+                streak = cls == INTERACTIVE && !rotations.get(BACKGROUND).isEmpty() ? streak + 1 : 0;
+                if (w.future.isDone()) {
+                    // 已取消的等待者直接丢弃
+                    continue;
+                }
+                inFlight++;
+                tokens -= w.cost;
+                ready.add(w);
+            }
+            if (wakeAt != 0 && !timerScheduled) {
+                timerScheduled = true;
+                TIMER.schedule(() -> {
+                    synchronized (this) {
+                        timerScheduled = false;
+                    }
+                    dispatch();
+                }, Math.max(1, wakeAt - now), TimeUnit.NANOSECONDS);
+            }
+        }
+        for (Waiter w : ready) {
+            queueWait.observe((System.nanoTime() - w.enqueuedNanos) / 1e9);
+            if (!w.future.complete(null)) {
+                // 刚好在放行时被取消
+                release(w.cost, null);
+            }
+        }
+    }
+
+    private void refill(long now) {
+        if (tokensPerMinute <= 0) {
+            return;
+        }
+        long elapsed = now - lastRefillNanos;
+        lastRefillNanos = now;
+        tokens = Math.min(tokensPerMinute, tokens + (double) tokensPerMinute * elapsed / TimeUnit.MINUTES.toNanos(1));
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    public Histogram getQueueWait() {
+        return queueWait;
+    }
+
+    @Override
+    public void collect(MetricsWriter w) {
+        w.histogram("javaclaw_admission_queue_wait_seconds", "Time LLM requests waited for admission")
+                .histogram("javaclaw_admission_queue_wait_seconds", queueWait, "provider", name);
+        w.gauge("javaclaw_admission_in_flight", "LLM requests currently admitted")
+                .sample("javaclaw_admission_in_flight", getInFlight(), "provider", name);
+        w.gauge("javaclaw_admission_queued", "LLM requests waiting for admission")
+                .sample("javaclaw_admission_queued", getQueued(), "provider", name);
+        synchronized (this) {
+            refill(System.nanoTime());
+            w.gauge("javaclaw_admission_tokens_available", "Remaining tokens-per-minute budget")
+                    .sample("javaclaw_admission_tokens_available", tokensPerMinute > 0 ? Math.max(0, tokens) : -1,
+                            "provider", name);
+        }
+        w.counter("javaclaw_admission_throttled_total", "429 responses that paused admission")
+                .sample("javaclaw_admission_throttled_total", throttled.get(), "provider", name);
+        w.counter("javaclaw_admission_retries_total", "Requests retried after Retry-After")
+                .sample("javaclaw_admission_retries_total", retries.get(), "provider", name);
+    }
+
+    private static final class Waiter {
+        final int cost;
+        final long enqueuedNanos = System.nanoTime();
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Waiter(int cost) {
+            this.cost = cost;
+        }
+    }
+}
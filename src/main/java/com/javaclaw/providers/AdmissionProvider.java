@@ -0,0 +1,206 @@
+package com.javaclaw.providers;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * 在 provider 前加一层准入控制：每次请求先经 AdmissionController 排队放行（会话 key 取自 LLMRequestScope），
+ * 结束后归还名额。上游返回 429 时按 Retry-After（没有则按 1s、2s、4s 退避）暂停整个 provider 并自动重试，
+ * 最多 MAX_RETRIES 次；等待超过 maxRetryAfterMillis 或已有输出发给调用方时不再重试，直接返回错误。
+ */
+public class AdmissionProvider implements LLMProvider {
+
+    private static final int MAX_RETRIES = 3;
+    private static final long DEFAULT_BACKOFF_MILLIS = 1000;
+
+    private final LLMProvider delegate;
+    private final AdmissionController controller;
+    private final long maxRetryAfterMillis;
+
+    /**
+     * @param maxRetryAfterMillis 愿意等待的最长 Retry-After，超过则不重试（交给 RoutingProvider 换端点或返回错误）
+     */
+    public AdmissionProvider(LLMProvider delegate, AdmissionController controller, long maxRetryAfterMillis) {
+        this.delegate = delegate;
+        this.controller = controller;
+        this.maxRetryAfterMillis = maxRetryAfterMillis;
+    }
+
+    @Override
+    public LLMResponse chat(List<Map<String, Object>> messages,
+                            List<Map<String, Object>> tools,
+                            String model,
+                            int maxTokens,
+                            double temperature) {
+        return chat(messages, tools, model, maxTokens, temperature, null, null);
+    }
+
+    @Override
+    public LLMResponse chat(List<Map<String, Object>> messages,
+                            List<Map<String, Object>> tools,
+                            String model,
+                            int maxTokens,
+                            double temperature,
+                            Consumer<String> streamConsumer) {
+        return chat(messages, tools, model, maxTokens, temperature, streamConsumer, null);
+    }
+
+    @Override
+    public LLMResponse chat(List<Map<String, Object>> messages,
+                            List<Map<String, Object>> tools,
+                            String model,
+                            int maxTokens,
+                            double temperature,
+                            Consumer<String> streamConsumer,
+                            Consumer<ToolCallRequest> toolCallConsumer) {
+        String sessionKey = LLMRequestScope.sessionKey();
+        int cost = controller.estimate(messages, maxTokens);
+        boolean[] emitted = {false};
+        Consumer<String> sc = streamConsumer == null ? null : chunk -> {
+            emitted[0] = true;
+            streamConsumer.accept(chunk);
+        };
+        Consumer<ToolCallRequest> tc = toolCallConsumer == null ? null : call -> {
+            emitted[0] = true;
+            toolCallConsumer.accept(call);
+        };
+        for (int attempt = 0; ; attempt++) {
+            CompletableFuture<Void> admission = controller.acquire(sessionKey, cost, attempt > 0);
+            try {
+                admission.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (!admission.cancel(false)) {
+                    controller.release(cost, null);
+                }
+                return interrupted();
+            } catch (ExecutionException | CancellationException e) {
+                return interrupted();
+            }
+            LLMResponse r = null;
+            try {
+                r = delegate.chat(messages, tools, model, maxTokens, temperature, sc, tc);
+            } finally {
+                controller.release(cost, r);
+            }
+            if (emitted[0] || !shouldRetry(r, attempt)) {
+                return r;
+            }
+        }
+    }
+
+    /** 异步版本：排队与 Retry-After 等待都不占线程，放行后调用 delegate.chatAsync */
+    @Override
+    public CompletableFuture<LLMResponse> chatAsync(List<Map<String, Object>> messages,
+                                                    List<Map<String, Object>> tools,
+                                                    String model,
+                                                    int maxTokens,
+                                                    double temperature,
+                                                    Consumer<String> streamConsumer,
+                                                    Consumer<ToolCallRequest> toolCallConsumer) {
+        AsyncRequest req = new AsyncRequest(LLMRequestScope.sessionKey(), controller.estimate(messages, maxTokens),
+                messages, tools, model, maxTokens, temperature, streamConsumer, toolCallConsumer);
+        req.attempt(0);
+        return req.result;
+    }
+
+    /** 429 时暂停 provider 并返回是否重试 */
+    private boolean shouldRetry(LLMResponse r, int attempt) {
+        if (r == null || r.getErrorStatus() != 429 || attempt >= MAX_RETRIES) {
+            return false;
+        }
+        long delay = r.getRetryAfterMillis() > 0 ? r.getRetryAfterMillis() : DEFAULT_BACKOFF_MILLIS << attempt;
+        controller.pause(delay);
+        if (delay > maxRetryAfterMillis) {
+            return false;
+        }
+        controller.recordRetry();
+        return true;
+    }
+
+    private static LLMResponse interrupted() {
+        LLMResponse err = new LLMResponse();
+        err.setContent("[LLM error: interrupted while waiting for admission]");
+        err.setErrorStatus(-1);
+        return err;
+    }
+
+    @Override
+    public String getDefaultModel() {
+        return delegate.getDefaultModel();
+    }
+
+    private final class AsyncRequest {
+        private final String sessionKey;
+        private final int cost;
+        private final List<Map<String, Object>> messages;
+        private final List<Map<String, Object>> tools;
+        private final String model;
+        private final int maxTokens;
+        private final double temperature;
+        private final Consumer<String> streamConsumer;
+        private final Consumer<ToolCallRequest> toolCallConsumer;
+        private final CompletableFuture<LLMResponse> result = new CompletableFuture<>();
+        private volatile boolean emitted;
+
+        AsyncRequest(String sessionKey, int cost, List<Map<String, Object>> messages, List<Map<String, Object>> tools,
+                     String model, int maxTokens, double temperature,
+                     Consumer<String> streamConsumer, Consumer<ToolCallRequest> toolCallConsumer) {
+            this.sessionKey = sessionKey;
+            this.cost = cost;
+            this.messages = messages;
+            this.tools = tools;
+            this.model = model;
+            this.maxTokens = maxTokens;
+            this.temperature = temperature;
+            this.streamConsumer = streamConsumer == null ? null : chunk -> {
+                emitted = true;
+                streamConsumer.accept(chunk);
+            };
+            this.toolCallConsumer = toolCallConsumer == null ? null : call -> {
+                emitted = true;
+                toolCallConsumer.accept(call);
+            };
+        }
+
+        void attempt(int n) {
+            CompletableFuture<Void> admission = controller.acquire(sessionKey, cost, n > 0);
+            // 调用方取消时放弃排队
+            result.whenComplete((r, ex) -> {
+                if (result.isCancelled()) {
+                    admission.cancel(false);
+                }
+            });
+            admission.thenRun(() -> {
+                CompletableFuture<LLMResponse> f;
+                try {
+                    f = LLMRequestScope.call(sessionKey, () -> delegate.chatAsync(
+                            messages, tools, model, maxTokens, temperature, streamConsumer, toolCallConsumer));
+                } catch (RuntimeException e) {
+                    f = new CompletableFuture<>();
+                    f.completeExceptionally(e);
+                }
+                CompletableFuture<LLMResponse> call = f;
+                result.whenComplete((r, ex) -> {
+                    if (result.isCancelled()) {
+                        call.cancel(false);
+                    }
+                });
+                f.whenComplete((resp, ex) -> {
+                    controller.release(cost, resp);
+                    if (ex != null) {
+                        result.completeExceptionally(ex);
+                    } else if (!emitted && !result.isDone() && shouldRetry(resp, n)) {
+                        attempt(n + 1);
+                    } else {
+                        result.complete(resp);
+                    }
+                });
+            });
+        }
+    }
+}
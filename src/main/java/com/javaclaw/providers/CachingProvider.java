@@ -0,0 +1,459 @@
+package com.javaclaw.providers;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.javaclaw.metrics.MetricsSource;
+import com.javaclaw.metrics.MetricsWriter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 精确匹配的响应缓存：以 model、messages、tools、temperature、maxTokens 的 SHA-256 为 key，
+ * 命中时直接返回上次的成功响应（流式回调一次性收到完整 content 与工具调用）。
+ * ContextBuilder 写入的当前时间精确到分钟并参与 key，依赖时间的 cron、heartbeat 提示不会拿到过时的回答。
+ * 最后一条为工具结果的请求（一轮内的后续迭代）不走缓存，免去对整段对话序列化与哈希。
+ * 只有第二次出现的 key 才写入缓存：历史不断增长的会话、记忆合并等输入从不重复的请求不占缓存与磁盘。
+ * 内存层按 LRU + TTL 淘汰；可选磁盘层（每条一个 JSON 文件）在重启后继续命中。
+ * 相同请求并发到达时只有一个发往上游，其余等待其结果（single-flight）。
+ * 只缓存成功响应；命中返回的响应不带 usage（未调用上游），节省的 token 只计入本缓存的指标。
+ */
+public class CachingProvider implements LLMProvider, MetricsSource {
+
+    /** key 计算用：Map 按 key 排序，同样内容得到同样字节 */
+    private static final ObjectMapper KEY_MAPPER = new ObjectMapper()
+            .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    /** 每写入这么多条磁盘缓存清理一次过期与超量文件 */
+    private static final int PRUNE_EVERY = 64;
+    /** seenOnce 相对 maxEntries 的倍数 */
+    private static final int SEEN_FACTOR = 4;
+
+    private final LLMProvider delegate;
+    private final int maxEntries;
+    private final long ttlMillis;
+    /** 磁盘层目录；null 表示只用内存 */
+    private final Path diskDir;
+    private final int diskMaxEntries;
+
+    private final Map<String, CachedEntry> memory;
+    /** 只出现过一次、尚未缓存的 key（有界 LRU，与 memory 同锁） */
+    private final Map<String, Boolean> seenOnce;
+    private final Map<String, CompletableFuture<LLMResponse>> inflight = new ConcurrentHashMap<>();
+    private final AtomicInteger diskWrites = new AtomicInteger();
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong tokensSaved = new AtomicLong();
+
+    /**
+     * @param maxEntries     内存层最多条数
+     * @param ttlSeconds     条目有效期（秒）
+     * @param diskDir        磁盘层目录，null 不启用
+     * @param diskMaxEntries 磁盘层最多条数，超出时删除最旧的
+     */
+    @SuppressWarnings("serial")
+    public CachingProvider(LLMProvider delegate, int maxEntries, long ttlSeconds, Path diskDir, int diskMaxEntries) {
+        this.delegate = delegate;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ttlMillis = Math.max(1, ttlSeconds) * 1000L;
+        this.diskDir = diskDir;
+        this.diskMaxEntries = Math.max(1, diskMaxEntries);
+        this.memory = new LinkedHashMap<String, CachedEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedEntry> eldest) {
+                return size() > CachingProvider.this.maxEntries;
+            }
+        };
+        this.seenOnce = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > CachingProvider.this.maxEntries * SEEN_FACTOR;
+            }
+        };
+        if (diskDir != null) {
+            try {
+                Files.createDirectories(diskDir);
+            } catch (IOException e) {
+                System.err.println("[Cache] create " + diskDir + " failed: " + e.getMessage());
+            }
+            ProviderExecutors.blocking().execute(this::pruneDisk);
+        }
+    }
+
+    @Override
+    public LLMResponse chat(List<Map<String, Object>> messages,
+                            List<Map<String, Object>> tools,
+                            String model,
+                            int maxTokens,
+                            double temperature) {
+        return chat(messages, tools, model, maxTokens, temperature, null, null);
+    }
+
+    @Override
+    public LLMResponse chat(List<Map<String, Object>> messages,
+                            List<Map<String, Object>> tools,
+                            String model,
+                            int maxTokens,
+                            double temperature,
+                            Consumer<String> streamConsumer) {
+        return chat(messages, tools, model, maxTokens, temperature, streamConsumer, null);
+    }
+
+    @Override
+    public LLMResponse chat(List<Map<String, Object>> messages,
+                            List<Map<String, Object>> tools,
+                            String model,
+                            int maxTokens,
+                            double temperature,
+                            Consumer<String> streamConsumer,
+                            Consumer<ToolCallRequest> toolCallConsumer) {
+        String key = cacheable(messages) ? key(messages, tools, model, maxTokens, temperature) : null;
+        if (key == null) {
+            return delegate.chat(messages, tools, model, maxTokens, temperature, streamConsumer, toolCallConsumer);
+        }
+        LLMResponse cached = lookup(key);
+        if (cached != null) {
+            return replay(cached, streamConsumer, toolCallConsumer);
+        }
+        CompletableFuture<LLMResponse> mine = new CompletableFuture<>();
+        CompletableFuture<LLMResponse> leader = inflight.putIfAbsent(key, mine);
+        if (leader != null) {
+            coalesced.incrementAndGet();
+            LLMResponse shared = null;
+            try {
+                shared = leader.join();
+            } catch (CompletionException e) {
+                // 领头请求异常，自己再发一次
+            }
+            if (shared != null && !shared.isError()) {
+                return replay(shared, streamConsumer, toolCallConsumer);
+            }
+            return delegate.chat(messages, tools, model, maxTokens, temperature, streamConsumer, toolCallConsumer);
+        }
+        misses.incrementAndGet();
+        try {
+            LLMResponse r = delegate.chat(messages, tools, model, maxTokens, temperature, streamConsumer, toolCallConsumer);
+            store(key, r);
+            mine.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inflight.remove(key, mine);
+        }
+    }
+
+    /** 异步版本：命中与等待领头请求都不占线程，回调在回调线程池上执行 */
+    @Override
+    public CompletableFuture<LLMResponse> chatAsync(List<Map<String, Object>> messages,
+                                                    List<Map<String, Object>> tools,
+                                                    String model,
+                                                    int maxTokens,
+                                                    double temperature,
+                                                    Consumer<String> streamConsumer,
+                                                    Consumer<ToolCallRequest> toolCallConsumer) {
+        String key = cacheable(messages) ? key(messages, tools, model, maxTokens, temperature) : null;
+        if (key == null) {
+            return delegate.chatAsync(messages, tools, model, maxTokens, temperature, streamConsumer, toolCallConsumer);
+        }
+        LLMResponse cached = lookup(key);
+        if (cached != null) {
+            return CompletableFuture.supplyAsync(() -> replay(cached, streamConsumer, toolCallConsumer),
+                    ProviderExecutors.serial());
+        }
+        CompletableFuture<LLMResponse> mine = new CompletableFuture<>();
+        CompletableFuture<LLMResponse> leader = inflight.putIfAbsent(key, mine);
+        if (leader != null) {
+            coalesced.incrementAndGet();
+            return leader.handle((shared, ex) -> shared)
+                    .thenComposeAsync(shared -> shared != null && !shared.isError()
+                            ? CompletableFuture.completedFuture(replay(shared, streamConsumer, toolCallConsumer))
+                            : delegate.chatAsync(messages, tools, model, maxTokens, temperature,
+                                    streamConsumer, toolCallConsumer), ProviderExecutors.serial());
+        }
+        misses.incrementAndGet();
+        CompletableFuture<LLMResponse> f;
+        try {
+            f = delegate.chatAsync(messages, tools, model, maxTokens, temperature, streamConsumer, toolCallConsumer);
+        } catch (RuntimeException e) {
+            inflight.remove(key, mine);
+            mine.completeExceptionally(e);
+            throw e;
+        }
+        return f.whenComplete((r, ex) -> {
+            if (ex != null) {
+                mine.completeExceptionally(ex);
+            } else {
+                store(key, r);
+                mine.complete(r);
+            }
+            inflight.remove(key, mine);
+        });
+    }
+
+    /** 最后一条为工具结果的请求每次都不同，不计算 key */
+    private static boolean cacheable(List<Map<String, Object>> messages) {
+        return messages != null && !messages.isEmpty()
+                && !"tool".equals(messages.get(messages.size() - 1).get("role"));
+    }
+
+    /** 请求的 SHA-256（十六进制）；无法序列化时返回 null，此次不走缓存 */
+    private static String key(List<Map<String, Object>> messages, List<Map<String, Object>> tools,
+                              String model, int maxTokens, double temperature) {
+        Map<String, Object> req = new LinkedHashMap<>();
+        req.put("model", model);
+        req.put("messages", messages);
+        req.put("tools", tools);
+        req.put("temperature", temperature);
+        req.put("maxTokens", maxTokens);
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(KEY_MAPPER.writeValueAsBytes(req));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /** 先查内存，再查磁盘（命中后提升到内存）；过期条目顺带删除 */
+    private LLMResponse lookup(String key) {
+        long now = System.currentTimeMillis();
+        synchronized (memory) {
+            CachedEntry e = memory.get(key);
+            if (e != null) {
+                if (now - e.createdAt < ttlMillis) {
+                    memoryHits.incrementAndGet();
+                    return e.response;
+                }
+                memory.remove(key);
+            }
+        }
+        if (diskDir == null) {
+            return null;
+        }
+        Path file = diskDir.resolve(key + ".json");
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            Map<String, Object> stored = MAPPER.readValue(file.toFile(), new TypeReference<Map<String, Object>>() {
+            });
+            long createdAt = ((Number) stored.get("createdAt")).longValue();
+            if (now - createdAt >= ttlMillis) {
+                Files.deleteIfExists(file);
+                return null;
+            }
+            LLMResponse r = fromMap(stored);
+            synchronized (memory) {
+                memory.put(key, new CachedEntry(r, createdAt));
+            }
+            diskHits.incrementAndGet();
+            return r;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[Cache] read " + file + " failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void store(String key, LLMResponse r) {
+        if (r == null || r.isError()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (memory) {
+            // 第一次出现只记下 key，再次出现才缓存
+            if (seenOnce.remove(key) == null) {
+                seenOnce.put(key, Boolean.TRUE);
+                return;
+            }
+            memory.put(key, new CachedEntry(r, now));
+        }
+        if (diskDir == null) {
+            return;
+        }
+        Map<String, Object> stored = toMap(r);
+        stored.put("createdAt", now);
+        try {
+            // 先写临时文件再改名，读方不会看到写了一半的文件
+            Path tmp = Files.createTempFile(diskDir, key, ".tmp");
+            MAPPER.writeValue(tmp.toFile(), stored);
+            Files.move(tmp, diskDir.resolve(key + ".json"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("[Cache] write " + key + " failed: " + e.getMessage());
+            return;
+        }
+        if (diskWrites.incrementAndGet() % PRUNE_EVERY == 0) {
+            ProviderExecutors.blocking().execute(this::pruneDisk);
+        }
+    }
+
+    /** 删除过期文件，超过 diskMaxEntries 时再删最旧的 */
+    private void pruneDisk() {
+        long now = System.currentTimeMillis();
+        List<Path> live = new ArrayList<>();
+        try (Stream<Path> files = Files.list(diskDir)) {
+            for (Path p : files.filter(p -> p.getFileName().toString().endsWith(".json")).collect(Collectors.toList())) {
+                if (now - Files.getLastModifiedTime(p).toMillis() >= ttlMillis) {
+                    Files.deleteIfExists(p);
+                } else {
+                    live.add(p);
+                }
+            }
+            if (live.size() > diskMaxEntries) {
+                live.sort(Comparator.comparingLong(CachingProvider::modifiedMillis));
+                for (Path p : live.subList(0, live.size() - diskMaxEntries)) {
+                    Files.deleteIfExists(p);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[Cache] prune " + diskDir + " failed: " + e.getMessage());
+        }
+    }
+
+    private static long modifiedMillis(Path p) {
+        try {
+            return Files.getLastModifiedTime(p).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /** 把缓存的响应交给调用方：回调完整 content 与各工具调用，返回不带 usage 的副本 */
+    private LLMResponse replay(LLMResponse cached, Consumer<String> streamConsumer, Consumer<ToolCallRequest> toolCallConsumer) {
+        tokensSaved.addAndGet(cached.getPromptTokens() + cached.getCompletionTokens());
+        if (streamConsumer != null && cached.getContent() != null && !cached.getContent().isEmpty()) {
+            streamConsumer.accept(cached.getContent());
+        }
+        if (toolCallConsumer != null) {
+            for (ToolCallRequest call : cached.getToolCalls()) {
+                toolCallConsumer.accept(call);
+            }
+        }
+        LLMResponse copy = new LLMResponse();
+        copy.setContent(cached.getContent());
+        copy.setToolCalls(cached.hasToolCalls() ? cached.getToolCalls() : null);
+        copy.setFinishReason(cached.getFinishReason());
+        copy.setReasoningContent(cached.getReasoningContent());
+        return copy;
+    }
+
+    private static Map<String, Object> toMap(LLMResponse r) {
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put("content", r.getContent());
+        out.put("reasoningContent", r.getReasoningContent());
+        out.put("finishReason", r.getFinishReason());
+        out.put("usage", r.getUsage());
+        List<Map<String, Object>> calls = new ArrayList<>();
+        for (ToolCallRequest tc : r.getToolCalls()) {
+            Map<String, Object> call = new LinkedHashMap<>();
+            call.put("id", tc.getId());
+            call.put("name", tc.getName());
+            call.put("arguments", tc.getArguments());
+            calls.add(call);
+        }
+        out.put("toolCalls", calls);
+        return out;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static LLMResponse fromMap(Map<String, Object> m) {
+        LLMResponse r = new LLMResponse();
+        r.setContent((String) m.get("content"));
+        r.setReasoningContent((String) m.get("reasoningContent"));
+        if (m.get("finishReason") != null) {
+            r.setFinishReason((String) m.get("finishReason"));
+        }
+        Map<String, Integer> usage = new HashMap<>();
+        Object u = m.get("usage");
+        if (u instanceof Map) {
+            for (Map.Entry<String, Object> e : ((Map<String, Object>) u).entrySet()) {
+                if (e.getValue() instanceof Number) {
+                    usage.put(e.getKey(), ((Number) e.getValue()).intValue());
+                }
+            }
+        }
+        r.setUsage(usage);
+        List<ToolCallRequest> calls = new ArrayList<>();
+        Object list = m.get("toolCalls");
+        if (list instanceof List) {
+            for (Object o : (List<Object>) list) {
+                Map<String, Object> call = (Map<String, Object>) o;
+                ToolCallRequest tc = new ToolCallRequest();
+                tc.setId((String) call.get("id"));
+                tc.setName((String) call.get("name"));
+                tc.setArguments((Map<String, Object>) call.get("arguments"));
+                calls.add(tc);
+            }
+        }
+        r.setToolCalls(calls.isEmpty() ? null : calls);
+        return r;
+    }
+
+    @Override
+    public String getDefaultModel() {
+        return delegate.getDefaultModel();
+    }
+
+    public long getHits() {
+        return memoryHits.get() + diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public void collect(MetricsWriter w) {
+        w.counter("javaclaw_llm_cache_hits_total", "LLM responses served from cache")
+                .sample("javaclaw_llm_cache_hits_total", memoryHits.get(), "tier", "memory")
+                .sample("javaclaw_llm_cache_hits_total", diskHits.get(), "tier", "disk");
+        w.counter("javaclaw_llm_cache_misses_total", "LLM requests sent upstream by the cache")
+                .sample("javaclaw_llm_cache_misses_total", misses.get());
+        w.counter("javaclaw_llm_cache_coalesced_total", "Requests that waited on an identical in-flight request")
+                .sample("javaclaw_llm_cache_coalesced_total", coalesced.get());
+        w.counter("javaclaw_llm_cache_tokens_saved_total", "Prompt and completion tokens not spent thanks to the cache")
+                .sample("javaclaw_llm_cache_tokens_saved_total", tokensSaved.get());
+        int size;
+        synchronized (memory) {
+            size = memory.size();
+        }
+        w.gauge("javaclaw_llm_cache_entries", "Entries in the in-memory LLM response cache")
+                .sample("javaclaw_llm_cache_entries", size);
+    }
+
+    private static final class CachedEntry {
+        final LLMResponse response;
+        final long createdAt;
+
+        CachedEntry(LLMResponse response, long createdAt) {
+            this.response = response;
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.javaclaw.providers;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 仅追加的对话消息列表，缓存每条消息序列化后的 JSON。
+ * 多轮 tool 循环中每次请求只需编码新追加的消息，已发送过的消息直接写出缓存字节，避免整段历史反复序列化。
+ * 约定：消息加入后不再原地修改其 Map；如需修改请用 set 替换，缓存随之失效。
+ */
+public class ConversationBuffer extends AbstractList<Map<String, Object>> implements RandomAccess, JsonSerializable {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final AtomicLong TOTAL_ENCODED_BYTES = new AtomicLong();
+    private static final AtomicLong TOTAL_REUSED_BYTES = new AtomicLong();
+    private static final AtomicLong TOTAL_ENCODE_NANOS = new AtomicLong();
+
+    private final List<Map<String, Object>> messages;
+    /** 与 messages 下标对齐；null 表示尚未编码 */
+    private final List<SerializedString> encoded;
+
+    private long encodedBytes;
+    private long reusedBytes;
+    private long encodeNanos;
+    private long lastEncodedBytes;
+    private long lastReusedBytes;
+
+    public ConversationBuffer() {
+        this.messages = new ArrayList<>();
+        this.encoded = new ArrayList<>();
+    }
+
+    public ConversationBuffer(List<Map<String, Object>> initial) {
+        this.messages = new ArrayList<>(initial != null ? initial.size() + 16 : 16);
+        this.encoded = new ArrayList<>(messages.size());
+        if (initial != null) {
+            addAll(initial);
+        }
+    }
+
+    @Override
+    public Map<String, Object> get(int index) {
+        return messages.get(index);
+    }
+
+    @Override
+    public int size() {
+        return messages.size();
+    }
+
+    @Override
+    public void add(int index, Map<String, Object> element) {
+        messages.add(index, element);
+        encoded.add(index, null);
+        modCount++;
+    }
+
+    @Override
+    public Map<String, Object> set(int index, Map<String, Object> element) {
+        encoded.set(index, null);
+        return messages.set(index, element);
+    }
+
+    @Override
+    public Map<String, Object> remove(int index) {
+        encoded.remove(index);
+        modCount++;
+        return messages.remove(index);
+    }
+
+    /** 写出 JSON 数组：已缓存的消息直接拷贝字节，其余先编码再缓存 */
+    @Override
+    public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException {
+        long fresh = 0;
+        long reused = 0;
+        long nanos = 0;
+        gen.writeStartArray();
+        for (int i = 0; i < messages.size(); i++) {
+            SerializedString s = encoded.get(i);
+            if (s == null) {
+                long start = System.nanoTime();
+                s = new SerializedString(MAPPER.writeValueAsString(messages.get(i)));
+                fresh += s.asUnquotedUTF8().length;
+                nanos += System.nanoTime() - start;
+                encoded.set(i, s);
+            } else {
+                reused += s.asUnquotedUTF8().length;
+            }
+            gen.writeRawValue(s);
+        }
+        gen.writeEndArray();
+        lastEncodedBytes = fresh;
+        lastReusedBytes = reused;
+        encodedBytes += fresh;
+        reusedBytes += reused;
+        encodeNanos += nanos;
+        TOTAL_ENCODED_BYTES.addAndGet(fresh);
+        TOTAL_REUSED_BYTES.addAndGet(reused);
+        TOTAL_ENCODE_NANOS.addAndGet(nanos);
+    }
+
+    @Override
+    public void serializeWithType(JsonGenerator gen, SerializerProvider serializers, TypeSerializer typeSer) throws IOException {
+        serialize(gen, serializers);
+    }
+
+    /** 本缓冲累计新编码的字节数 */
+    public long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    /** 本缓冲累计复用缓存的字节数（即省下的编码量） */
+    public long getReusedBytes() {
+        return reusedBytes;
+    }
+
+    /** 本缓冲累计编码耗时（纳秒） */
+    public long getEncodeNanos() {
+        return encodeNanos;
+    }
+
+    /** 最近一次序列化新编码的字节数 */
+    public long getLastEncodedBytes() {
+        return lastEncodedBytes;
+    }
+
+    /** 最近一次序列化复用的字节数 */
+    public long getLastReusedBytes() {
+        return lastReusedBytes;
+    }
+
+    /** 进程内所有缓冲累计新编码字节数 */
+    public static long getTotalEncodedBytes() {
+        return TOTAL_ENCODED_BYTES.get();
+    }
+
+    /** 进程内所有缓冲累计复用字节数 */
+    public static long getTotalReusedBytes() {
+        return TOTAL_REUSED_BYTES.get();
+    }
+
+    /** 进程内所有缓冲累计编码耗时（纳秒） */
+    public static long getTotalEncodeNanos() {
+        return TOTAL_ENCODE_NANOS.get();
+    }
+}
@@ -0,0 +1,107 @@
+package com.javaclaw.providers;
+
+import com.javaclaw.metrics.MetricsSource;
+import com.javaclaw.metrics.MetricsWriter;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 对冲请求策略：记录最近原请求（primary）的首字节耗时（TTFB），取其分位数作为对冲延迟——
+ * 请求发出后超过该延迟仍无首字节，就再发一份相同请求，先到者胜出、另一份取消。
+ * 样本取原请求而非胜出者：对冲胜出时原请求被取消，记其截至取消时已等待的时长（删失样本，真实值只会更大），
+ * 否则慢请求总被更快的对冲请求替换，分位数会越来越偏低、对冲越发越多。
+ * 样本不足时用 maxDelayMillis，延迟始终限制在 [minDelayMillis, maxDelayMillis]。
+ */
+public class HedgePolicy implements MetricsSource {
+
+    /** 至少积累这么多样本后才按分位数计算延迟 */
+    private static final int MIN_SAMPLES = 20;
+
+    private final String name;
+    private final double percentile;
+    private final long minDelayMillis;
+    private final long maxDelayMillis;
+
+    /** 最近 TTFB 样本（毫秒）环形缓冲 */
+    private final long[] samples = new long[256];
+    private int sampleCount;
+    private int nextSample;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    /**
+     * @param name           指标标签（端点名）
+     * @param percentile     分位数，取值 (0, 1)，如 0.95；非法时取 0.95
+     * @param minDelayMillis 对冲延迟下限
+     * @param maxDelayMillis 对冲延迟上限，样本不足时直接使用
+     */
+    public HedgePolicy(String name, double percentile, long minDelayMillis, long maxDelayMillis) {
+        this.name = name;
+        this.percentile = percentile > 0 && percentile < 1 ? percentile : 0.95;
+        this.minDelayMillis = Math.max(0, minDelayMillis);
+        this.maxDelayMillis = Math.max(this.minDelayMillis, maxDelayMillis);
+    }
+
+    /** 当前对冲延迟（毫秒） */
+    public synchronized long delayMillis() {
+        if (sampleCount < MIN_SAMPLES) {
+            return maxDelayMillis;
+        }
+        long[] sorted = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(sorted);
+        long p = sorted[(int) Math.min(sampleCount - 1, Math.floor(percentile * sampleCount))];
+        return Math.max(minDelayMillis, Math.min(maxDelayMillis, p));
+    }
+
+    /**
+     * 记录一次请求结果：原请求的 TTFB（对冲胜出时为删失样本，原请求失败时为 -1 不计样本）、是否发出了对冲、是否由对冲请求胜出
+     */
+    void record(long primaryTtfbMillis, boolean hedgeSent, boolean hedgeWon) {
+        requests.incrementAndGet();
+        if (hedgeSent) {
+            hedged.incrementAndGet();
+        }
+        if (hedgeWon) {
+            hedgeWins.incrementAndGet();
+        }
+        if (primaryTtfbMillis < 0) {
+            return;
+        }
+        synchronized (this) {
+            samples[nextSample] = primaryTtfbMillis;
+            nextSample = (nextSample + 1) % samples.length;
+            if (sampleCount < samples.length) {
+                sampleCount++;
+            }
+        }
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /** 发出对冲请求的次数 */
+    public long getHedged() {
+        return hedged.get();
+    }
+
+    /** 对冲请求先于原请求返回的次数 */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    @Override
+    public void collect(MetricsWriter w) {
+        w.counter("javaclaw_hedge_requests_total", "Requests sent with hedging enabled")
+                .sample("javaclaw_hedge_requests_total", getRequests(), "endpoint", name);
+        w.counter("javaclaw_hedge_sent_total", "Hedged duplicate requests sent")
+                .sample("javaclaw_hedge_sent_total", getHedged(), "endpoint", name);
+        w.counter("javaclaw_hedge_wins_total", "Hedged requests that answered first")
+                .sample("javaclaw_hedge_wins_total", getHedgeWins(), "endpoint", name);
+        w.gauge("javaclaw_hedge_delay_seconds", "Current hedge delay")
+                .sample("javaclaw_hedge_delay_seconds", delayMillis() / 1000.0, "endpoint", name);
+    }
+}
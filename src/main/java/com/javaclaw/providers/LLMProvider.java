@@ -2,6 +2,7 @@ package com.javaclaw.providers;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 
 /**
@@ -38,6 +39,38 @@ public interface LLMProvider {
         return chat(messages, tools, model, maxTokens, temperature);
     }
 
+    /**
+     * 同上，另可接收工具调用的提前回调：toolCallConsumer 非 null 时，实现类可在流式接收过程中，
+     * 每当某个工具调用的参数已构成完整 JSON 即回调一次（每个调用至多一次，按出现顺序），再返回完整 LLMResponse。
+     * 默认实现不做提前回调。
+     */
+    default LLMResponse chat(List<Map<String, Object>> messages,
+                             List<Map<String, Object>> tools,
+                             String model,
+                             int maxTokens,
+                             double temperature,
+                             Consumer<String> streamConsumer,
+                             Consumer<ToolCallRequest> toolCallConsumer) {
+        return chat(messages, tools, model, maxTokens, temperature, streamConsumer);
+    }
+
+    /**
+     * 异步版本：立即返回，响应就绪时完成 future（请求失败也以错误 LLMResponse 正常完成）。
+     * 流式回调不在调用线程上执行，但同一请求内保持顺序。
+     * 默认实现在 ProviderExecutors.blocking() 线程池上运行同步 chat；支持非阻塞 I/O 的实现应覆盖。
+     */
+    default CompletableFuture<LLMResponse> chatAsync(List<Map<String, Object>> messages,
+                                                     List<Map<String, Object>> tools,
+                                                     String model,
+                                                     int maxTokens,
+                                                     double temperature,
+                                                     Consumer<String> streamConsumer,
+                                                     Consumer<ToolCallRequest> toolCallConsumer) {
+        return CompletableFuture.supplyAsync(
+                () -> chat(messages, tools, model, maxTokens, temperature, streamConsumer, toolCallConsumer),
+                ProviderExecutors.blocking());
+    }
+
     /** 返回该 provider 的默认模型名 */
     String getDefaultModel();
 }
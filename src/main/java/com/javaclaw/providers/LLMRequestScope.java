@@ -0,0 +1,36 @@
+package com.javaclaw.providers;
+
+import java.util.function.Supplier;
+
+/**
+ * 当前线程发起的 LLM 请求所属的会话 key。LLMProvider 接口不带会话信息，
+ * 调用方用 call 包住 provider 调用，装饰器（如 AdmissionProvider 按会话公平排队）在发起时读取。
+ * 只在调用线程上有效：异步实现需在发起时取出并自行保存。
+ */
+public final class LLMRequestScope {
+
+    private static final ThreadLocal<String> SESSION_KEY = new ThreadLocal<>();
+
+    private LLMRequestScope() {
+    }
+
+    /** 在 sessionKey 作用域内执行 task，结束后恢复原值（可嵌套） */
+    public static <T> T call(String sessionKey, Supplier<T> task) {
+        String previous = SESSION_KEY.get();
+        SESSION_KEY.set(sessionKey);
+        try {
+            return task.get();
+        } finally {
+            if (previous != null) {
+                SESSION_KEY.set(previous);
+            } else {
+                SESSION_KEY.remove();
+            }
+        }
+    }
+
+    /** 当前会话 key，不在作用域内时为 null */
+    public static String sessionKey() {
+        return SESSION_KEY.get();
+    }
+}
@@ -14,6 +14,10 @@ public class LLMResponse {
     private String finishReason = "stop";
     private Map<String, Integer> usage;
     private String reasoningContent;
+    /** 请求失败时的 HTTP 状态码；-1 表示连接/IO 错误，0 表示成功 */
+    private int errorStatus;
+    /** 错误响应带的 Retry-After（毫秒），0 表示未给出 */
+    private long retryAfterMillis;
 
     public boolean hasToolCalls() {
         return toolCalls != null && !toolCalls.isEmpty();
@@ -51,6 +55,24 @@ public class LLMResponse {
         this.usage = usage;
     }
 
+    /** usage.prompt_tokens，无则 0 */
+    public int getPromptTokens() {
+        Integer v = getUsage().get("prompt_tokens");
+        return v != null ? v : 0;
+    }
+
+    /** usage.completion_tokens，无则 0 */
+    public int getCompletionTokens() {
+        Integer v = getUsage().get("completion_tokens");
+        return v != null ? v : 0;
+    }
+
+    /** 命中 provider 前缀缓存的 prompt token 数（usage.cached_tokens），无则 0 */
+    public int getCachedTokens() {
+        Integer v = getUsage().get("cached_tokens");
+        return v != null ? v : 0;
+    }
+
     public String getReasoningContent() {
         return reasoningContent;
     }
@@ -58,4 +80,30 @@ public class LLMResponse {
     public void setReasoningContent(String reasoningContent) {
         this.reasoningContent = reasoningContent;
     }
+
+    /** 是否为请求失败（content 为 "[LLM error: ...]" 提示） */
+    public boolean isError() {
+        return errorStatus != 0;
+    }
+
+    public int getErrorStatus() {
+        return errorStatus;
+    }
+
+    public void setErrorStatus(int errorStatus) {
+        this.errorStatus = errorStatus;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    public void setRetryAfterMillis(long retryAfterMillis) {
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /** 换一个端点可能成功的失败：连接/IO 错误、5xx、429 */
+    public boolean isRetryable() {
+        return errorStatus == -1 || errorStatus == 429 || errorStatus >= 500;
+    }
 }
@@ -1,25 +1,34 @@
 package com.javaclaw.providers;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.JsonSerializable;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.RawValue;
+import com.javaclaw.http.HttpClients;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okio.BufferedSource;
 
 import java.util.concurrent.TimeUnit;
 
@@ -42,17 +51,68 @@ public class OpenAICompatibleProvider implements LLMProvider {
     private final Map<String, String> extraHeaders;
     private final OkHttpClient client;
     private final String defaultModel;
+    /** 对冲策略；null 表示不对冲 */
+    private final HedgePolicy hedge;
+    /** 对冲请求发往的地址（同一或备用地址） */
+    private final String hedgeApiBase;
+    /** 请求体压缩；null 表示不压缩 */
+    private final RequestCompression compression;
+    /** 流式请求是否带 stream_options.include_usage */
+    private final boolean streamUsage;
 
     public OpenAICompatibleProvider(String apiKey, String apiBase, Map<String, String> extraHeaders, String defaultModel) {
+        this(apiKey, apiBase, extraHeaders, defaultModel, null, null);
+    }
+
+    public OpenAICompatibleProvider(String apiKey, String apiBase, Map<String, String> extraHeaders, String defaultModel,
+                                    HedgePolicy hedge, String hedgeApiBase) {
+        this(apiKey, apiBase, extraHeaders, defaultModel, hedge, hedgeApiBase, null);
+    }
+
+    /**
+     * hedge 非 null 时开启对冲：超过 hedge 给出的延迟仍未收到首字节，就向 hedgeApiBase（null 时为 apiBase）再发一份相同请求，
+     * 先收到首字节的胜出，另一份取消。compression 非 null 时达到阈值的请求体以 gzip 发送。
+     */
+    public OpenAICompatibleProvider(String apiKey, String apiBase, Map<String, String> extraHeaders, String defaultModel,
+                                    HedgePolicy hedge, String hedgeApiBase, RequestCompression compression) {
+        this(apiKey, apiBase, extraHeaders, defaultModel, hedge, hedgeApiBase, compression, supportsStreamUsage(apiBase));
+    }
+
+    /**
+     * streamUsage 为 true 时流式请求带 stream_options.include_usage，要求在流末尾返回 token 用量；
+     * 不认识该字段的兼容端点可能直接返回 400，此时应关闭（流式调用的用量记为 0）。
+     */
+    public OpenAICompatibleProvider(String apiKey, String apiBase, Map<String, String> extraHeaders, String defaultModel,
+                                    HedgePolicy hedge, String hedgeApiBase, RequestCompression compression,
+                                    boolean streamUsage) {
         this.apiKey = apiKey != null ? apiKey : "";
         this.apiBase = apiBase != null && !apiBase.isEmpty() ? apiBase : "https://api.openai.com/v1";
         this.extraHeaders = extraHeaders != null ? extraHeaders : Collections.<String, String>emptyMap();
-        this.client = new OkHttpClient.Builder()
+        // 共用连接池与 Dispatcher（并发上限见 gateway.http），只设 LLM 的超时
+        this.client = HttpClients.newBuilder()
                 .connectTimeout(CONNECT_TIMEOUT_SEC, TimeUnit.SECONDS)
                 .readTimeout(READ_TIMEOUT_SEC, TimeUnit.SECONDS)
                 .writeTimeout(WRITE_TIMEOUT_SEC, TimeUnit.SECONDS)
                 .build();
         this.defaultModel = defaultModel != null && !defaultModel.isEmpty() ? defaultModel : DEFAULT_MODEL;
+        this.hedge = hedge;
+        this.hedgeApiBase = hedgeApiBase != null && !hedgeApiBase.isEmpty() ? hedgeApiBase : this.apiBase;
+        this.compression = compression;
+        this.streamUsage = streamUsage;
+    }
+
+    /** 已知支持 stream_options.include_usage 的端点：OpenAI、Azure OpenAI、DeepSeek、OpenRouter、通义（DashScope 兼容模式）；未配置 apiBase 即 OpenAI */
+    public static boolean supportsStreamUsage(String apiBase) {
+        if (apiBase == null || apiBase.isEmpty()) {
+            return true;
+        }
+        HttpUrl url = HttpUrl.parse(apiBase);
+        if (url == null) {
+            return false;
+        }
+        String host = url.host().toLowerCase(Locale.ROOT);
+        return host.equals("api.openai.com") || host.endsWith(".openai.azure.com") || host.equals("api.deepseek.com")
+                || host.equals("openrouter.ai") || host.equals("dashscope.aliyuncs.com");
     }
 
     @Override
@@ -71,153 +131,361 @@ public class OpenAICompatibleProvider implements LLMProvider {
                             int maxTokens,
                             double temperature,
                             Consumer<String> streamConsumer) {
-        boolean useStream = streamConsumer != null;
-        String url = apiBase.endsWith("/") ? apiBase + "chat/completions" : apiBase + "/chat/completions";
+        return chat(messages, tools, model, maxTokens, temperature, streamConsumer, null);
+    }
+
+    /** toolCallConsumer 非 null 时同样以流式请求，参数完整的工具调用在流中即回调 */
+    @Override
+    public LLMResponse chat(List<Map<String, Object>> messages,
+                            List<Map<String, Object>> tools,
+                            String model,
+                            int maxTokens,
+                            double temperature,
+                            Consumer<String> streamConsumer,
+                            Consumer<ToolCallRequest> toolCallConsumer) {
+        boolean useStream = streamConsumer != null || toolCallConsumer != null;
+        try {
+            byte[] json = requestBody(messages, tools, model, maxTokens, temperature, useStream);
+            byte[] gz = gzip(json);
+            Request primary = buildRequest(apiBase, json, gz);
+            Response response = hedge != null
+                    ? executeHedged(primary, buildRequest(hedgeApiBase, json, gz))
+                    : client.newCall(primary).execute();
+            return readResponse(response, useStream, streamConsumer, toolCallConsumer);
+        } catch (IOException e) {
+            return ioError(e);
+        }
+    }
+
+    /**
+     * 异步版本：通过 OkHttp enqueue 发送，调用线程不阻塞。响应在 OkHttp 的 I/O 线程上解码，
+     * 流式回调与 future 的完成经串行执行器转到回调线程池，保证顺序且不占用 I/O 线程。
+     * 开启对冲时竞速需要等待首字节，退回默认实现（在 blocking 线程池上运行同步 chat）。取消 future 会取消 HTTP 调用。
+     */
+    @Override
+    public CompletableFuture<LLMResponse> chatAsync(List<Map<String, Object>> messages,
+                                                    List<Map<String, Object>> tools,
+                                                    String model,
+                                                    int maxTokens,
+                                                    double temperature,
+                                                    Consumer<String> streamConsumer,
+                                                    Consumer<ToolCallRequest> toolCallConsumer) {
+        if (hedge != null) {
+            return LLMProvider.super.chatAsync(messages, tools, model, maxTokens, temperature, streamConsumer, toolCallConsumer);
+        }
+        boolean useStream = streamConsumer != null || toolCallConsumer != null;
+        CompletableFuture<LLMResponse> future = new CompletableFuture<>();
+        byte[] json;
+        try {
+            json = requestBody(messages, tools, model, maxTokens, temperature, useStream);
+        } catch (IOException e) {
+            future.complete(ioError(e));
+            return future;
+        }
+        Executor serial = ProviderExecutors.serial();
+        Consumer<String> sc = streamConsumer == null ? null : chunk -> serial.execute(() -> streamConsumer.accept(chunk));
+        Consumer<ToolCallRequest> tc = toolCallConsumer == null ? null : call -> serial.execute(() -> toolCallConsumer.accept(call));
+        Call call = client.newCall(buildRequest(apiBase, json, gzip(json)));
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call c, IOException e) {
+                serial.execute(() -> future.complete(ioError(e)));
+            }
+
+            @Override
+            public void onResponse(Call c, Response response) {
+                LLMResponse r;
+                try {
+                    r = readResponse(response, useStream, sc, tc);
+                } catch (IOException e) {
+                    r = ioError(e);
+                }
+                LLMResponse result = r;
+                serial.execute(() -> future.complete(result));
+            }
+        });
+        future.whenComplete((r, ex) -> {
+            if (future.isCancelled()) {
+                call.cancel();
+            }
+        });
+        return future;
+    }
+
+    private byte[] requestBody(List<Map<String, Object>> messages,
+                               List<Map<String, Object>> tools,
+                               String model,
+                               int maxTokens,
+                               double temperature,
+                               boolean useStream) throws IOException {
         Map<String, Object> body = new HashMap<>();
         body.put("model", model != null && !model.isEmpty() ? model : defaultModel);
-        body.put("messages", messages);
+        body.put("messages", rawIfSerializable(messages));
         body.put("max_tokens", maxTokens);
         body.put("temperature", temperature);
         if (tools != null && !tools.isEmpty()) {
-            body.put("tools", tools);
+            body.put("tools", rawIfSerializable(tools));
             body.put("tool_choice", "auto");
         }
         if (useStream) {
             body.put("stream", true);
+            if (streamUsage) {
+                // 流式默认不返回 usage；要求在 [DONE] 前追加一条带 usage 的 chunk
+                body.put("stream_options", Collections.singletonMap("include_usage", true));
+            }
         }
-        Request.Builder req = new Request.Builder()
-                .url(url)
-                .addHeader("Authorization", "Bearer " + apiKey)
-                .addHeader("Content-Type", "application/json");
-        for (Map.Entry<String, String> e : extraHeaders.entrySet()) {
-            req.addHeader(e.getKey(), e.getValue());
-        }
-        try {
-            String json = MAPPER.writeValueAsString(body);
-            Response response = client.newCall(req.post(RequestBody.create(json, JSON)).build()).execute();
-            if (!response.isSuccessful()) {
-                String responseBody = response.body() != null ? response.body().string() : "";
+        return MAPPER.writeValueAsBytes(body);
+    }
+
+    /** 读取并关闭响应：非 2xx 转为错误响应，流式按 SSE 解码，否则解析完整 JSON */
+    private static LLMResponse readResponse(Response response, boolean useStream,
+                                            Consumer<String> streamConsumer,
+                                            Consumer<ToolCallRequest> toolCallConsumer) throws IOException {
+        try (Response r = response) {
+            if (!r.isSuccessful()) {
+                String responseBody = r.body() != null ? r.body().string() : "";
                 LLMResponse err = new LLMResponse();
                 String detail = parseErrorBody(responseBody);
-                err.setContent("[LLM error: " + response.code() + " " + response.message()
+                err.setContent("[LLM error: " + r.code() + " " + r.message()
                         + (detail != null ? " | " + detail : "")
                         + "]");
+                err.setErrorStatus(r.code());
+                err.setRetryAfterMillis(parseRetryAfter(r));
                 return err;
             }
-            if (useStream && response.body() != null) {
-                return parseStreamResponse(response.body().byteStream(), streamConsumer);
+            if (useStream && r.body() != null) {
+                BufferedSource source = r.body().source();
+                return new SseStreamDecoder(streamConsumer, toolCallConsumer).decode(source);
             }
-            String responseBody = response.body() != null ? response.body().string() : "";
+            String responseBody = r.body() != null ? r.body().string() : "";
             return parseResponse(responseBody);
-        } catch (IOException e) {
-            LLMResponse err = new LLMResponse();
-            err.setContent("[LLM error: " + e.getMessage() + "]");
-            return err;
         }
     }
 
-    @Override
-    public String getDefaultModel() {
-        return defaultModel;
+    /**
+     * 解析 Retry-After（秒数或 HTTP 日期），部分网关另给 retry-after-ms；都没有或无法解析时返回 0。
+     */
+    private static long parseRetryAfter(Response r) {
+        String ms = r.header("retry-after-ms");
+        if (ms != null) {
+            try {
+                return Math.max(0, (long) Double.parseDouble(ms.trim()));
+            } catch (NumberFormatException ignored) {
+                // 再看 Retry-After
+            }
+        }
+        String v = r.header("Retry-After");
+        if (v == null || v.trim().isEmpty()) {
+            return 0;
+        }
+        try {
+            return Math.max(0, (long) (Double.parseDouble(v.trim()) * 1000));
+        } catch (NumberFormatException e) {
+            try {
+                long at = ZonedDateTime.parse(v.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                return Math.max(0, at - System.currentTimeMillis());
+            } catch (DateTimeParseException ignored) {
+                return 0;
+            }
+        }
+    }
+
+    private static LLMResponse ioError(IOException e) {
+        LLMResponse err = new LLMResponse();
+        err.setContent("[LLM error: " + e.getMessage() + "]");
+        err.setErrorStatus(-1);
+        return err;
+    }
+
+    /** 开启压缩且达到阈值时返回 gzip 后的请求体，否则 null */
+    private byte[] gzip(byte[] json) {
+        return compression != null ? compression.compress(json) : null;
+    }
+
+    /** gz 非 null 时以 gzip 请求体发送（Content-Encoding: gzip），否则发送原始 json */
+    private Request buildRequest(String base, byte[] json, byte[] gz) {
+        String url = base.endsWith("/") ? base + "chat/completions" : base + "/chat/completions";
+        Request.Builder req = new Request.Builder()
+                .url(url)
+                .addHeader("Authorization", "Bearer " + apiKey)
+                .addHeader("Content-Type", "application/json");
+        for (Map.Entry<String, String> e : extraHeaders.entrySet()) {
+            req.addHeader(e.getKey(), e.getValue());
+        }
+        if (gz != null) {
+            req.addHeader("Content-Encoding", "gzip");
+            return req.post(RequestBody.create(gz, JSON)).build();
+        }
+        return req.post(RequestBody.create(json, JSON)).build();
     }
 
     /**
-     * 解析 SSE 流式响应：逐行读 data: {...}，提取 delta.content（回调 streamConsumer）与 delta.tool_calls（按 index 累积），
-     * 最后返回完整 content 与 toolCalls 的 LLMResponse。
+     * 对冲执行：先发 primary，等待对冲延迟；仍无首字节则再发 secondary。先拿到首字节（或唯一剩下的响应）的胜出，
+     * 其余请求取消。返回的 Response 已缓冲首字节，调用方按普通响应读取。
      */
-    private static LLMResponse parseStreamResponse(InputStream stream, Consumer<String> streamConsumer) throws IOException {
-        LLMResponse out = new LLMResponse();
-        StringBuilder fullContent = new StringBuilder();
-        List<ToolCallRequest> toolCallsAccum = new ArrayList<>();
-        Map<Integer, ToolCallRequest> byIndex = new HashMap<>();
-        Map<Integer, StringBuilder> argsRawByIndex = new HashMap<>();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("data: ")) {
-                    String data = line.substring(6).trim();
-                    if ("[DONE]".equals(data)) {
-                        break;
-                    }
-                    try {
-                        JsonNode root = MAPPER.readTree(data);
-                        JsonNode choices = root.get("choices");
-                        if (choices == null || !choices.isArray() || choices.size() == 0) {
-                            continue;
-                        }
-                        JsonNode delta = choices.get(0).get("delta");
-                        if (delta == null) {
-                            continue;
+    private Response executeHedged(Request primary, Request secondary) throws IOException {
+        HedgeRace race = new HedgeRace();
+        race.launch(client.newCall(primary), false);
+        boolean hedgeSent = false;
+        if (!race.await(hedge.delayMillis())) {
+            hedgeSent = race.launch(client.newCall(secondary), true);
+        }
+        if (!race.await(TimeUnit.SECONDS.toMillis(READ_TIMEOUT_SEC))) {
+            race.cancelAll();
+            throw new java.net.SocketTimeoutException("no response within " + READ_TIMEOUT_SEC + "s");
+        }
+        Response winner = race.result();
+        hedge.record(race.primaryTtfbMillis(), hedgeSent, race.hedgeWon());
+        return winner;
+    }
+
+    /** 一次对冲竞速：多个在途请求，先收到首字节的成功响应胜出；全部失败时取最后一个错误响应或异常 */
+    private static final class HedgeRace {
+        private final List<Call> calls = new ArrayList<>();
+        private int pending;
+        private Response winner;
+        private boolean hedgeWon;
+        /** 原请求的 TTFB；对冲胜出时为截至出结果时原请求已等待的时长；原请求失败时为 -1 */
+        private long primaryTtfbMillis = -1;
+        private long primaryStart;
+        private boolean primaryFailed;
+        private Response errorResponse;
+        private IOException lastError;
+
+        /** 发出请求；已有胜者时不再发出，返回 false */
+        boolean launch(Call call, boolean isHedge) {
+            long start = System.nanoTime();
+            synchronized (this) {
+                if (winner != null) {
+                    return false;
+                }
+                calls.add(call);
+                pending++;
+                if (!isHedge) {
+                    primaryStart = start;
+                }
+            }
+            call.enqueue(new Callback() {
+                @Override
+                public void onResponse(Call c, Response response) {
+                    if (response.isSuccessful() && response.body() != null) {
+                        try {
+                            // 阻塞到首字节到达，流式时即第一个 SSE 块
+                            response.body().source().request(1);
+                        } catch (IOException e) {
+                            response.close();
+                            onFailure(c, e);
+                            return;
                         }
-                        if (delta.has("content") && !delta.get("content").isNull()) {
-                            String chunk = delta.get("content").asText();
-                            if (chunk != null) {
-                                fullContent.append(chunk);
-                                if (streamConsumer != null) {
-                                    streamConsumer.accept(chunk);
-                                }
-                            }
+                    }
+                    settle(c, response, isHedge, start);
+                }
+
+                @Override
+                public void onFailure(Call c, IOException e) {
+                    synchronized (HedgeRace.this) {
+                        pending--;
+                        if (winner == null) {
+                            lastError = e;
+                            primaryFailed |= !isHedge;
                         }
-                        JsonNode toolCalls = delta.get("tool_calls");
-                        if (toolCalls != null && toolCalls.isArray()) {
-                            for (int i = 0; i < toolCalls.size(); i++) {
-                                JsonNode tc = toolCalls.get(i);
-                                int idx = tc.has("index") ? tc.get("index").asInt() : i;
-                                ToolCallRequest tr = byIndex.get(idx);
-                                if (tr == null) {
-                                    tr = new ToolCallRequest();
-                                    if (tc.has("id")) {
-                                        tr.setId(tc.get("id").asText());
-                                    }
-                                    byIndex.put(idx, tr);
-                                    while (toolCallsAccum.size() <= idx) {
-                                        toolCallsAccum.add(null);
-                                    }
-                                    toolCallsAccum.set(idx, tr);
-                                    argsRawByIndex.put(idx, new StringBuilder());
-                                }
-                                JsonNode fn = tc.get("function");
-                                if (fn != null) {
-                                    if (fn.has("name")) {
-                                        tr.setName(fn.get("name").asText());
-                                    }
-                                    if (fn.has("arguments")) {
-                                        String part = fn.get("arguments").asText();
-                                        if (part != null) {
-                                            argsRawByIndex.get(idx).append(part);
-                                        }
-                                    }
-                                }
-                            }
+                        HedgeRace.this.notifyAll();
+                    }
+                }
+            });
+            return true;
+        }
+
+        private void settle(Call c, Response response, boolean isHedge, long start) {
+            List<Call> losers = new ArrayList<>();
+            synchronized (this) {
+                pending--;
+                if (winner != null) {
+                    response.close();
+                    return;
+                }
+                if (response.isSuccessful() || pending == 0) {
+                    if (!response.isSuccessful() && errorResponse != null) {
+                        errorResponse.close();
+                    }
+                    winner = response;
+                    hedgeWon = isHedge;
+                    primaryFailed |= !isHedge && !response.isSuccessful();
+                    if (!primaryFailed) {
+                        primaryTtfbMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - primaryStart);
+                    }
+                    for (Call other : calls) {
+                        if (other != c) {
+                            losers.add(other);
                         }
-                    } catch (Exception e) {
-                        // 忽略单条解析失败，继续下一行
                     }
+                } else {
+                    // 错误响应先留着，等其他请求的结果
+                    primaryFailed |= !isHedge;
+                    if (errorResponse != null) {
+                        errorResponse.close();
+                    }
+                    errorResponse = response;
                 }
+                notifyAll();
+            }
+            for (Call loser : losers) {
+                loser.cancel();
             }
         }
-        out.setContent(fullContent.toString());
-        List<ToolCallRequest> finalCalls = new ArrayList<>();
-        for (int idx = 0; idx < toolCallsAccum.size(); idx++) {
-            ToolCallRequest t = toolCallsAccum.get(idx);
-            if (t != null) {
-                StringBuilder argsRaw = argsRawByIndex.get(idx);
-                if (argsRaw != null && argsRaw.length() > 0) {
-                    try {
-                        @SuppressWarnings("unchecked")
-                        Map<String, Object> args = MAPPER.readValue(argsRaw.toString(), Map.class);
-                        t.setArguments(args);
-                    } catch (Exception e) {
-                        t.setArguments(Collections.<String, Object>emptyMap());
-                    }
+
+        /** 等待到出结果（有胜者或已全部结束）或超时；返回是否已出结果 */
+        synchronized boolean await(long timeoutMillis) {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (winner == null && pending > 0) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancelAll();
+                    return true;
                 }
-                finalCalls.add(t);
             }
+            return true;
         }
-        if (!finalCalls.isEmpty()) {
-            out.setToolCalls(finalCalls);
+
+        synchronized Response result() throws IOException {
+            if (winner != null) {
+                return winner;
+            }
+            if (errorResponse != null) {
+                return errorResponse;
+            }
+            throw lastError != null ? lastError : new IOException("request cancelled");
+        }
+
+        synchronized boolean hedgeWon() {
+            return hedgeWon;
+        }
+
+        synchronized long primaryTtfbMillis() {
+            return primaryTtfbMillis;
+        }
+
+        synchronized void cancelAll() {
+            for (Call c : calls) {
+                c.cancel();
+            }
         }
-        return out;
+    }
+
+    /** 自带序列化缓存的列表（ConversationBuffer、ToolDefinitions）包装为 RawValue，由其直接写出缓存的 JSON */
+    private static Object rawIfSerializable(List<Map<String, Object>> list) {
+        return list instanceof JsonSerializable ? new RawValue((JsonSerializable) list) : list;
+    }
+
+    @Override
+    public String getDefaultModel() {
+        return defaultModel;
     }
 
     /**
@@ -311,6 +579,13 @@ public class OpenAICompatibleProvider implements LLMProvider {
             if (usage.has("total_tokens")) {
                 u.put("total_tokens", usage.get("total_tokens").asInt());
             }
+            // 前缀缓存命中：OpenAI 为 prompt_tokens_details.cached_tokens，DeepSeek 为 prompt_cache_hit_tokens
+            JsonNode details = usage.get("prompt_tokens_details");
+            if (details != null && details.has("cached_tokens")) {
+                u.put("cached_tokens", details.get("cached_tokens").asInt());
+            } else if (usage.has("prompt_cache_hit_tokens")) {
+                u.put("cached_tokens", usage.get("prompt_cache_hit_tokens").asInt());
+            }
             out.setUsage(u);
         }
         return out;
@@ -0,0 +1,78 @@
+package com.javaclaw.providers;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * provider 异步调用共用的线程池：
+ * callbacks 用于把流式回调与 future 完成从 HTTP I/O 线程移走（每个请求一个串行视图，保证回调顺序）；
+ * blocking 用于只有同步实现的 provider 的 chatAsync 默认实现。
+ */
+public final class ProviderExecutors {
+
+    private static final ExecutorService CALLBACKS = newDaemonPool("llm-callback-");
+    private static final ExecutorService BLOCKING = newDaemonPool("llm-blocking-");
+
+    private ProviderExecutors() {
+    }
+
+    /** 运行同步 chat 的线程池 */
+    public static ExecutorService blocking() {
+        return BLOCKING;
+    }
+
+    /** 基于回调线程池的串行执行器：提交的任务按顺序逐个执行，不会并发 */
+    public static Executor serial() {
+        return new SerialExecutor(CALLBACKS);
+    }
+
+    private static ExecutorService newDaemonPool(String prefix) {
+        AtomicInteger seq = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, prefix + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static final class SerialExecutor implements Executor {
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private final Executor delegate;
+        private boolean scheduled;
+
+        SerialExecutor(Executor delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public synchronized void execute(Runnable r) {
+            tasks.add(r);
+            if (!scheduled) {
+                scheduled = true;
+                delegate.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                Runnable next;
+                synchronized (this) {
+                    next = tasks.poll();
+                    if (next == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                try {
+                    next.run();
+                } catch (Exception e) {
+                    System.err.println("[Provider] callback failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
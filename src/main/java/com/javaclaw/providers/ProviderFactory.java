@@ -1,20 +1,34 @@
 package com.javaclaw.providers;
 
+import com.javaclaw.config.AgentsConfig;
 import com.javaclaw.config.Config;
 import com.javaclaw.config.ProviderConfig;
+import com.javaclaw.metrics.MetricsRegistry;
 
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 /**
- * 根据 Config 创建 LLMProvider。按 model 或 defaultProvider 选取配置并实例化 OpenAI 兼容实现。
+ * 根据 Config 创建 LLMProvider。按 model 或 defaultProvider 选取配置并实例化 OpenAI 兼容实现；
+ * 配置了多个地址（apiBases）或备用 provider（agents.fallbackProviders）时包装为 RoutingProvider；
+ * provider 配了 maxInFlight / tokensPerMinute 时其各端点包一层 AdmissionProvider（同一 provider 共用限额）；
+ * agents.responseCache 开启时最外层再包 CachingProvider。
  */
 public final class ProviderFactory {
 
+    private static final String DEFAULT_API_BASE = "https://api.openai.com/v1";
+
     private ProviderFactory() {
     }
 
     /**
-     * 从 config 得到 LLMProvider。使用 config 中第一个或 defaultProvider 对应的 apiKey/apiBase 创建 OpenAICompatibleProvider。
+     * 从 config 得到 LLMProvider。只有一个端点时直接返回 OpenAICompatibleProvider；
+     * 否则主 provider 的各地址在前、备用 provider 在后，交给 RoutingProvider 按延迟与错误率路由。
      */
     public static LLMProvider fromConfig(Config config) {
         Optional<ProviderConfig> opt = config.getProvider(config.getAgents().getModel());
@@ -22,18 +36,116 @@ public final class ProviderFactory {
             throw new IllegalStateException("No LLM provider configured. Add providers in ~/.javaclawbot/config.json");
         }
         ProviderConfig p = opt.get();
-        String apiKey = p.getApiKey();
-        String apiBase = p.getApiBase();
-        if (apiKey == null) {
-            apiKey = "";
-        }
-        if (apiBase == null) {
-            apiBase = "https://api.openai.com/v1";
-        }
         String model = config.getAgents().getModel();
         if (model == null || model.isEmpty()) {
             model = "gpt-3.5-turbo";
         }
-        return new OpenAICompatibleProvider(apiKey, apiBase, p.getExtraHeaders(), model);
+        List<RoutingProvider.Endpoint> endpoints = new ArrayList<>();
+        addEndpoints(endpoints, config.getProviderName(model).orElse("default"), p, model);
+        for (String name : config.getAgents().getFallbackProviders()) {
+            ProviderConfig fp = config.getProviders().get(name);
+            if (fp == null) {
+                System.err.println("[Provider] fallback provider not found in providers: " + name);
+                continue;
+            }
+            if (fp != p) {
+                addEndpoints(endpoints, name, fp, model);
+            }
+        }
+        LLMProvider provider;
+        if (endpoints.size() == 1) {
+            provider = endpoints.get(0).getProvider();
+        } else {
+            RoutingProvider router = new RoutingProvider(endpoints, model,
+                    config.getAgents().getCircuitBreakerFailures(),
+                    config.getAgents().getCircuitBreakerOpenSeconds() * 1000L);
+            MetricsRegistry.getDefault().register(router);
+            provider = router;
+        }
+        return withCache(config, provider);
+    }
+
+    /** agents.responseCache 开启时包装为 CachingProvider，磁盘层位于数据目录 cache/llm */
+    private static LLMProvider withCache(Config config, LLMProvider provider) {
+        AgentsConfig agents = config.getAgents();
+        if (!agents.isResponseCache()) {
+            return provider;
+        }
+        Path diskDir = agents.isResponseCacheDisk() && config.getDataDir() != null
+                ? config.getDataDir().resolve("cache").resolve("llm") : null;
+        CachingProvider cache = new CachingProvider(provider, agents.getResponseCacheMaxEntries(),
+                agents.getResponseCacheTtlSeconds(), diskDir, agents.getResponseCacheDiskMaxEntries());
+        MetricsRegistry.getDefault().register(cache);
+        return cache;
+    }
+
+    /** 主 provider 与备用 provider 的全部地址（去重），供启动时预连接 */
+    public static List<String> apiBases(Config config) {
+        Set<String> out = new LinkedHashSet<>();
+        config.getProvider(config.getAgents().getModel()).ifPresent(p -> out.addAll(basesOf(p)));
+        for (String name : config.getAgents().getFallbackProviders()) {
+            ProviderConfig fp = config.getProviders().get(name);
+            if (fp != null) {
+                out.addAll(basesOf(fp));
+            }
+        }
+        return new ArrayList<>(out);
+    }
+
+    /** apiBase 在前、apiBases 在后去重；都未配置时为默认 OpenAI 地址 */
+    private static Set<String> basesOf(ProviderConfig p) {
+        Set<String> bases = new LinkedHashSet<>();
+        if (p.getApiBase() != null && !p.getApiBase().isEmpty()) {
+            bases.add(p.getApiBase());
+        }
+        for (String base : p.getApiBases()) {
+            if (base != null && !base.isEmpty()) {
+                bases.add(base);
+            }
+        }
+        if (bases.isEmpty()) {
+            bases.add(DEFAULT_API_BASE);
+        }
+        return bases;
+    }
+
+    /**
+     * provider 的 apiBase 与 apiBases 去重后各建一个端点，名称为 "provider@apiBase"；provider 开启 hedge / gzipRequests 时各端点带对冲策略与请求压缩，
+     * 配了准入限额时各端点共用一个 AdmissionController。
+     */
+    private static void addEndpoints(List<RoutingProvider.Endpoint> out, String name, ProviderConfig p, String model) {
+        String apiKey = p.getApiKey() != null ? p.getApiKey() : "";
+        Set<String> bases = basesOf(p);
+        Map<String, String> headers = p.getExtraHeaders();
+        AdmissionController admission = null;
+        if (p.getMaxInFlight() > 0 || p.getTokensPerMinute() > 0) {
+            admission = new AdmissionController(name, p.getMaxInFlight(), p.getTokensPerMinute());
+            MetricsRegistry.getDefault().register(admission);
+        }
+        List<String> list = new ArrayList<>(bases);
+        for (int i = 0; i < list.size(); i++) {
+            String base = list.get(i);
+            String endpointName = name + "@" + base;
+            HedgePolicy hedge = null;
+            if (p.isHedge()) {
+                hedge = new HedgePolicy(endpointName, p.getHedgePercentile(), p.getHedgeMinDelayMs(), p.getHedgeMaxDelayMs());
+                MetricsRegistry.getDefault().register(hedge);
+            }
+            RequestCompression compression = null;
+            if (p.isGzipRequests()) {
+                compression = new RequestCompression(endpointName, p.getGzipMinBytes());
+                MetricsRegistry.getDefault().register(compression);
+            }
+            // 对冲请求发往同一 provider 的下一个地址，只有一个地址时发往自身
+            String hedgeBase = list.get((i + 1) % list.size());
+            boolean streamUsage = p.getStreamUsage() != null ? p.getStreamUsage()
+                    : OpenAICompatibleProvider.supportsStreamUsage(base);
+            LLMProvider provider = new OpenAICompatibleProvider(apiKey, base, headers, model, hedge, hedgeBase, compression,
+                    streamUsage);
+            if (admission != null) {
+                provider = new AdmissionProvider(provider, admission, p.getMaxRetryAfterSeconds() * 1000L);
+            }
+            out.add(new RoutingProvider.Endpoint(endpointName, provider));
+        }
     }
 }
@@ -0,0 +1,79 @@
+package com.javaclaw.providers;
+
+import com.javaclaw.metrics.MetricsSource;
+import com.javaclaw.metrics.MetricsWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 请求体 gzip 压缩（Content-Encoding: gzip）：超过 minBytes 的请求体按最快级别压缩，
+ * 压缩后反而不更小时仍发原文。长对话与大段工具输出的 JSON 重复度高，通常能压到原来的 1/5 以下。
+ * 需上游或代理支持解压请求体，故按 provider 显式开启。
+ */
+public class RequestCompression implements MetricsSource {
+
+    private final String name;
+    private final int minBytes;
+
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    /**
+     * @param name     指标标签（端点名）
+     * @param minBytes 请求体不小于该字节数才压缩
+     */
+    public RequestCompression(String name, int minBytes) {
+        this.name = name;
+        this.minBytes = Math.max(0, minBytes);
+    }
+
+    /** 压缩 body；低于阈值或压缩无收益时返回 null，调用方发原文 */
+    public byte[] compress(byte[] body) {
+        if (body.length < minBytes) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(512, body.length / 4));
+        try (GZIPOutputStream gz = new GZIPOutputStream(out, 8192) {
+            {
+                def.setLevel(Deflater.BEST_SPEED);
+            }
+        }) {
+            gz.write(body);
+        } catch (IOException e) {
+            // 内存流不会抛出，保险起见退回原文
+            return null;
+        }
+        if (out.size() >= body.length) {
+            return null;
+        }
+        compressed.incrementAndGet();
+        bytesIn.addAndGet(body.length);
+        bytesOut.addAndGet(out.size());
+        return out.toByteArray();
+    }
+
+    /** 压缩过的请求数 */
+    public long getCompressed() {
+        return compressed.get();
+    }
+
+    /** 压缩节省的累计字节数 */
+    public long getBytesSaved() {
+        return bytesIn.get() - bytesOut.get();
+    }
+
+    @Override
+    public void collect(MetricsWriter w) {
+        w.counter("javaclaw_request_gzip_total", "Request bodies sent gzip-compressed")
+                .sample("javaclaw_request_gzip_total", getCompressed(), "endpoint", name);
+        w.counter("javaclaw_request_gzip_bytes_in_total", "Uncompressed size of gzip-compressed request bodies")
+                .sample("javaclaw_request_gzip_bytes_in_total", bytesIn.get(), "endpoint", name);
+        w.counter("javaclaw_request_gzip_bytes_saved_total", "Bytes saved by request body compression")
+                .sample("javaclaw_request_gzip_bytes_saved_total", getBytesSaved(), "endpoint", name);
+    }
+}
@@ -0,0 +1,424 @@
+package com.javaclaw.providers;
+
+import com.javaclaw.metrics.MetricsSource;
+import com.javaclaw.metrics.MetricsWriter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 多端点路由的 LLMProvider：包装同一模型的多个 provider / apiBase，按 EWMA 延迟与错误率选最优端点，
+ * 遇连接错误、5xx、429 时换下一个端点重试（已向调用方输出过流式内容时不再重试，避免重复输出）。
+ * 每个端点带熔断器：连续失败达到阈值后熔断一段时间，期间不再发请求；到期后放行一个探测请求，成功即恢复。
+ * 只有成功响应计入延迟样本；401/403/404 也按失败计入熔断，其他不可重试错误只抬高错误率。
+ */
+public class RoutingProvider implements LLMProvider, MetricsSource {
+
+    /** EWMA 平滑系数：新样本权重 */
+    private static final double ALPHA = 0.2;
+    /** 错误率对排序分数的放大系数：score = 延迟 * (1 + ERROR_PENALTY * 错误率) */
+    private static final double ERROR_PENALTY = 4.0;
+
+    private final List<Endpoint> endpoints;
+    private final String defaultModel;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final AtomicLong failovers = new AtomicLong();
+
+    /**
+     * @param endpoints        候选端点，按配置优先级排列（无延迟样本时按此顺序）
+     * @param failureThreshold 连续失败多少次后熔断，&lt;= 0 时取 3
+     * @param openMillis       熔断持续时间（毫秒），&lt;= 0 时取 30s
+     */
+    public RoutingProvider(List<Endpoint> endpoints, String defaultModel, int failureThreshold, long openMillis) {
+        if (endpoints == null || endpoints.isEmpty()) {
+            throw new IllegalArgumentException("RoutingProvider needs at least one endpoint");
+        }
+        this.endpoints = Collections.unmodifiableList(new ArrayList<>(endpoints));
+        this.defaultModel = defaultModel;
+        this.failureThreshold = failureThreshold > 0 ? failureThreshold : 3;
+        this.openMillis = openMillis > 0 ? openMillis : 30_000L;
+    }
+
+    @Override
+    public LLMResponse chat(List<Map<String, Object>> messages,
+                            List<Map<String, Object>> tools,
+                            String model,
+                            int maxTokens,
+                            double temperature) {
+        return chat(messages, tools, model, maxTokens, temperature, null, null);
+    }
+
+    @Override
+    public LLMResponse chat(List<Map<String, Object>> messages,
+                            List<Map<String, Object>> tools,
+                            String model,
+                            int maxTokens,
+                            double temperature,
+                            Consumer<String> streamConsumer) {
+        return chat(messages, tools, model, maxTokens, temperature, streamConsumer, null);
+    }
+
+    @Override
+    public LLMResponse chat(List<Map<String, Object>> messages,
+                            List<Map<String, Object>> tools,
+                            String model,
+                            int maxTokens,
+                            double temperature,
+                            Consumer<String> streamConsumer,
+                            Consumer<ToolCallRequest> toolCallConsumer) {
+        boolean[] emitted = {false};
+        LLMResponse last = null;
+        List<Endpoint> order = rank();
+        for (int i = 0; i < order.size(); i++) {
+            Endpoint ep = order.get(i);
+            if (!ep.tryAcquire(System.currentTimeMillis())) {
+                continue;
+            }
+            long start = System.nanoTime();
+            long[] firstChunk = {0};
+            Consumer<String> sc = streamConsumer == null ? null : chunk -> {
+                if (firstChunk[0] == 0) {
+                    firstChunk[0] = System.nanoTime();
+                }
+                emitted[0] = true;
+                streamConsumer.accept(chunk);
+            };
+            Consumer<ToolCallRequest> tc = toolCallConsumer == null ? null : call -> {
+                emitted[0] = true;
+                toolCallConsumer.accept(call);
+            };
+            LLMResponse r;
+            try {
+                r = ep.provider.chat(messages, tools, model, maxTokens, temperature, sc, tc);
+            } catch (RuntimeException e) {
+                r = new LLMResponse();
+                r.setContent("[LLM error: " + e.getMessage() + "]");
+                r.setErrorStatus(-1);
+            }
+            // 流式时以首个内容块到达时间作为延迟，避免长回复拉高端点的延迟估计
+            long latency = (firstChunk[0] != 0 ? firstChunk[0] : System.nanoTime()) - start;
+            if (r.isError() && r.isRetryable()) {
+                ep.onFailure(System.currentTimeMillis(), failureThreshold, openMillis);
+                last = r;
+                if (emitted[0]) {
+                    return r;
+                }
+                System.err.println("[Provider] " + ep.name + " failed (" + r.getErrorStatus() + "), trying next endpoint");
+                failovers.incrementAndGet();
+                continue;
+            }
+            settle(ep, r, latency);
+            return r;
+        }
+        if (last != null) {
+            return last;
+        }
+        LLMResponse err = new LLMResponse();
+        err.setContent("[LLM error: all provider endpoints are unavailable (circuit open)]");
+        err.setErrorStatus(503);
+        return err;
+    }
+
+    /** 异步版本：按同样的排序与故障切换规则，依次对端点调用 chatAsync，失败时在回调中切到下一个端点 */
+    @Override
+    public CompletableFuture<LLMResponse> chatAsync(List<Map<String, Object>> messages,
+                                                    List<Map<String, Object>> tools,
+                                                    String model,
+                                                    int maxTokens,
+                                                    double temperature,
+                                                    Consumer<String> streamConsumer,
+                                                    Consumer<ToolCallRequest> toolCallConsumer) {
+        AsyncAttempt attempt = new AsyncAttempt(rank(), messages, tools, model, maxTokens, temperature,
+                streamConsumer, toolCallConsumer);
+        attempt.next(0, null);
+        return attempt.result;
+    }
+
+    /** 一次异步路由：从第 index 个端点开始尝试，直到成功、不可重试或端点用尽 */
+    private final class AsyncAttempt {
+        private final List<Endpoint> order;
+        private final List<Map<String, Object>> messages;
+        private final List<Map<String, Object>> tools;
+        private final String model;
+        private final int maxTokens;
+        private final double temperature;
+        private final Consumer<String> streamConsumer;
+        private final Consumer<ToolCallRequest> toolCallConsumer;
+        private final CompletableFuture<LLMResponse> result = new CompletableFuture<>();
+        /** 发起时的会话 key；故障切换在回调线程上进行，需重新带上 */
+        private final String sessionKey = LLMRequestScope.sessionKey();
+        private volatile boolean emitted;
+
+        AsyncAttempt(List<Endpoint> order, List<Map<String, Object>> messages, List<Map<String, Object>> tools,
+                     String model, int maxTokens, double temperature,
+                     Consumer<String> streamConsumer, Consumer<ToolCallRequest> toolCallConsumer) {
+            this.order = order;
+            this.messages = messages;
+            this.tools = tools;
+            this.model = model;
+            this.maxTokens = maxTokens;
+            this.temperature = temperature;
+            this.streamConsumer = streamConsumer;
+            this.toolCallConsumer = toolCallConsumer;
+        }
+
+        void next(int index, LLMResponse last) {
+            int i = index;
+            while (i < order.size() && !order.get(i).tryAcquire(System.currentTimeMillis())) {
+                i++;
+            }
+            if (i >= order.size()) {
+                if (last != null) {
+                    result.complete(last);
+                } else {
+                    LLMResponse err = new LLMResponse();
+                    err.setContent("[LLM error: all provider endpoints are unavailable (circuit open)]");
+                    err.setErrorStatus(503);
+                    result.complete(err);
+                }
+                return;
+            }
+            Endpoint ep = order.get(i);
+            int current = i;
+            long start = System.nanoTime();
+            long[] firstChunk = {0};
+            Consumer<String> sc = streamConsumer == null ? null : chunk -> {
+                if (firstChunk[0] == 0) {
+                    firstChunk[0] = System.nanoTime();
+                }
+                emitted = true;
+                streamConsumer.accept(chunk);
+            };
+            Consumer<ToolCallRequest> tc = toolCallConsumer == null ? null : call -> {
+                emitted = true;
+                toolCallConsumer.accept(call);
+            };
+            CompletableFuture<LLMResponse> f;
+            try {
+                f = LLMRequestScope.call(sessionKey,
+                        () -> ep.provider.chatAsync(messages, tools, model, maxTokens, temperature, sc, tc));
+            } catch (RuntimeException e) {
+                f = new CompletableFuture<>();
+                f.completeExceptionally(e);
+            }
+            f.whenComplete((resp, ex) -> {
+                LLMResponse r = resp;
+                if (ex != null) {
+                    r = new LLMResponse();
+                    r.setContent("[LLM error: " + ex.getMessage() + "]");
+                    r.setErrorStatus(-1);
+                }
+                long latency = (firstChunk[0] != 0 ? firstChunk[0] : System.nanoTime()) - start;
+                if (r.isError() && r.isRetryable()) {
+                    ep.onFailure(System.currentTimeMillis(), failureThreshold, openMillis);
+                    if (emitted || current + 1 >= order.size()) {
+                        result.complete(r);
+                        return;
+                    }
+                    System.err.println("[Provider] " + ep.name + " failed (" + r.getErrorStatus() + "), trying next endpoint");
+                    failovers.incrementAndGet();
+                    next(current + 1, r);
+                    return;
+                }
+                settle(ep, r, latency);
+                result.complete(r);
+            });
+        }
+    }
+
+    /**
+     * 记录一次不换端点的结果：成功才计入延迟样本；401/403/404 说明端点配置有误（密钥、模型、地址），按失败计入熔断；
+     * 其他不可重试错误（如 400）多由请求本身引起，只抬高错误率，不计延迟，避免快速失败的端点反而分数最优
+     */
+    private void settle(Endpoint ep, LLMResponse r, long latencyNanos) {
+        if (!r.isError()) {
+            ep.onSuccess(latencyNanos);
+            return;
+        }
+        int status = r.getErrorStatus();
+        if (status == 401 || status == 403 || status == 404) {
+            ep.onFailure(System.currentTimeMillis(), failureThreshold, openMillis);
+        } else {
+            ep.onRejected();
+        }
+    }
+
+    /** 按分数从低到高排序；熔断中的端点排在最后（tryAcquire 时再判断是否可放行探测） */
+    private List<Endpoint> rank() {
+        long now = System.currentTimeMillis();
+        // 先取分数快照再排序，避免排序过程中统计被并发更新
+        Map<Endpoint, Double> scores = new IdentityHashMap<>();
+        for (Endpoint ep : endpoints) {
+            scores.put(ep, ep.score(now));
+        }
+        List<Endpoint> order = new ArrayList<>(endpoints);
+        Collections.sort(order, Comparator.comparingDouble(scores::get));
+        return order;
+    }
+
+    @Override
+    public String getDefaultModel() {
+        return defaultModel != null ? defaultModel : endpoints.get(0).provider.getDefaultModel();
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /** 因失败换端点重试的累计次数 */
+    public long getFailovers() {
+        return failovers.get();
+    }
+
+    @Override
+    public void collect(MetricsWriter w) {
+        w.gauge("javaclaw_provider_latency_ewma_seconds", "EWMA latency (time to first chunk when streaming) per endpoint");
+        for (Endpoint ep : endpoints) {
+            w.sample("javaclaw_provider_latency_ewma_seconds", ep.getEwmaLatencyNanos() / 1e9, "endpoint", ep.name);
+        }
+        w.gauge("javaclaw_provider_error_rate", "EWMA error rate per endpoint");
+        for (Endpoint ep : endpoints) {
+            w.sample("javaclaw_provider_error_rate", ep.getErrorRate(), "endpoint", ep.name);
+        }
+        w.gauge("javaclaw_provider_circuit_state", "Circuit breaker state per endpoint (0 closed, 1 half-open, 2 open)");
+        for (Endpoint ep : endpoints) {
+            w.sample("javaclaw_provider_circuit_state", ep.getState().ordinal(), "endpoint", ep.name);
+        }
+        w.counter("javaclaw_provider_requests_total", "Requests sent per endpoint");
+        for (Endpoint ep : endpoints) {
+            w.sample("javaclaw_provider_requests_total", ep.getRequests(), "endpoint", ep.name);
+        }
+        w.counter("javaclaw_provider_failures_total", "Retryable failures per endpoint");
+        for (Endpoint ep : endpoints) {
+            w.sample("javaclaw_provider_failures_total", ep.getFailures(), "endpoint", ep.name);
+        }
+        w.counter("javaclaw_provider_failovers_total", "Requests retried on another endpoint")
+                .sample("javaclaw_provider_failovers_total", failovers.get());
+    }
+
+    /** 熔断器状态 */
+    public enum CircuitState {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    /** 单个候选端点：provider 实例 + 延迟/错误率统计 + 熔断器 */
+    public static final class Endpoint {
+
+        private final String name;
+        private final LLMProvider provider;
+
+        /** EWMA 延迟（纳秒），0 表示尚无样本 */
+        private volatile double ewmaLatencyNanos;
+        private volatile double errorRate;
+        private volatile CircuitState state = CircuitState.CLOSED;
+        private int consecutiveFailures;
+        private long openUntil;
+        private boolean probeInFlight;
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+
+        public Endpoint(String name, LLMProvider provider) {
+            this.name = name;
+            this.provider = provider;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public LLMProvider getProvider() {
+            return provider;
+        }
+
+        /** 排序分数；从未请求过的端点为 0（优先试一次），只失败过的排在有成功样本的之后，熔断中为 +∞ */
+        double score(long now) {
+            if (state == CircuitState.OPEN && now < openUntilSnapshot()) {
+                return Double.POSITIVE_INFINITY;
+            }
+            double latency = ewmaLatencyNanos;
+            if (latency == 0 && errorRate > 0) {
+                latency = Double.MAX_VALUE / 16;
+            }
+            return latency * (1 + ERROR_PENALTY * errorRate);
+        }
+
+        private synchronized long openUntilSnapshot() {
+            return openUntil;
+        }
+
+        /** 熔断器放行判断：关闭时放行；熔断到期后转半开并只放行一个探测请求 */
+        synchronized boolean tryAcquire(long now) {
+            if (state == CircuitState.OPEN) {
+                if (now < openUntil) {
+                    return false;
+                }
+                state = CircuitState.HALF_OPEN;
+                probeInFlight = false;
+            }
+            if (state == CircuitState.HALF_OPEN) {
+                if (probeInFlight) {
+                    return false;
+                }
+                probeInFlight = true;
+            }
+            requests.incrementAndGet();
+            return true;
+        }
+
+        synchronized void onSuccess(long latencyNanos) {
+            ewmaLatencyNanos = ewmaLatencyNanos == 0 ? latencyNanos : ewmaLatencyNanos * (1 - ALPHA) + latencyNanos * ALPHA;
+            errorRate = errorRate * (1 - ALPHA);
+            consecutiveFailures = 0;
+            probeInFlight = false;
+            state = CircuitState.CLOSED;
+        }
+
+        /** 不可重试、也不归咎于端点的错误：只抬高错误率，释放半开探测名额 */
+        synchronized void onRejected() {
+            errorRate = errorRate * (1 - ALPHA) + ALPHA;
+            probeInFlight = false;
+        }
+
+        synchronized void onFailure(long now, int threshold, long openMillis) {
+            failures.incrementAndGet();
+            errorRate = errorRate * (1 - ALPHA) + ALPHA;
+            consecutiveFailures++;
+            probeInFlight = false;
+            if (state == CircuitState.HALF_OPEN || consecutiveFailures >= threshold) {
+                state = CircuitState.OPEN;
+                openUntil = now + openMillis;
+                System.err.println("[Provider] circuit open for " + name + " ("
+                        + TimeUnit.MILLISECONDS.toSeconds(openMillis) + "s)");
+            }
+        }
+
+        public double getEwmaLatencyNanos() {
+            return ewmaLatencyNanos;
+        }
+
+        public double getErrorRate() {
+            return errorRate;
+        }
+
+        public CircuitState getState() {
+            return state;
+        }
+
+        public long getRequests() {
+            return requests.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+    }
+}
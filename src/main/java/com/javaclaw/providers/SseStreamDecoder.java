@@ -0,0 +1,362 @@
+package com.javaclaw.providers;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import okio.BufferedSource;
+
+/**
+ * OpenAI 兼容 SSE 流的解码器：直接从 okio BufferedSource 按行读入可复用的字节缓冲，
+ * 用 Jackson 流式 JsonParser 只提取 choices[0].delta（content、reasoning_content、tool_calls 片段）、finish_reason 与 usage，
+ * 不为每行构造 String 和 JsonNode 树。一个实例只解码一个流。
+ */
+final class SseStreamDecoder {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final byte[] DATA_PREFIX = {'d', 'a', 't', 'a', ':'};
+    private static final byte[] DONE = {'[', 'D', 'O', 'N', 'E', ']'};
+
+    private final Consumer<String> streamConsumer;
+    private final Consumer<ToolCallRequest> toolCallConsumer;
+
+    /** 当前行的字节缓冲，按需扩容后复用 */
+    private byte[] line = new byte[4096];
+
+    private final StringBuilder content = new StringBuilder();
+    private StringBuilder reasoning;
+    private final List<ToolCallRequest> toolCalls = new ArrayList<>();
+    private final Map<Integer, StringBuilder> argsRawByIndex = new HashMap<>();
+    private final Map<Integer, ArgsScanner> scanners = new HashMap<>();
+    private String finishReason;
+    private Map<String, Integer> usage;
+
+    SseStreamDecoder(Consumer<String> streamConsumer, Consumer<ToolCallRequest> toolCallConsumer) {
+        this.streamConsumer = streamConsumer;
+        this.toolCallConsumer = toolCallConsumer;
+    }
+
+    /** 读到 data: [DONE] 或流结束为止，返回累积的完整响应 */
+    LLMResponse decode(BufferedSource source) throws IOException {
+        while (true) {
+            long nl = source.indexOf((byte) '\n');
+            long size = nl >= 0 ? nl : source.getBuffer().size();
+            if (nl < 0 && size == 0) {
+                break;
+            }
+            int len = readLine(source, size);
+            if (nl >= 0) {
+                source.skip(1);
+            }
+            if (len > 0 && line[len - 1] == '\r') {
+                len--;
+            }
+            if (!startsWith(line, len, DATA_PREFIX)) {
+                continue;
+            }
+            int from = DATA_PREFIX.length;
+            while (from < len && line[from] == ' ') {
+                from++;
+            }
+            while (len > from && (line[len - 1] == ' ' || line[len - 1] == '\t')) {
+                len--;
+            }
+            if (len - from == DONE.length && regionEquals(line, from, DONE)) {
+                break;
+            }
+            try {
+                parseChunk(from, len - from);
+            } catch (Exception e) {
+                // 忽略单条解析失败，继续下一行
+            }
+        }
+        return buildResponse();
+    }
+
+    private int readLine(BufferedSource source, long size) throws IOException {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IOException("SSE line too long: " + size);
+        }
+        int len = (int) size;
+        if (line.length < len) {
+            line = new byte[Math.max(len, line.length * 2)];
+        }
+        int off = 0;
+        while (off < len) {
+            int n = source.read(line, off, len - off);
+            if (n < 0) {
+                break;
+            }
+            off += n;
+        }
+        return off;
+    }
+
+    /** 解析一条 chunk JSON：{"choices":[{"delta":{...},"finish_reason":...}],"usage":{...}} */
+    private void parseChunk(int offset, int length) throws IOException {
+        try (JsonParser p = JSON_FACTORY.createParser(line, offset, length)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                return;
+            }
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.getCurrentName();
+                JsonToken t = p.nextToken();
+                if ("choices".equals(field) && t == JsonToken.START_ARRAY) {
+                    parseChoices(p);
+                } else if ("usage".equals(field) && t == JsonToken.START_OBJECT) {
+                    parseUsage(p);
+                } else {
+                    p.skipChildren();
+                }
+            }
+        }
+    }
+
+    /** 只处理第一个 choice，其余跳过 */
+    private void parseChoices(JsonParser p) throws IOException {
+        boolean first = true;
+        JsonToken t;
+        while ((t = p.nextToken()) != JsonToken.END_ARRAY && t != null) {
+            if (!first || t != JsonToken.START_OBJECT) {
+                p.skipChildren();
+                continue;
+            }
+            first = false;
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.getCurrentName();
+                t = p.nextToken();
+                if ("delta".equals(field) && t == JsonToken.START_OBJECT) {
+                    parseDelta(p);
+                } else if ("finish_reason".equals(field) && t == JsonToken.VALUE_STRING) {
+                    finishReason = p.getText();
+                } else {
+                    p.skipChildren();
+                }
+            }
+        }
+    }
+
+    private void parseDelta(JsonParser p) throws IOException {
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            JsonToken t = p.nextToken();
+            if ("content".equals(field) && t == JsonToken.VALUE_STRING) {
+                String chunk = p.getText();
+                content.append(chunk);
+                if (streamConsumer != null && !chunk.isEmpty()) {
+                    streamConsumer.accept(chunk);
+                }
+            } else if ("reasoning_content".equals(field) && t == JsonToken.VALUE_STRING) {
+                if (reasoning == null) {
+                    reasoning = new StringBuilder();
+                }
+                reasoning.append(p.getTextCharacters(), p.getTextOffset(), p.getTextLength());
+            } else if ("tool_calls".equals(field) && t == JsonToken.START_ARRAY) {
+                int i = 0;
+                while ((t = p.nextToken()) != JsonToken.END_ARRAY && t != null) {
+                    if (t == JsonToken.START_OBJECT) {
+                        parseToolCallDelta(p, i);
+                    } else {
+                        p.skipChildren();
+                    }
+                    i++;
+                }
+            } else {
+                p.skipChildren();
+            }
+        }
+    }
+
+    /** 一个 tool_calls 片段：index、id、function.name、function.arguments（字段顺序不固定，读完再应用） */
+    private void parseToolCallDelta(JsonParser p, int position) throws IOException {
+        int idx = position;
+        String id = null;
+        String name = null;
+        String args = null;
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            JsonToken t = p.nextToken();
+            if ("index".equals(field) && t == JsonToken.VALUE_NUMBER_INT) {
+                idx = p.getIntValue();
+            } else if ("id".equals(field) && t == JsonToken.VALUE_STRING) {
+                id = p.getText();
+            } else if ("function".equals(field) && t == JsonToken.START_OBJECT) {
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    String fnField = p.getCurrentName();
+                    t = p.nextToken();
+                    if ("name".equals(fnField) && t == JsonToken.VALUE_STRING) {
+                        name = p.getText();
+                    } else if ("arguments".equals(fnField) && t == JsonToken.VALUE_STRING) {
+                        args = p.getText();
+                    } else {
+                        p.skipChildren();
+                    }
+                }
+            } else {
+                p.skipChildren();
+            }
+        }
+        while (toolCalls.size() <= idx) {
+            toolCalls.add(null);
+        }
+        ToolCallRequest tr = toolCalls.get(idx);
+        if (tr == null) {
+            tr = new ToolCallRequest();
+            toolCalls.set(idx, tr);
+            argsRawByIndex.put(idx, new StringBuilder());
+        }
+        if (id != null && tr.getId() == null) {
+            tr.setId(id);
+        }
+        if (name != null) {
+            tr.setName(name);
+        }
+        if (args != null && !args.isEmpty()) {
+            StringBuilder raw = argsRawByIndex.get(idx);
+            raw.append(args);
+            if (toolCallConsumer != null) {
+                emitIfComplete(tr, raw, scanners.computeIfAbsent(idx, k -> new ArgsScanner()), args);
+            }
+        }
+    }
+
+    private void parseUsage(JsonParser p) throws IOException {
+        Map<String, Integer> u = new HashMap<>();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            JsonToken t = p.nextToken();
+            if (t == JsonToken.VALUE_NUMBER_INT && ("prompt_tokens".equals(field)
+                    || "completion_tokens".equals(field) || "total_tokens".equals(field))) {
+                u.put(field, p.getIntValue());
+            } else if (t == JsonToken.VALUE_NUMBER_INT && "prompt_cache_hit_tokens".equals(field)) {
+                u.putIfAbsent("cached_tokens", p.getIntValue());
+            } else if ("prompt_tokens_details".equals(field) && t == JsonToken.START_OBJECT) {
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    String d = p.getCurrentName();
+                    t = p.nextToken();
+                    if ("cached_tokens".equals(d) && t == JsonToken.VALUE_NUMBER_INT) {
+                        u.put("cached_tokens", p.getIntValue());
+                    } else {
+                        p.skipChildren();
+                    }
+                }
+            } else {
+                p.skipChildren();
+            }
+        }
+        usage = u;
+    }
+
+    /** 参数片段累积到完整 JSON 对象时解析参数并回调（每个调用一次） */
+    private void emitIfComplete(ToolCallRequest tr, StringBuilder argsRaw, ArgsScanner scanner, String part) {
+        if (scanner.emitted || !scanner.feed(part) || tr.getName() == null) {
+            return;
+        }
+        try {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> args = MAPPER.readValue(argsRaw.toString(), Map.class);
+            tr.setArguments(args);
+        } catch (Exception e) {
+            return;
+        }
+        scanner.emitted = true;
+        try {
+            toolCallConsumer.accept(tr);
+        } catch (Exception e) {
+            // 回调异常不影响流解析，调用仍会出现在最终 toolCalls 中
+        }
+    }
+
+    private LLMResponse buildResponse() {
+        LLMResponse out = new LLMResponse();
+        out.setContent(content.toString());
+        if (reasoning != null) {
+            out.setReasoningContent(reasoning.toString());
+        }
+        if (finishReason != null) {
+            out.setFinishReason(finishReason);
+        }
+        if (usage != null) {
+            out.setUsage(usage);
+        }
+        List<ToolCallRequest> finalCalls = new ArrayList<>();
+        for (int idx = 0; idx < toolCalls.size(); idx++) {
+            ToolCallRequest t = toolCalls.get(idx);
+            if (t == null) {
+                continue;
+            }
+            ArgsScanner scanner = scanners.get(idx);
+            StringBuilder argsRaw = argsRawByIndex.get(idx);
+            if ((scanner == null || !scanner.emitted) && argsRaw != null && argsRaw.length() > 0) {
+                try {
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> args = MAPPER.readValue(argsRaw.toString(), Map.class);
+                    t.setArguments(args);
+                } catch (Exception e) {
+                    t.setArguments(Collections.<String, Object>emptyMap());
+                }
+            }
+            finalCalls.add(t);
+        }
+        if (!finalCalls.isEmpty()) {
+            out.setToolCalls(finalCalls);
+        }
+        return out;
+    }
+
+    private static boolean startsWith(byte[] buf, int len, byte[] prefix) {
+        return len >= prefix.length && regionEquals(buf, 0, prefix);
+    }
+
+    private static boolean regionEquals(byte[] buf, int from, byte[] expected) {
+        for (int i = 0; i < expected.length; i++) {
+            if (buf[from + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** 增量扫描参数 JSON 的括号深度（忽略字符串内字符），判断对象是否已闭合 */
+    private static final class ArgsScanner {
+        private int depth;
+        private boolean started;
+        private boolean inString;
+        private boolean escape;
+        private boolean emitted;
+
+        /** 追加一段文本，返回追加后顶层对象是否已闭合 */
+        boolean feed(String part) {
+            for (int i = 0; i < part.length(); i++) {
+                char c = part.charAt(i);
+                if (inString) {
+                    if (escape) {
+                        escape = false;
+                    } else if (c == '\\') {
+                        escape = true;
+                    } else if (c == '"') {
+                        inString = false;
+                    }
+                } else if (c == '"') {
+                    inString = true;
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                    started = true;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+            }
+            return started && depth == 0;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.javaclaw.session;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -17,6 +19,10 @@ public class Session {
     private Instant updatedAt;
     private Map<String, Object> metadata;
     private Instant lastConsolidated;
+    /** 合并水位线：messages 中下标小于此值的消息已合并进长期记忆 */
+    private int consolidatedIndex;
+    /** clear() 的次数，不持久化；合并线程据此发现 LLM 调用期间会话已被清空 */
+    private int generation;
 
     public Session() {
         this.messages = new ArrayList<>();
@@ -31,7 +37,7 @@ public class Session {
     }
 
     /** 追加一条消息（可带 toolsUsed 等 extra） */
-    public void addMessage(String role, String content, Map<String, Object> extra) {
+    public synchronized void addMessage(String role, String content, Map<String, Object> extra) {
         Map<String, Object> msg = new java.util.HashMap<>();
         msg.put("role", role);
         msg.put("content", content != null ? content : "");
@@ -43,7 +49,7 @@ public class Session {
     }
 
     /** 最近 maxMessages 条消息的 LLM 格式（role + content） */
-    public List<Map<String, Object>> getHistory(int maxMessages) {
+    public synchronized List<Map<String, Object>> getHistory(int maxMessages) {
         if (messages.isEmpty() || maxMessages <= 0) {
             return Collections.emptyList();
         }
@@ -51,13 +57,47 @@ public class Session {
         return new ArrayList<>(messages.subList(from, messages.size()));
     }
 
-    /** 清空消息并重置 lastConsolidated */
-    public void clear() {
+    /** 从下标 from 起最多 maxMessages 条消息的副本，供增量合并使用 */
+    public synchronized List<Map<String, Object>> getMessagesSince(int from, int maxMessages) {
+        int start = Math.max(0, Math.min(from, messages.size()));
+        int end = maxMessages > 0 ? Math.min(messages.size(), start + maxMessages) : messages.size();
+        return new ArrayList<>(messages.subList(start, end));
+    }
+
+    /** 清空消息并重置 lastConsolidated 与合并水位线 */
+    public synchronized void clear() {
         messages.clear();
         lastConsolidated = null;
+        consolidatedIndex = 0;
+        generation++;
         updatedAt = Instant.now();
     }
 
+    /** 当前消息条数 */
+    @JsonIgnore
+    public synchronized int getMessageCount() {
+        return messages.size();
+    }
+
+    @JsonIgnore
+    public synchronized int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * 合并完成后推进水位线：仅当会话未被清空（generation 未变）且水位线仍为 expected 时设为 to，并更新 lastConsolidated。
+     *
+     * @return 是否已推进
+     */
+    public synchronized boolean advanceConsolidatedIndex(int generation, int expected, int to) {
+        if (this.generation != generation || consolidatedIndex != expected) {
+            return false;
+        }
+        consolidatedIndex = to;
+        lastConsolidated = Instant.now();
+        return true;
+    }
+
     public String getKey() {
         return key;
     }
@@ -105,4 +145,12 @@ public class Session {
     public void setLastConsolidated(Instant lastConsolidated) {
         this.lastConsolidated = lastConsolidated;
     }
+
+    public synchronized int getConsolidatedIndex() {
+        return consolidatedIndex;
+    }
+
+    public synchronized void setConsolidatedIndex(int consolidatedIndex) {
+        this.consolidatedIndex = consolidatedIndex;
+    }
 }
@@ -57,7 +57,7 @@ public class SessionManager {
         }
     }
 
-    /** 将会话持久化到磁盘 */
+    /** 将会话持久化到磁盘；持有会话锁序列化并写入，与工作线程的追加、合并线程的保存互斥 */
     public void save(Session session) {
         if (session == null) {
             return;
@@ -65,8 +65,10 @@ public class SessionManager {
         try {
             Files.createDirectories(sessionsDir);
             Path f = sessionFile(session.getKey());
-            String json = MAPPER.writeValueAsString(session);
-            Files.write(f, json.getBytes(StandardCharsets.UTF_8));
+            synchronized (session) {
+                String json = MAPPER.writeValueAsString(session);
+                Files.write(f, json.getBytes(StandardCharsets.UTF_8));
+            }
         } catch (IOException e) {
             throw new RuntimeException("Failed to save session " + session.getKey(), e);
         }
@@ -0,0 +1,141 @@
+package com.javaclaw.tokenizer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 纯 Java 的字节级 BPE 分词（与 tiktoken 的 cl100k_base / o200k_base 兼容），只计数不输出 id。
+ * 词表为 tiktoken 格式：每行 "base64(token) rank"。先用编码对应的正则切片，再对每片做按 rank 的最小优先合并；
+ * 常见片段的结果缓存在 pieceCache 中。
+ */
+public class BpeTokenizer implements Tokenizer {
+
+    /** cl100k_base 预分词正则 */
+    public static final String CL100K_PATTERN =
+            "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+    /** o200k_base 预分词正则 */
+    public static final String O200K_PATTERN =
+            "[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]*[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]+(?i:'s|'t|'re|'ve|'m|'ll|'d)?"
+                    + "|[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]+[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]*(?i:'s|'t|'re|'ve|'m|'ll|'d)?"
+                    + "|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n/]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+
+    private static final int PIECE_CACHE_LIMIT = 100_000;
+    private static final int MAX_RANK = Integer.MAX_VALUE;
+
+    private final String name;
+    private final Pattern pattern;
+    /** token 字节（按 ISO-8859-1 映射为 String 作 key）-> rank */
+    private final Map<String, Integer> ranks;
+    private final Map<String, Integer> pieceCache = new ConcurrentHashMap<>();
+
+    public BpeTokenizer(String name, Map<String, Integer> ranks, String pattern) {
+        this.name = name;
+        this.ranks = ranks;
+        this.pattern = Pattern.compile(pattern, Pattern.UNICODE_CHARACTER_CLASS);
+    }
+
+    /** 从 tiktoken 格式的词表流加载 */
+    public static BpeTokenizer load(String name, InputStream in, String pattern) throws IOException {
+        Map<String, Integer> ranks = new HashMap<>(1 << 18);
+        Base64.Decoder decoder = Base64.getDecoder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int sp = line.indexOf(' ');
+                if (sp <= 0) {
+                    continue;
+                }
+                byte[] token = decoder.decode(line.substring(0, sp));
+                ranks.put(new String(token, StandardCharsets.ISO_8859_1), Integer.parseInt(line.substring(sp + 1).trim()));
+            }
+        }
+        if (ranks.isEmpty()) {
+            throw new IOException("empty BPE rank file: " + name);
+        }
+        return new BpeTokenizer(name, ranks, pattern);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int count(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        int total = 0;
+        Matcher m = pattern.matcher(text);
+        while (m.find()) {
+            String piece = m.group();
+            Integer n = pieceCache.get(piece);
+            if (n == null) {
+                n = countPiece(piece);
+                if (pieceCache.size() < PIECE_CACHE_LIMIT) {
+                    pieceCache.put(piece, n);
+                }
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /** 单个预分词片段的 BPE 合并结果数量（同 tiktoken byte_pair_merge） */
+    private int countPiece(String piece) {
+        String bytes = new String(piece.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+        int len = bytes.length();
+        if (len <= 1 || ranks.containsKey(bytes)) {
+            return len == 0 ? 0 : 1;
+        }
+        // starts[i] 为第 i 段起点，rank[i] 为合并第 i、i+1 段后的 rank
+        int parts = len + 1;
+        int[] starts = new int[parts];
+        int[] rank = new int[parts];
+        for (int i = 0; i < parts; i++) {
+            starts[i] = i;
+        }
+        for (int i = 0; i < parts; i++) {
+            rank[i] = pairRank(bytes, starts, parts, i);
+        }
+        while (parts > 2) {
+            int best = MAX_RANK;
+            int at = -1;
+            for (int i = 0; i < parts - 1; i++) {
+                if (rank[i] < best) {
+                    best = rank[i];
+                    at = i;
+                }
+            }
+            if (at < 0) {
+                break;
+            }
+            // 删除第 at+1 个边界，即合并 at 与 at+1 两段
+            System.arraycopy(starts, at + 2, starts, at + 1, parts - at - 2);
+            System.arraycopy(rank, at + 2, rank, at + 1, parts - at - 2);
+            parts--;
+            rank[at] = pairRank(bytes, starts, parts, at);
+            if (at > 0) {
+                rank[at - 1] = pairRank(bytes, starts, parts, at - 1);
+            }
+        }
+        return parts - 1;
+    }
+
+    private int pairRank(String bytes, int[] starts, int parts, int i) {
+        if (i + 2 >= parts) {
+            return MAX_RANK;
+        }
+        Integer r = ranks.get(bytes.substring(starts[i], starts[i + 2]));
+        return r != null ? r : MAX_RANK;
+    }
+}
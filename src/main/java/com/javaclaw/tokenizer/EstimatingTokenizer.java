@@ -0,0 +1,30 @@
+package com.javaclaw.tokenizer;
+
+/**
+ * 无 BPE 词表时的估算实现：ASCII 约 4 字符 1 token，其余字符（如中文）每字 1 token。
+ */
+public class EstimatingTokenizer implements Tokenizer {
+
+    @Override
+    public String getName() {
+        return "estimate";
+    }
+
+    @Override
+    public int count(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        int ascii = 0;
+        int other = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                ascii++;
+            } else if (!Character.isLowSurrogate(c)) {
+                other++;
+            }
+        }
+        return (ascii + 3) / 4 + other;
+    }
+}
@@ -0,0 +1,106 @@
+package com.javaclaw.tokenizer;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 消息级 token 计数，按内容记忆结果（有界 LRU），同一段历史在多次请求间只分词一次。
+ * 文本第二次出现才进入记忆表：只出现一次的文本（带时间的 system prompt、每轮附带的上下文块）不会挤掉常用条目。
+ * 每条消息另计 4 个格式开销 token（role 与分隔符），与 OpenAI 的计数约定一致。
+ */
+public class TokenCounter {
+
+    private static final int PER_MESSAGE_OVERHEAD = 4;
+    private static final int DEFAULT_MEMO_SIZE = 8192;
+
+    private final Tokenizer tokenizer;
+    private final Map<String, Integer> memo;
+    /** 只出现过一次的文本的 hashCode（有界 LRU，与 memo 同锁）；hash 冲突只会让文本提前进入 memo */
+    private final Map<Integer, Boolean> seenOnce;
+
+    public TokenCounter(Tokenizer tokenizer) {
+        this(tokenizer, DEFAULT_MEMO_SIZE);
+    }
+
+    @SuppressWarnings("serial")
+    public TokenCounter(Tokenizer tokenizer, int memoSize) {
+        this.tokenizer = tokenizer != null ? tokenizer : new EstimatingTokenizer();
+        int max = memoSize > 0 ? memoSize : DEFAULT_MEMO_SIZE;
+        this.memo = new LinkedHashMap<String, Integer>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > max;
+            }
+        };
+        this.seenOnce = new LinkedHashMap<Integer, Boolean>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+                return size() > max;
+            }
+        };
+    }
+
+    public Tokenizer getTokenizer() {
+        return tokenizer;
+    }
+
+    /** 文本 token 数（记忆化） */
+    public int countText(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        synchronized (memo) {
+            Integer n = memo.get(text);
+            if (n != null) {
+                return n;
+            }
+        }
+        int n = tokenizer.count(text);
+        synchronized (memo) {
+            if (seenOnce.remove(text.hashCode()) != null) {
+                memo.put(text, n);
+            } else {
+                seenOnce.put(text.hashCode(), Boolean.TRUE);
+            }
+        }
+        return n;
+    }
+
+    /** 单条消息的 token 数：content + tool_calls 参数 + 格式开销 */
+    public int countMessage(Map<String, Object> message) {
+        if (message == null) {
+            return 0;
+        }
+        int n = PER_MESSAGE_OVERHEAD;
+        Object content = message.get("content");
+        if (content != null) {
+            n += countText(content.toString());
+        }
+        Object toolCalls = message.get("tool_calls");
+        if (toolCalls instanceof List) {
+            for (Object tc : (List<?>) toolCalls) {
+                if (tc instanceof Map) {
+                    Object fn = ((Map<?, ?>) tc).get("function");
+                    if (fn instanceof Map) {
+                        Object name = ((Map<?, ?>) fn).get("name");
+                        Object args = ((Map<?, ?>) fn).get("arguments");
+                        n += countText(name != null ? name.toString() : null);
+                        n += countText(args != null ? args.toString() : null);
+                    }
+                }
+            }
+        }
+        return n;
+    }
+
+    public int countMessages(List<Map<String, Object>> messages) {
+        int n = 0;
+        if (messages != null) {
+            for (Map<String, Object> m : messages) {
+                n += countMessage(m);
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,13 @@
+package com.javaclaw.tokenizer;
+
+/**
+ * 文本分词计数接口：只关心 token 数量，用于按 token 预算裁剪上下文。实现需线程安全。
+ */
+public interface Tokenizer {
+
+    /** 编码名，如 cl100k_base、o200k_base；估算实现返回 estimate */
+    String getName();
+
+    /** 文本的 token 数；null 或空串为 0 */
+    int count(String text);
+}
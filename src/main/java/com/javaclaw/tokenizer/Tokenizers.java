@@ -0,0 +1,73 @@
+package com.javaclaw.tokenizer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按模型选择分词器：gpt-4o / o 系列 / gpt-4.1 / gpt-5 用 o200k_base，其余用 cl100k_base。
+ * 词表依次从 classpath 的 tokenizer/&lt;encoding&gt;.tiktoken（随 jar 发布）、数据目录 tokenizer/&lt;encoding&gt;.tiktoken 加载；
+ * 都不存在或无法读取时抛 IllegalStateException，在启动时暴露打包问题，而不是静默退化为估算。同一编码只加载一次。
+ */
+public final class Tokenizers {
+
+    public static final String CL100K_BASE = "cl100k_base";
+    public static final String O200K_BASE = "o200k_base";
+    private static final String RESOURCE_DIR = "tokenizer";
+
+    private static final Map<String, Tokenizer> CACHE = new ConcurrentHashMap<>();
+
+    private Tokenizers() {
+    }
+
+    /** 模型对应的编码名 */
+    public static String encodingForModel(String model) {
+        String m = model != null ? model.toLowerCase(Locale.ROOT) : "";
+        int slash = m.lastIndexOf('/');
+        if (slash >= 0) {
+            m = m.substring(slash + 1);
+        }
+        if (m.startsWith("gpt-4o") || m.startsWith("gpt-4.1") || m.startsWith("gpt-5")
+                || m.startsWith("o1") || m.startsWith("o3") || m.startsWith("o4")) {
+            return O200K_BASE;
+        }
+        return CL100K_BASE;
+    }
+
+    public static Tokenizer forModel(String model, Path dataDir) {
+        return forEncoding(encodingForModel(model), dataDir);
+    }
+
+    public static Tokenizer forEncoding(String encoding, Path dataDir) {
+        return CACHE.computeIfAbsent(encoding, e -> load(e, dataDir));
+    }
+
+    /** @throws IllegalStateException 找不到可用的词表文件 */
+    private static Tokenizer load(String encoding, Path dataDir) {
+        String pattern = O200K_BASE.equals(encoding) ? BpeTokenizer.O200K_PATTERN : BpeTokenizer.CL100K_PATTERN;
+        String file = encoding + ".tiktoken";
+        try (InputStream in = Tokenizers.class.getClassLoader().getResourceAsStream(RESOURCE_DIR + "/" + file)) {
+            if (in != null) {
+                return BpeTokenizer.load(encoding, in, pattern);
+            }
+        } catch (IOException e) {
+            System.err.println("[Tokenizer] load classpath " + file + " failed: " + e.getMessage());
+        }
+        if (dataDir != null) {
+            Path p = dataDir.resolve(RESOURCE_DIR).resolve(file);
+            if (Files.isRegularFile(p)) {
+                try (InputStream in = Files.newInputStream(p)) {
+                    return BpeTokenizer.load(encoding, in, pattern);
+                } catch (IOException e) {
+                    System.err.println("[Tokenizer] load " + p + " failed: " + e.getMessage());
+                }
+            }
+        }
+        throw new IllegalStateException("BPE rank file " + file + " not found on the classpath (" + RESOURCE_DIR + "/)"
+                + (dataDir != null ? " or in " + dataDir.resolve(RESOURCE_DIR) : ""));
+    }
+}
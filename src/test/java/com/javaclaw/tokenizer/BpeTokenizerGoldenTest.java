@@ -0,0 +1,51 @@
+package com.javaclaw.tokenizer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 与 tiktoken 的计数对齐：期望值为 tiktoken（encode_ordinary）在同一文本上的 token 数。
+ * 同时确认 jar 内打包了词表，加载到的是 BpeTokenizer 而不是估算。
+ */
+public class BpeTokenizerGoldenTest {
+
+    private static final String[] TEXTS = {
+            "hello world",
+            "tiktoken is great!",
+            "你好，世界！今天天气怎么样？",
+            "  leading spaces\n\n\ttabs and newlines\r\n",
+            "I'm can't WE'LL they've 12345678 3.14159",
+            "def foo(x):\n    return x ** 2  # square\n",
+            "emoji 😀👍🏽 and accents: café naïve Ærø",
+            "{\"path\":\"src/main/java/App.java\",\"line\":42}",
+            "Привет мир, γειά σου κόσμε, こんにちは世界",
+    };
+
+    private static final int[] CL100K = {2, 6, 17, 10, 18, 14, 18, 13, 23};
+    private static final int[] O200K = {2, 6, 9, 10, 15, 14, 14, 13, 14};
+
+    @Test
+    public void cl100kMatchesTiktoken() {
+        assertCounts(Tokenizers.forEncoding(Tokenizers.CL100K_BASE, null), CL100K);
+    }
+
+    @Test
+    public void o200kMatchesTiktoken() {
+        assertCounts(Tokenizers.forEncoding(Tokenizers.O200K_BASE, null), O200K);
+    }
+
+    @Test
+    public void modelSelectsEncoding() {
+        assertEquals(Tokenizers.O200K_BASE, Tokenizers.encodingForModel("openai/GPT-4o-mini"));
+        assertEquals(Tokenizers.CL100K_BASE, Tokenizers.encodingForModel("gpt-4-turbo"));
+    }
+
+    private static void assertCounts(Tokenizer tokenizer, int[] expected) {
+        assertTrue(tokenizer instanceof BpeTokenizer);
+        for (int i = 0; i < TEXTS.length; i++) {
+            assertEquals(TEXTS[i], expected[i], tokenizer.count(TEXTS[i]));
+        }
+    }
+}